@@ -0,0 +1,42 @@
+package com.jassuncao.osgi.cm.command;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Map;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
+/**
+ * Kept apart from {@link ConfigImportCommand} so that the optional SQL persistence manager API is only loaded when a
+ * bulk import is requested.
+ */
+final class BulkImport {
+
+    private BulkImport() {
+    }
+
+    /**
+     * @return false when no {@link BulkPersistenceManager} is registered
+     */
+    static boolean storeAll(BundleContext bundleContext, Map<String, ? extends Dictionary<String, ?>> configurations)
+            throws IOException {
+        ServiceReference<BulkPersistenceManager> reference = bundleContext.getServiceReference(BulkPersistenceManager.class);
+        if (reference == null) {
+            return false;
+        }
+        BulkPersistenceManager bulkPersistence = bundleContext.getService(reference);
+        if (bulkPersistence == null) {
+            return false;
+        }
+        try {
+            bulkPersistence.storeAll(configurations);
+            return true;
+        }
+        finally {
+            bundleContext.ungetService(reference);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.jassuncao.osgi.cm.command;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Drops the <code>//</code> and <code>/* *&#47;</code> comments allowed in configuration files while they are read, 
+ * without buffering the whole file like {@link org.apache.felix.cm.json.Configurations#jsonCommentAwareReader(Reader)}.
+ */
+final class CommentSkippingReader extends Reader {
+
+    private final Reader in;
+    
+    private boolean inString;
+    
+    private boolean escaped;
+    
+    /**
+     * Character read after a <code>/</code> that didn't start a comment, or -1 when there is none
+     */
+    private int pending = -1;
+
+    CommentSkippingReader(Reader in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c;
+        if (pending != -1) {
+            c = pending;
+            pending = -1;
+        }
+        else {
+            c = in.read();
+        }
+        if (c == -1) {
+            return -1;
+        }
+        if (inString) {
+            if (escaped) {
+                escaped = false;
+            }
+            else if (c == '\\') {
+                escaped = true;
+            }
+            else if (c == '"') {
+                inString = false;
+            }
+            return c;
+        }
+        if (c == '"') {
+            inString = true;
+        }
+        else if (c == '/') {
+            int next = in.read();
+            if (next == '/') {
+                return skipLineComment();
+            }
+            if (next == '*') {
+                return skipBlockComment();
+            }
+            pending = next;
+        }
+        return c;
+    }
+    
+    private int skipLineComment() throws IOException {
+        int c = in.read();
+        while (c != -1 && c != '\n') {
+            c = in.read();
+        }
+        return c;
+    }
+    
+    private int skipBlockComment() throws IOException {
+        int previous = 0;
+        int c = in.read();
+        while (c != -1 && !(previous == '*' && c == '/')) {
+            previous = c;
+            c = in.read();
+        }
+        if (c == -1) {
+            throw new IOException("Unterminated comment");
+        }
+        // Keeps the tokens on each side of the comment apart
+        return ' ';
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            int c = read();
+            if (c == -1) {
+                return i == 0 ? -1 : i;
+            }
+            buffer[offset + i] = (char) c;
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -2,11 +2,27 @@ package com.jassuncao.osgi.cm.command;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.cm.json.ConfigurationReader;
 import org.apache.felix.cm.json.ConfigurationResource;
@@ -21,6 +37,7 @@ import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.apache.karaf.shell.api.console.Session;
 import org.apache.karaf.shell.support.completers.FileCompleter;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
@@ -30,6 +47,17 @@ import org.osgi.service.cm.ConfigurationAdmin;
 @Service
 public class ConfigImportCommand implements Action {
 
+    /**
+     * Number of configurations each apply thread may have waiting, both in the queue fed by the existence checks and
+     * applied but not yet printed
+     */
+    private static final int PENDING_PER_THREAD = 4;
+
+    /**
+     * Number of configurations written at once by a streaming bulk import, each chunk in its own transaction
+     */
+    static final int BULK_CHUNK_SIZE = 1000;
+
     @Reference
     Session session;
     
@@ -39,6 +67,9 @@ public class ConfigImportCommand implements Action {
     @Reference
     ConfigRepository configRepository;
     
+    @Reference
+    BundleContext bundleContext;
+    
     @Completion(FileCompleter.class)
     @Argument(index = 0, name = "inputFile", description = "File from where configurations should be imported", required = true, multiValued = false)
     String inputFile;
@@ -52,6 +83,20 @@ public class ConfigImportCommand implements Action {
     @Option(name = "-d", aliases="--dry-run",  description = "Don't perform any change", required = false, multiValued = false)
     boolean dryRun = false;
     
+    @Option(name = "-b", aliases="--bulk",  description = "Write all configurations at once, straight to the SQL persistence manager, then have Configuration Admin reload them. With --streaming they are written in chunks of " + BULK_CHUNK_SIZE, required = false, multiValued = false)
+    boolean bulk = false;
+    
+    @Option(name = "-p", aliases="--parallel",  description = "Number of configurations applied at the same time. Filtering and existence checks run ahead on their own thread. Ignored with --bulk", required = false, multiValued = false)
+    int parallel = 1;
+    
+    @Option(name = "-s", aliases="--streaming",  description = "Reads the file one configuration at a time, applying each as soon as it is read, so memory use doesn't grow with the file", required = false, multiValued = false)
+    boolean streaming = false;
+    
+    /**
+     * Set once the bulk import turns out not to be available, so that the remaining chunks go straight to the fallback
+     */
+    private boolean bulkUnavailable = false;
+    
     @Override
     public Object execute() throws Exception {
 
@@ -64,27 +109,213 @@ public class ConfigImportCommand implements Action {
         }
         
         try(BufferedReader reader = Files.newBufferedReader(Paths.get(inputFile))){
-            ConfigurationReader configReader = Configurations.buildReader().verifyAsBundleResource(false).build(reader);
-            ConfigurationResource resource = configReader.readConfigurationResource();
-            Map<String, Hashtable<String, Object>> configurationsToImport = resource.getConfigurations();
-            for (Entry<String, Hashtable<String, Object>> entry : configurationsToImport.entrySet()) {
-                String pid = entry.getKey();
-                if (configFilter == null || configFilter.match(configurationsToImport.get(pid))) {
-                    final Hashtable<String, Object> properties = entry.getValue();
-                    boolean exists = configRepository.exists(pid);
-                    if(exists) {
-                        updateExistingConfiguration(pid, properties);
+            if (streaming) {
+                try (StreamingConfigurationReader configurations = new StreamingConfigurationReader(reader)) {
+                    importConfigurations(configurations, configFilter);
+                }
+            }
+            else {
+                ConfigurationReader configReader = Configurations.buildReader().verifyAsBundleResource(false).build(reader);
+                ConfigurationResource resource = configReader.readConfigurationResource();
+                importConfigurations(resource.getConfigurations().entrySet().iterator(), configFilter);
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return null;
+    }
+    
+    void importConfigurations(Iterator<Entry<String, Hashtable<String, Object>>> configurationsToImport, Filter configFilter) throws Exception {
+        if (parallel > 1 && !bulk) {
+            importInParallel(configurationsToImport, configFilter);
+            return;
+        }
+        Map<String, Hashtable<String, Object>> bulkConfigurations = new LinkedHashMap<>();
+        while (configurationsToImport.hasNext()) {
+            Entry<String, Hashtable<String, Object>> entry = configurationsToImport.next();
+            String pid = entry.getKey();
+            if (configFilter == null || configFilter.match(entry.getValue())) {
+                final Hashtable<String, Object> properties = entry.getValue();
+                boolean exists = configRepository.exists(pid);
+                if (bulk && !dryRun) {
+                    if (exists && noClobber) {
+                        session.getConsole().println("Configuration " + pid + " already exists and no clobber option is set. Skipping.");
+                        continue;
+                    }
+                    if (exists && isSame(configRepository.getConfigAdmin().getConfiguration(pid, null).getProperties(), properties)) {
+                        session.getConsole().println("Configuration " + pid + " is unchanged. Skipping.");
+                        continue;
                     }
-                    else  {
-                        createNewConfiguration(pid, properties);
+                    properties.put(Constants.SERVICE_PID, pid);
+                    bulkConfigurations.put(pid, properties);
+                    if (streaming && bulkConfigurations.size() >= BULK_CHUNK_SIZE) {
+                        importInBulk(bulkConfigurations);
+                        bulkConfigurations = new LinkedHashMap<>();
                     }
                 }
+                else {
+                    session.getConsole().println(apply(pid, properties, exists));
+                }
             }
         }
-        return null;
+        if (!bulkConfigurations.isEmpty()) {
+            importInBulk(bulkConfigurations);
+        }
+    }
+    
+    private void importInBulk(Map<String, Hashtable<String, Object>> configurations) throws Exception {
+        boolean stored = false;
+        if (!bulkUnavailable) {
+            try {
+                stored = BulkImport.storeAll(bundleContext, configurations);
+            }
+            catch (NoClassDefFoundError e) {
+                // The SQL persistence manager isn't installed
+            }
+            if (!stored) {
+                bulkUnavailable = true;
+                session.getConsole().println("Bulk import not available. Importing one configuration at a time");
+            }
+        }
+        if (stored) {
+            reload(configurations);
+            session.getConsole().println("Stored " + configurations.size() + " configurations");
+            return;
+        }
+        for (Entry<String, Hashtable<String, Object>> entry : configurations.entrySet()) {
+            String pid = entry.getKey();
+            session.getConsole().println(apply(pid, entry.getValue(), configRepository.exists(pid)));
+        }
+    }
+    
+    /**
+     * Makes Configuration Admin pick up the configurations written behind its back, updating each with the stored
+     * properties. That replaces its copy and notifies the managed services and components. Configurations left unchanged
+     * by the import were skipped before being written, so only new or changed ones get here. The SQL persistence
+     * manager recognizes the properties it just stored and doesn't write them again.
+     */
+    private void reload(Map<String, Hashtable<String, Object>> configurations) throws IOException {
+        ConfigurationAdmin configurationAdmin = configRepository.getConfigAdmin();
+        for (Entry<String, Hashtable<String, Object>> entry : configurations.entrySet()) {
+            Hashtable<String, Object> properties = new Hashtable<>(entry.getValue()); // NOSONAR
+            properties.remove(Constants.SERVICE_PID);
+            properties.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
+            configurationAdmin.getConfiguration(entry.getKey(), null).update(properties);
+        }
+    }
+    
+    /**
+     * Compares the properties held by Configuration Admin with the imported ones, ignoring the PIDs, which Configuration
+     * Admin manages itself
+     */
+    private static boolean isSame(Dictionary<String, Object> current, Hashtable<String, Object> imported) {
+        if (current == null) {
+            return false;
+        }
+        int compared = 0;
+        for (Enumeration<String> keys = current.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            if (isPid(key)) {
+                continue;
+            }
+            if (!Objects.deepEquals(current.get(key), imported.get(key))) {
+                return false;
+            }
+            compared++;
+        }
+        for (String key : imported.keySet()) {
+            if (!isPid(key)) {
+                compared--;
+            }
+        }
+        return compared == 0;
+    }
+    
+    private static boolean isPid(String key) {
+        return Constants.SERVICE_PID.equals(key) || ConfigurationAdmin.SERVICE_FACTORYPID.equals(key);
+    }
+    
+    /**
+     * Reads, filters and checks the configurations on a separate thread, handing them through a bounded queue to a pool of
+     * {@link #parallel} threads that apply them. The outcome of each configuration is printed in the order it
+     * appears in the file.
+     */
+    private void importInParallel(Iterator<Entry<String, Hashtable<String, Object>>> configurationsToImport, Filter configFilter) throws Exception {
+        final long start = System.nanoTime();
+        final int maxPending = parallel * PENDING_PER_THREAD;
+        final BlockingQueue<PendingImport> checked = new ArrayBlockingQueue<>(maxPending);
+        final Thread checker = new Thread(() -> check(configurationsToImport, configFilter, checked), "config-import-check");
+        final AtomicInteger threads = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallel, r -> new Thread(r, "config-import-" + threads.incrementAndGet()));
+        final Deque<Future<String>> applying = new ArrayDeque<>(maxPending);
+        int count = 0;
+        checker.setDaemon(true);
+        checker.start();
+        try {
+            for (PendingImport next = checked.take(); next != PendingImport.END; next = checked.take()) {
+                if (next.failure != null) {
+                    throw next.failure;
+                }
+                final PendingImport pending = next;
+                applying.add(executor.submit(() -> apply(pending.pid, pending.properties, pending.exists)));
+                while (applying.size() >= maxPending || (!applying.isEmpty() && applying.peek().isDone())) {
+                    session.getConsole().println(await(applying.poll()));
+                    count++;
+                }
+            }
+            while (!applying.isEmpty()) {
+                session.getConsole().println(await(applying.poll()));
+                count++;
+            }
+        }
+        finally {
+            checker.interrupt();
+            executor.shutdownNow();
+        }
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        session.getConsole().println("Imported " + count + " configurations in " + elapsed + " ms (" + (count * 1000L / elapsed) + " configurations/s)");
     }
     
-    private void createNewConfiguration(String pid, final Hashtable<String, Object> properties) throws IOException {
+    private void check(Iterator<Entry<String, Hashtable<String, Object>>> configurationsToImport, Filter configFilter, BlockingQueue<PendingImport> checked) {
+        try {
+            try {
+                while (configurationsToImport.hasNext()) {
+                    Entry<String, Hashtable<String, Object>> entry = configurationsToImport.next();
+                    String pid = entry.getKey();
+                    if (configFilter == null || configFilter.match(entry.getValue())) {
+                        checked.put(new PendingImport(pid, entry.getValue(), configRepository.exists(pid), null));
+                    }
+                }
+                checked.put(PendingImport.END);
+            }
+            catch (InterruptedException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                checked.put(new PendingImport(null, null, false, e));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static String await(Future<String> applying) throws Exception {
+        try {
+            return applying.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+    
+    private String apply(String pid, Hashtable<String, Object> properties, boolean exists) throws IOException {
+        return exists ? updateExistingConfiguration(pid, properties) : createNewConfiguration(pid, properties);
+    }
+    
+    private String createNewConfiguration(String pid, final Hashtable<String, Object> properties) throws IOException {
         String factoryPid = (String) properties.get(ConfigurationAdmin.SERVICE_FACTORYPID);
         if(factoryPid != null) {
             if(!dryRun) {
@@ -92,36 +323,35 @@ public class ConfigImportCommand implements Action {
                 properties.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
                 properties.remove(Constants.SERVICE_PID);
                 configRepository.createFactoryConfiguration(factoryPid, name, properties);                
-                session.getConsole().println("Created factory configuration " + factoryPid);
+                return "Created factory configuration " + factoryPid;
             }
             else {
-                session.getConsole().println("Would create factory configuration " + factoryPid);
+                return "Would create factory configuration " + factoryPid;
             }
         } else {
             if(!dryRun) {
                 properties.remove(Constants.SERVICE_PID);
                 configRepository.update(pid, properties);
-                session.getConsole().println("Created configuration " + pid);
+                return "Created configuration " + pid;
             }
             else {
-                session.getConsole().println("Would create configuration " + pid);
+                return "Would create configuration " + pid;
             }
         }
     }
     
-    private void updateExistingConfiguration(String pid, final Hashtable<String, Object> properties) throws IOException {
+    private String updateExistingConfiguration(String pid, final Hashtable<String, Object> properties) throws IOException {
         if (noClobber) {
-            session.getConsole().println("Configuration " + pid + " already exists and no clobber option is set. Skipping.");
-            return;
+            return "Configuration " + pid + " already exists and no clobber option is set. Skipping.";
         }
         if(!dryRun) {
             properties.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
             properties.remove(Constants.SERVICE_PID);
             configRepository.update(pid, properties);
-            session.getConsole().println("Replaced configuration " + pid);
+            return "Replaced configuration " + pid;
         } 
         else {
-            session.getConsole().println("Would replace configuration " + pid);
+            return "Would replace configuration " + pid;
         }
     }
     
@@ -172,4 +402,24 @@ public class ConfigImportCommand implements Action {
         System.out.println(isMatch(text, "aabbbccc"));
     }
 
+    /**
+     * A configuration that passed the filter, waiting to be applied
+     */
+    private static final class PendingImport {
+        
+        static final PendingImport END = new PendingImport(null, null, false, null);
+        
+        final String pid;
+        final Hashtable<String, Object> properties;
+        final boolean exists;
+        final Exception failure;
+        
+        PendingImport(String pid, Hashtable<String, Object> properties, boolean exists, Exception failure) {
+            this.pid = pid;
+            this.properties = properties;
+            this.exists = exists;
+            this.failure = failure;
+        }
+    }
+
 }
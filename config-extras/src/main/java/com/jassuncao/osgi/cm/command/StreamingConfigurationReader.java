@@ -0,0 +1,115 @@
+package com.jassuncao.osgi.cm.command;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.felix.cm.json.Configurations;
+
+/**
+ * Reads the configurations of a configuration resource one at a time, as they are requested. Only the configuration 
+ * being returned is kept in memory, which is converted by the same reader used by 
+ * {@link org.apache.felix.cm.json.ConfigurationReader#readConfigurationResource()}. The resource properties, 
+ * the keys starting with <code>:configurator:</code>, are skipped.
+ * <p>
+ * {@link #hasNext()} and {@link #next()} throw an {@link UncheckedIOException} when the file can't be read or parsed.
+ */
+final class StreamingConfigurationReader implements Iterator<Entry<String, Hashtable<String, Object>>>, Closeable {
+
+    private static final String CONFIGURATOR_PREFIX = ":configurator:";
+
+    private final JsonParser parser;
+    
+    private Entry<String, Hashtable<String, Object>> next;
+    
+    private boolean done;
+
+    StreamingConfigurationReader(Reader reader) throws IOException {
+        try {
+            this.parser = Json.createParser(new CommentSkippingReader(reader));
+            if (!parser.hasNext() || parser.next() != Event.START_OBJECT) {
+                throw new IOException("Configuration resource is not a JSON object");
+            }
+        }
+        catch (JsonException e) {
+            throw new IOException("Invalid configuration resource", e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = readNext();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            catch (JsonException e) {
+                throw new UncheckedIOException(new IOException("Invalid configuration resource", e));
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry<String, Hashtable<String, Object>> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry<String, Hashtable<String, Object>> current = next;
+        next = null;
+        return current;
+    }
+    
+    private Entry<String, Hashtable<String, Object>> readNext() throws IOException {
+        while (parser.hasNext()) {
+            Event event = parser.next();
+            if (event == Event.END_OBJECT) {
+                return null;
+            }
+            String key = parser.getString();
+            Event value = parser.next();
+            if (key.startsWith(CONFIGURATOR_PREFIX)) {
+                skip(value);
+                continue;
+            }
+            if (value != Event.START_OBJECT) {
+                throw new IOException("Configuration " + key + " is not a JSON object");
+            }
+            Hashtable<String, Object> properties = Configurations.buildReader()
+                    .verifyAsBundleResource(false)
+                    .withIdentifier(key)
+                    .build(parser.getObject())
+                    .readConfiguration();
+            return new SimpleImmutableEntry<>(key, properties);
+        }
+        throw new IOException("Unexpected end of configuration resource");
+    }
+    
+    private void skip(Event value) {
+        if (value == Event.START_OBJECT) {
+            parser.skipObject();
+        }
+        else if (value == Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    @Override
+    public void close() {
+        parser.close();
+    }
+}
@@ -0,0 +1,200 @@
+package com.jassuncao.osgi.cm.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.config.core.ConfigRepository;
+import org.apache.karaf.shell.api.console.Session;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
+public class ConfigImportCommandTest {
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().silent();
+
+    @Mock
+    Session session;
+
+    @Mock
+    ConfigRepository configRepository;
+
+    @Mock
+    BundleContext bundleContext;
+
+    @Mock
+    ServiceReference<BulkPersistenceManager> reference;
+
+    @Mock
+    BulkPersistenceManager bulkPersistence;
+
+    @Mock
+    ConfigurationAdmin configurationAdmin;
+
+    @Mock
+    Configuration configuration;
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+
+    private ConfigImportCommand underTest;
+
+    @Before
+    public void setUp() {
+        when(session.getConsole()).thenReturn(new PrintStream(console, true));
+        underTest = new ConfigImportCommand();
+        underTest.session = session;
+        underTest.configRepository = configRepository;
+        underTest.bundleContext = bundleContext;
+        underTest.bulk = true;
+        when(configRepository.getConfigAdmin()).thenReturn(configurationAdmin);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBulkImport() throws Exception {
+        when(bundleContext.getServiceReference(BulkPersistenceManager.class)).thenReturn(reference);
+        when(bundleContext.getService(reference)).thenReturn(bulkPersistence);
+        when(configRepository.exists("org.pid2")).thenReturn(true);
+        when(configurationAdmin.getConfiguration("org.pid1", null)).thenReturn(configuration);
+        underTest.noClobber = true;
+
+        underTest.importConfigurations(configurations().entrySet().iterator(), null);
+
+        ArgumentCaptor<Map<String, Hashtable<String, Object>>> stored = ArgumentCaptor.forClass(Map.class);
+        verify(bulkPersistence).storeAll(stored.capture());
+        verify(bundleContext).ungetService(reference);
+        verify(configRepository, never()).update(anyString(), any());
+        assertEquals(1, stored.getValue().size());
+        assertEquals("org.pid1", stored.getValue().get("org.pid1").get(Constants.SERVICE_PID));
+        assertEquals("value1", stored.getValue().get("org.pid1").get("key"));
+
+        ArgumentCaptor<Dictionary<String, Object>> reloaded = ArgumentCaptor.forClass(Dictionary.class);
+        verify(configuration).update(reloaded.capture());
+        verify(configurationAdmin, never()).getConfiguration(eq("org.pid2"), any());
+        assertEquals(null, reloaded.getValue().get(Constants.SERVICE_PID));
+        assertEquals("value1", reloaded.getValue().get("key"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBulkImportSkipsUnchanged() throws Exception {
+        Configuration existing = Mockito.mock(Configuration.class);
+        Hashtable<String, Object> current = new Hashtable<>(); // NOSONAR
+        current.put(Constants.SERVICE_PID, "org.pid2");
+        current.put("key", "value2");
+        when(existing.getProperties()).thenReturn(current);
+        when(bundleContext.getServiceReference(BulkPersistenceManager.class)).thenReturn(reference);
+        when(bundleContext.getService(reference)).thenReturn(bulkPersistence);
+        when(configRepository.exists("org.pid2")).thenReturn(true);
+        when(configurationAdmin.getConfiguration("org.pid1", null)).thenReturn(configuration);
+        when(configurationAdmin.getConfiguration("org.pid2", null)).thenReturn(existing);
+
+        underTest.importConfigurations(configurations().entrySet().iterator(), null);
+
+        ArgumentCaptor<Map<String, Hashtable<String, Object>>> stored = ArgumentCaptor.forClass(Map.class);
+        verify(bulkPersistence).storeAll(stored.capture());
+        assertEquals(Collections.singleton("org.pid1"), stored.getValue().keySet());
+        verify(configuration).update(any());
+        verify(existing, never()).update(any());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testStreamingBulkImportWritesInChunks() throws Exception {
+        final int count = ConfigImportCommand.BULK_CHUNK_SIZE * 2 + 1;
+        when(bundleContext.getServiceReference(BulkPersistenceManager.class)).thenReturn(reference);
+        when(bundleContext.getService(reference)).thenReturn(bulkPersistence);
+        when(configurationAdmin.getConfiguration(anyString(), isNull())).thenReturn(configuration);
+        underTest.streaming = true;
+
+        underTest.importConfigurations(configurations(count).entrySet().iterator(), null);
+
+        ArgumentCaptor<Map<String, Hashtable<String, Object>>> stored = ArgumentCaptor.forClass(Map.class);
+        verify(bulkPersistence, times(3)).storeAll(stored.capture());
+        assertEquals(ConfigImportCommand.BULK_CHUNK_SIZE, stored.getAllValues().get(0).size());
+        assertEquals(ConfigImportCommand.BULK_CHUNK_SIZE, stored.getAllValues().get(1).size());
+        assertEquals(1, stored.getAllValues().get(2).size());
+        verify(configuration, times(count)).update(any());
+    }
+
+    @Test
+    public void testFallsBackWithoutBulkService() throws Exception {
+        underTest.importConfigurations(configurations().entrySet().iterator(), null);
+
+        verify(configRepository).update(eq("org.pid1"), any());
+        verify(configRepository).update(eq("org.pid2"), any());
+    }
+
+    @Test
+    public void testParallelImportKeepsOrder() throws Exception {
+        final int count = 50;
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        doAnswer(invocation -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            concurrent.decrementAndGet();
+            return null;
+        }).when(configRepository).update(anyString(), any());
+        underTest.bulk = false;
+        underTest.parallel = 4;
+
+        underTest.importConfigurations(configurations(count).entrySet().iterator(), FrameworkUtil.createFilter("(key=*)"));
+
+        verify(configRepository, times(count)).update(anyString(), any());
+        assertTrue(maxConcurrent.get() > 1);
+        String[] lines = console.toString().split("\\R");
+        assertEquals(count + 1, lines.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals("Created configuration org.pid" + (i + 1), lines[i]);
+        }
+        assertTrue(lines[count].startsWith("Imported " + count + " configurations in "));
+    }
+
+    private static Map<String, Hashtable<String, Object>> configurations() {
+        return configurations(2);
+    }
+
+    private static Map<String, Hashtable<String, Object>> configurations(int count) {
+        Map<String, Hashtable<String, Object>> configurations = new LinkedHashMap<>();
+        for (int i = 1; i <= count; i++) {
+            Hashtable<String, Object> properties = new Hashtable<>(); // NOSONAR
+            properties.put("key", "value" + i);
+            configurations.put("org.pid" + i, properties);
+        }
+        return configurations;
+    }
+}
@@ -0,0 +1,88 @@
+package com.jassuncao.osgi.cm.command;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.felix.cm.json.Configurations;
+import org.junit.Test;
+
+public class StreamingConfigurationReaderTest {
+
+    private static final String RESOURCE = "{\n"
+            + "  // Exported by config:export\n"
+            + "  \":configurator:resource-version\": 1,\n"
+            + "  \":configurator:version\": \"1.0\",\n"
+            + "  \":configurator:symbolic-name\": \"n/a\",\n"
+            + "  \"org.apache.karaf.log\": {\n"
+            + "    \"size\": 500, /* lines */\n"
+            + "    \"pattern\": \"%d // %m /* not a comment */\",\n"
+            + "    \"port:Integer\": 8101,\n"
+            + "    \"hosts:String[]\": [\"a\", \"b\"]\n"
+            + "  },\n"
+            + "  \"org.acme.factory~first\": {\n"
+            + "    \"service.factoryPid\": \"org.acme.factory\",\n"
+            + "    \"escaped\": \"quote \\\" /* still text */\"\n"
+            + "  }\n"
+            + "}\n";
+
+    @Test
+    public void testReadsLikeConfigurationReader() throws Exception {
+        Map<String, Hashtable<String, Object>> expected = Configurations.buildReader()
+                .verifyAsBundleResource(false)
+                .build(new StringReader(RESOURCE))
+                .readConfigurationResource()
+                .getConfigurations();
+
+        Map<String, Hashtable<String, Object>> actual = new LinkedHashMap<>();
+        try (StreamingConfigurationReader reader = new StreamingConfigurationReader(new StringReader(RESOURCE))) {
+            while (reader.hasNext()) {
+                Entry<String, Hashtable<String, Object>> entry = reader.next();
+                actual.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        assertEquals(expected.keySet(), actual.keySet());
+        Hashtable<String, Object> log = actual.get("org.apache.karaf.log");
+        assertEquals(expected.get("org.apache.karaf.log").get("size"), log.get("size"));
+        assertEquals(8101, log.get("port"));
+        assertEquals("%d // %m /* not a comment */", log.get("pattern"));
+        assertArrayEquals(new String[] { "a", "b" }, (String[]) log.get("hosts"));
+        Hashtable<String, Object> factory = actual.get("org.acme.factory~first");
+        assertEquals("org.acme.factory", factory.get("service.factoryPid"));
+        assertEquals(expected.get("org.acme.factory~first").get("escaped"), factory.get("escaped"));
+    }
+
+    @Test
+    public void testConfigurationsAreReadOnDemand() throws Exception {
+        String truncated = "{ \"org.pid1\": { \"key\": \"value\" }, \"org.pid2\": { \"key\": ";
+        try (StreamingConfigurationReader reader = new StreamingConfigurationReader(new StringReader(truncated))) {
+            assertTrue(reader.hasNext());
+            assertEquals("value", reader.next().getValue().get("key"));
+            try {
+                reader.hasNext();
+                fail("Expected UncheckedIOException");
+            }
+            catch (UncheckedIOException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyResource() throws Exception {
+        try (StreamingConfigurationReader reader = new StreamingConfigurationReader(new StringReader("{}"))) {
+            assertFalse(reader.hasNext());
+        }
+    }
+}
@@ -15,10 +15,18 @@
  */
 package com.jassuncao.osgi.cm.sql;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Pattern;
 
 import javax.sql.DataSource;
 
@@ -33,6 +41,8 @@ import org.osgi.service.jdbc.DataSourceFactory;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
 
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
 /**
  * @author jassuncao
  *
@@ -47,12 +57,18 @@ public class Activator implements BundleActivator {
     private static final Object SQL_PM_NAME = "sql";
     private static final Object DELEGATED_PM_NAME = "delegated";
 
-    private ServiceTracker<DataSourceFactory, ServiceRegistration<PersistenceManager>> dataSourceFactoryTracker;
+    private ServiceTracker<DataSourceFactory, PersistenceRegistration> dataSourceFactoryTracker;
 
     private DefaultLogHelper logHelper;
 
     private DelegatingPersistenceTracker delegatingPersistenceTracker;
 
+    private SnapshotPersistenceManager snapshotManager;
+
+    private ServiceRegistration<PersistenceManager> snapshotRegistration;
+
+    private PersistenceMetrics snapshotMetrics;
+
     @Override
     public void start(BundleContext bundleContext) throws Exception {
         SystemPropertiesHelper properties = new SystemPropertiesHelper(bundleContext);
@@ -60,21 +76,55 @@ public class Activator implements BundleActivator {
 
         logHelper = new DefaultLogHelper(logLevel, bundleContext);
         
+        PidRouter router = createRouter(properties);
+        if (router != null) {
+            logHelper.log(LogService.LOG_INFO, "Creating DelegatingPersistenceTracker");
+            delegatingPersistenceTracker = new DelegatingPersistenceTracker(bundleContext, properties, router, logHelper);
+        }
+
         if(isNotEmpty(properties.getDriverName()) && isNotEmpty(properties.getJdbcUrl())) {
+            File snapshotFile = properties.isSnapshotEnabled() ? properties.getSnapshotFile() : null;
+            if (properties.isSnapshotEnabled() && snapshotFile == null) {
+                logHelper.log(LogService.LOG_WARNING, "No file system support for the bundle's data area. Set " + SystemPropertiesHelper.PROPERTY_SNAPSHOT_FILE + " to enable the configuration snapshot");
+            }
+            if (snapshotFile != null) {
+                snapshotManager = new SnapshotPersistenceManager(snapshotFile, logHelper);
+                snapshotManager.init();
+                logHelper.log(LogService.LOG_INFO, "Registering service DatabasePersistenceManager backed by the configuration snapshot");
+                PersistenceManager snapshotService = snapshotManager;
+                if (properties.isMetricsEnabled()) {
+                    snapshotMetrics = registerMetrics(SQL_PM_NAME, logHelper);
+                    snapshotService = MetricsPersistenceManager.wrap(snapshotService, snapshotMetrics);
+                }
+                snapshotRegistration = bundleContext.registerService(PersistenceManager.class, snapshotService, createServiceProperties());
+            }
             logHelper.log(LogService.LOG_INFO, "Creating DatasourceServiceTracker");
-            dataSourceFactoryTracker = new DatasourceServiceTracker(bundleContext, properties, logHelper);
+            dataSourceFactoryTracker = new DatasourceServiceTracker(bundleContext, properties, logHelper, snapshotManager,
+                    router, delegatingPersistenceTracker);
             dataSourceFactoryTracker.open();        
         }
         
-        if(isNotEmpty(properties.getDelegatedPrimary()) && isNotEmpty(properties.getDelegatedSecondary()) && isNotEmpty(properties.getDelegatedPrimaryPids())) {
-            logHelper.log(LogService.LOG_INFO, "Creating DelegatingPersistenceTracker");
-            
-            delegatingPersistenceTracker = new DelegatingPersistenceTracker(bundleContext, properties, logHelper);
+        if (delegatingPersistenceTracker != null) {
             delegatingPersistenceTracker.open();
         }
         
     }
 
+    /**
+     * @return the router of the delegated persistence manager, or null when delegation isn't configured
+     */
+    private static PidRouter createRouter(SystemPropertiesHelper properties) {
+        if (isNotEmpty(properties.getDelegatedRoutes())) {
+            return PidRouter.parse(properties.getDelegatedRoutes());
+        }
+        if (isNotEmpty(properties.getDelegatedPrimary()) && isNotEmpty(properties.getDelegatedSecondary()) && isNotEmpty(properties.getDelegatedPrimaryPids())) {
+            return PidRouter.builder()
+                    .regex(properties.getDelegatedPrimaryPids(), properties.getDelegatedPrimary())
+                    .any(properties.getDelegatedSecondary()).build();
+        }
+        return null;
+    }
+
     @Override
     public void stop(BundleContext context) throws Exception {
         if (dataSourceFactoryTracker != null) {
@@ -83,64 +133,286 @@ public class Activator implements BundleActivator {
         if(delegatingPersistenceTracker!=null) {
             delegatingPersistenceTracker.close();
         }
+        if (snapshotRegistration != null) {
+            snapshotRegistration.unregister();
+            snapshotRegistration = null;
+        }
+        if (snapshotMetrics != null) {
+            snapshotMetrics.close();
+            snapshotMetrics = null;
+        }
+        if (snapshotManager != null) {
+            snapshotManager.close();
+            snapshotManager = null;
+        }
         if (logHelper != null) {
             logHelper.stop();
         }
     }
 
-    private static class DatasourceServiceTracker extends ServiceTracker<DataSourceFactory, ServiceRegistration<PersistenceManager>> {
+    private static class DatasourceServiceTracker extends ServiceTracker<DataSourceFactory, PersistenceRegistration> {
 
         private final SystemPropertiesHelper propertiesHelper;
         private final LogHelper logHelper;
+        private final SnapshotPersistenceManager snapshotManager;
+        private final PidRouter router;
+        private final ConfigurationChangeListener delegatedListener;
 
-        public DatasourceServiceTracker(BundleContext context, SystemPropertiesHelper propertiesHelper, LogHelper logHelper) {
+        /**
+         * @param router the router of the delegated persistence manager, or null without delegation
+         * @param delegatedListener notified of the configurations changed behind the delegated persistence manager, or
+         *        null without delegation
+         */
+        public DatasourceServiceTracker(BundleContext context, SystemPropertiesHelper propertiesHelper, LogHelper logHelper,
+                SnapshotPersistenceManager snapshotManager, PidRouter router, ConfigurationChangeListener delegatedListener) {
             super(context, DataSourceFactory.class, null);
             this.propertiesHelper = propertiesHelper;
             this.logHelper = logHelper;
+            this.snapshotManager = snapshotManager;
+            this.router = router;
+            this.delegatedListener = delegatedListener;
         }
 
         @Override
-        public ServiceRegistration<PersistenceManager> addingService(ServiceReference<DataSourceFactory> reference) {
+        public PersistenceRegistration addingService(ServiceReference<DataSourceFactory> reference) {
             String refDriverName = (String) reference.getProperty(DataSourceFactory.OSGI_JDBC_DRIVER_NAME);
             if (!propertiesHelper.getDriverName().equals(refDriverName)) {
                 logHelper.log(LogService.LOG_DEBUG, "Ignoring DataSourceFactory for driver " + refDriverName, null);
                 return null;
             }
             DataSourceFactory dataSourceFactory = context.getService(reference);
-            DataSource dataSource;
+            PersistenceRegistration persistenceRegistration = new PersistenceRegistration(logHelper);
             try {
-                dataSource = createDataSource(dataSourceFactory);
+                DataSource dataSource = createDataSource(dataSourceFactory, propertiesHelper.getJdbcUrl(),
+                        propertiesHelper.getJdbcUser(), propertiesHelper.getJdbcPassword());
+                DataSource replica = null;
+                String shardUrls = propertiesHelper.getShardUrls();
+                if (isNotEmpty(propertiesHelper.getReplicaUrl()) && isNotEmpty(shardUrls)) {
+                    logHelper.log(LogService.LOG_WARNING, "Read replicas aren't supported with shards in several databases. Ignoring the replica", null);
+                }
+                else if (isNotEmpty(propertiesHelper.getReplicaUrl())) {
+                    logHelper.log(LogService.LOG_INFO, "Reading configurations from replica " + propertiesHelper.getReplicaUrl(), null);
+                    replica = createDataSource(dataSourceFactory, propertiesHelper.getReplicaUrl(),
+                            propertiesHelper.getReplicaUser(), propertiesHelper.getReplicaPassword());
+                }
+                List<ConnectionPool> pools = new ArrayList<>();
+                if (propertiesHelper.isPoolEnabled()) {
+                    logHelper.log(LogService.LOG_INFO, "Creating connection pool with up to " + propertiesHelper.getPoolMaxSize() + " connections", null);
+                    dataSource = createPool(dataSource, pools, persistenceRegistration);
+                    if (replica != null) {
+                        replica = createPool(replica, pools, persistenceRegistration);
+                    }
+                }
                 logHelper.log(LogService.LOG_INFO, "Creating service DatabasePersistenceManager", null);
                 String dbSchema = propertiesHelper.getSchema();
                 String tableName = propertiesHelper.getTableName();
-                DatabasePersistenceManager persistenceManager = new DatabasePersistenceManager(dataSource, logHelper,
-                        tableName, dbSchema);
-                persistenceManager.init();
-                Hashtable<String, Object> props = new Hashtable<>();
-                props.put(Constants.SERVICE_DESCRIPTION, "Configuration Persistence Manager - Database");
-                props.put(Constants.SERVICE_RANKING, SERVICE_RANKING_VALUE);
-                props.put(PersistenceManager.PROPERTY_NAME, SQL_PM_NAME);
+                List<DatabasePersistenceManager> databaseManagers = new ArrayList<>();
+                if (isNotEmpty(shardUrls)) {
+                    logHelper.log(LogService.LOG_INFO, "Sharding configurations across databases " + propertiesHelper.getJdbcUrl() + "," + shardUrls, null);
+                    databaseManagers.add(new DatabasePersistenceManager(dataSource, logHelper, tableName, dbSchema));
+                    for (String shardUrl : shardUrls.split(",")) {
+                        DataSource shardDataSource = createDataSource(dataSourceFactory, shardUrl.trim(),
+                                propertiesHelper.getJdbcUser(), propertiesHelper.getJdbcPassword());
+                        if (propertiesHelper.isPoolEnabled()) {
+                            shardDataSource = createPool(shardDataSource, pools, persistenceRegistration);
+                        }
+                        databaseManagers.add(new DatabasePersistenceManager(shardDataSource, logHelper, tableName, dbSchema));
+                    }
+                }
+                else if (propertiesHelper.getShards() > 1) {
+                    logHelper.log(LogService.LOG_INFO, "Sharding configurations across " + propertiesHelper.getShards() + " tables", null);
+                    for (int i = 0; i < propertiesHelper.getShards(); i++) {
+                        databaseManagers.add(new DatabasePersistenceManager(dataSource, logHelper, tableName + "_" + i, dbSchema));
+                    }
+                }
+                else {
+                    databaseManagers.add(new DatabasePersistenceManager(dataSource, logHelper, tableName, dbSchema));
+                }
+                PersistenceMetrics databaseMetrics = null;
+                if (propertiesHelper.isMetricsEnabled()) {
+                    databaseMetrics = registerMetrics(SQL_PM_NAME + ".database", logHelper);
+                    persistenceRegistration.addResource(databaseMetrics);
+                }
+                for (DatabasePersistenceManager databaseManager : databaseManagers) {
+                    configure(databaseManager, replica);
+                    databaseManager.setMetrics(databaseMetrics);
+                }
+                if (databaseManagers.size() > 1 && isNotEmpty(propertiesHelper.getLayoutMigrateFrom())) {
+                    logHelper.log(LogService.LOG_WARNING, "Migrating configurations isn't supported with shards. Ignoring " + propertiesHelper.getLayoutMigrateFrom(), null);
+                    databaseManagers.forEach(databaseManager -> databaseManager.setMigrationTable(null));
+                }
+                for (ConnectionPool pool : pools) {
+                    pool.setTransactionIsolation(databaseManagers.get(0).getTransactionIsolation());
+                }
+                for (DatabasePersistenceManager databaseManager : databaseManagers) {
+                    databaseManager.init();
+                }
+                databaseManagers.get(0).checkShardCount(tableName, databaseManagers.size());
+                PersistenceManager service = databaseManagers.get(0);
+                BulkPersistenceManager bulkStore = databaseManagers.get(0);
+                if (databaseManagers.size() > 1) {
+                    ShardedPersistenceManager sharded = new ShardedPersistenceManager(databaseManagers);
+                    persistenceRegistration.addResource(sharded);
+                    service = sharded;
+                    bulkStore = sharded;
+                }
+                if (databaseMetrics != null) {
+                    service = MetricsPersistenceManager.wrap(service, databaseMetrics);
+                }
+                WriteBehindPersistenceManager writeBehind = null;
+                if (propertiesHelper.isWriteBehindEnabled()) {
+                    logHelper.log(LogService.LOG_INFO, "Writing configurations in the background at most " + propertiesHelper.getWriteBehindDelay() + "ms after they change", null);
+                    File pendingFile = propertiesHelper.getWriteBehindPendingFile();
+                    if (pendingFile == null) {
+                        logHelper.log(LogService.LOG_WARNING, "No file system support for the bundle's data area. Set " + SystemPropertiesHelper.PROPERTY_WRITE_BEHIND_PENDING_FILE + " to keep the writes that can't be flushed when the bundle stops", null);
+                    }
+                    writeBehind = new WriteBehindPersistenceManager(service, bulkStore, logHelper,
+                            propertiesHelper.getWriteBehindDelay(), propertiesHelper.getWriteBehindBatchSize(),
+                            pendingFile, propertiesHelper.getWriteBehindCloseTimeout());
+                    writeBehind.init();
+                    persistenceRegistration.addResource(writeBehind);
+                    service = writeBehind;
+                }
+                List<ConfigurationChangeListener> changeListeners = new ArrayList<>();
+                if (replica != null) {
+                    // Notified first, so that the caches reload changes from the primary database
+                    changeListeners.addAll(databaseManagers);
+                }
+                CachingPersistenceManager cache = null;
+                if (propertiesHelper.isCacheEnabled()) {
+                    logHelper.log(LogService.LOG_INFO, "Enabling configuration cache with up to " + propertiesHelper.getCacheSize() + " entries", null);
+                    cache = new CachingPersistenceManager(service, propertiesHelper.getCacheSize());
+                    changeListeners.add(cache);
+                    CachingPersistenceManager closedCache = cache;
+                    persistenceRegistration.addResource(() -> logHelper.log(LogService.LOG_INFO, "Configuration cache closed. " + closedCache, null));
+                    service = cache;
+                    if (propertiesHelper.isMetricsEnabled()) {
+                        PersistenceMetrics metrics = registerMetrics(SQL_PM_NAME + ".cache", logHelper);
+                        metrics.gauge(PersistenceMetrics.CACHE_HITS, cache::getHitCount);
+                        metrics.gauge(PersistenceMetrics.CACHE_MISSES, cache::getMissCount);
+                        metrics.gauge(PersistenceMetrics.CACHE_SIZE, cache::getSize);
+                        persistenceRegistration.addResource(metrics);
+                        service = MetricsPersistenceManager.wrap(service, metrics);
+                    }
+                }
+                if (snapshotManager != null) {
+                    changeListeners.add(snapshotManager);
+                }
+                if (delegatedListener != null) {
+                    changeListeners.add(delegatedListener);
+                }
+                if (propertiesHelper.isRevisionEnabled() && !changeListeners.isEmpty()) {
+                    logHelper.log(LogService.LOG_INFO, "Polling for configuration changes every " + propertiesHelper.getRevisionPollInterval() + "ms", null);
+                    for (DatabasePersistenceManager databaseManager : databaseManagers) {
+                        RevisionPoller poller = new RevisionPoller(databaseManager, changeListeners, logHelper);
+                        poller.start(propertiesHelper.getRevisionPollInterval());
+                        persistenceRegistration.addResource(poller);
+                    }
+                }
+                logHelper.log(LogService.LOG_INFO, "Registering service BulkPersistenceManager", null);
+                BulkPersistenceManager bulkService = createBulkService(bulkStore, writeBehind, changeListeners, cache, router);
+                persistenceRegistration.addResource(context.registerService(BulkPersistenceManager.class, bulkService, createBulkServiceProperties())::unregister);
+                if (snapshotManager != null) {
+                    logHelper.log(LogService.LOG_INFO, "Attaching DatabasePersistenceManager to the configuration snapshot", null);
+                    snapshotManager.attach(service, propertiesHelper.isRevisionEnabled() ? databaseManagers : Collections.emptyList());
+                    persistenceRegistration.addResource(snapshotManager::detach);
+                    return persistenceRegistration;
+                }
+                if (propertiesHelper.isMetricsEnabled()) {
+                    PersistenceMetrics metrics = registerMetrics(SQL_PM_NAME, logHelper);
+                    persistenceRegistration.addResource(metrics);
+                    service = MetricsPersistenceManager.wrap(service, metrics);
+                }
                 logHelper.log(LogService.LOG_INFO, "Registering service DatabasePersistenceManager", null);
-                return context.registerService(PersistenceManager.class, persistenceManager, props);
-            } catch (SQLException ex) {
+                persistenceRegistration.setRegistration(context.registerService(PersistenceManager.class, service, createServiceProperties()));
+                return persistenceRegistration;
+            } catch (SQLException | RuntimeException ex) {
                 logHelper.log(LogService.LOG_ERROR, "Failed to create DataSource ", ex);
+                persistenceRegistration.unregister();
             }
+            context.ungetService(reference);
             return null;
         }
 
         @Override
-        public void removedService(ServiceReference<DataSourceFactory> reference, ServiceRegistration<PersistenceManager> service) {
+        public void removedService(ServiceReference<DataSourceFactory> reference, PersistenceRegistration service) {
             if (service != null) {
                 service.unregister();
                 context.ungetService(reference);
             }
         }
 
-        private DataSource createDataSource(DataSourceFactory dataSourceFactory) throws SQLException {
+        /**
+         * Pending background writes are flushed first, so that they don't overwrite the configurations stored in bulk.
+         * The change listeners are notified afterwards, like for changes made by another node, and the cache is filled
+         * with the stored configurations, so that Configuration Admin can reload them without going to the database.
+         * <p>
+         * With delegation, configurations routed to another persistence manager are refused, since the bulk writes
+         * only reach the database.
+         */
+        private static BulkPersistenceManager createBulkService(BulkPersistenceManager bulkStore,
+                WriteBehindPersistenceManager writeBehind, List<ConfigurationChangeListener> changeListeners,
+                CachingPersistenceManager cache, PidRouter router) {
+            return configurations -> {
+                if (router != null) {
+                    List<String> routedElsewhere = new ArrayList<>();
+                    for (String pid : configurations.keySet()) {
+                        if (!SQL_PM_NAME.equals(router.route(pid))) {
+                            routedElsewhere.add(pid);
+                        }
+                    }
+                    if (!routedElsewhere.isEmpty()) {
+                        throw new IOException("Configurations " + routedElsewhere + " aren't routed to the " + SQL_PM_NAME
+                                + " persistence manager. Nothing was stored");
+                    }
+                }
+                if (writeBehind != null) {
+                    writeBehind.flush();
+                }
+                bulkStore.storeAll(configurations);
+                for (String pid : configurations.keySet()) {
+                    for (ConfigurationChangeListener listener : changeListeners) {
+                        listener.configurationChanged(pid);
+                    }
+                }
+                if (cache != null) {
+                    cache.cacheStored(configurations);
+                }
+            };
+        }
+
+        private void configure(DatabasePersistenceManager persistenceManager, DataSource replica) {
+            persistenceManager.setStreaming(propertiesHelper.isStreaming());
+            persistenceManager.setFetchSize(propertiesHelper.getFetchSize());
+            persistenceManager.setRevisionTracking(propertiesHelper.isRevisionEnabled());
+            persistenceManager.setLayout(propertiesHelper.getLayout());
+            persistenceManager.setBinaryEncoding(propertiesHelper.isBinaryEnabled());
+            persistenceManager.setMigrationTable(propertiesHelper.getLayoutMigrateFrom());
+            persistenceManager.setOptimisticConcurrency(propertiesHelper.isOptimisticEnabled());
+            persistenceManager.setMaxRetries(propertiesHelper.getOptimisticRetries());
+            persistenceManager.setReplica(replica, propertiesHelper.getReplicaWindow());
+            if (isNotEmpty(propertiesHelper.getDialect())) {
+                persistenceManager.setDialect(SqlDialect.forName(propertiesHelper.getDialect()));
+            }
+        }
+
+        private ConnectionPool createPool(DataSource dataSource, List<ConnectionPool> pools,
+                PersistenceRegistration persistenceRegistration) {
+            ConnectionPool pool = new ConnectionPool(dataSource, logHelper, propertiesHelper.getPoolMinSize(),
+                    propertiesHelper.getPoolMaxSize(), propertiesHelper.getPoolAcquireTimeout(),
+                    propertiesHelper.getPoolIdleTimeout(), propertiesHelper.getPoolValidationTimeout(),
+                    propertiesHelper.getPoolStatementCacheSize());
+            persistenceRegistration.addResource(pool);
+            pools.add(pool);
+            return pool;
+        }
+
+        private DataSource createDataSource(DataSourceFactory dataSourceFactory, String url, String user,
+                String password) throws SQLException {
             Properties props = new Properties();
-            props.put(DataSourceFactory.JDBC_URL, propertiesHelper.getJdbcUrl());
-            props.put(DataSourceFactory.JDBC_USER, propertiesHelper.getJdbcUser());
-            props.put(DataSourceFactory.JDBC_PASSWORD, propertiesHelper.getJdbcPassword());
+            props.put(DataSourceFactory.JDBC_URL, url);
+            props.put(DataSourceFactory.JDBC_USER, user);
+            props.put(DataSourceFactory.JDBC_PASSWORD, password);
 
             StringBuilder builder = new StringBuilder();
             props.forEach((k, v) -> builder.append(k).append("=").append(v).append('\n'));
@@ -152,43 +424,96 @@ public class Activator implements BundleActivator {
 
     }
     
-    private static class DelegatingPersistenceTracker extends ServiceTracker<PersistenceManager, PersistenceManager> {
+    /**
+     * Keeps the registration of the PersistenceManager service together with the resources created for it
+     */
+    private static class PersistenceRegistration {
 
-        private final String primaryName;
-        private final String secondaryName;
         private final LogHelper logHelper;
-        private final Pattern primaryPids;
-        private PersistenceManager primaryManager;
-        private PersistenceManager secondaryManager;
+        private final Deque<AutoCloseable> resources = new ArrayDeque<>();
         private ServiceRegistration<PersistenceManager> registration;
 
-        public DelegatingPersistenceTracker(BundleContext context,  SystemPropertiesHelper propertiesHelper, LogHelper logHelper) {
+        PersistenceRegistration(LogHelper logHelper) {
+            this.logHelper = logHelper;
+        }
+
+        void setRegistration(ServiceRegistration<PersistenceManager> registration) {
+            this.registration = registration;
+        }
+
+        void addResource(AutoCloseable resource) {
+            resources.push(resource);
+        }
+
+        void unregister() {
+            if (registration != null) {
+                registration.unregister();
+                registration = null;
+            }
+            // Resources are closed in the reverse order they were created
+            while (!resources.isEmpty()) {
+                try {
+                    resources.pop().close();
+                } catch (Exception ex) {
+                    logHelper.log(LogService.LOG_WARNING, "Failed to release resource", ex);
+                }
+            }
+        }
+    }
+    
+    private static class DelegatingPersistenceTracker extends ServiceTracker<PersistenceManager, PersistenceManager>
+            implements ConfigurationChangeListener {
+
+        private final LogHelper logHelper;
+        private final PidRouter router;
+        private final boolean metricsEnabled;
+        private final List<PersistenceMetrics> metrics = new ArrayList<>();
+        /**
+         * The persistence managers referenced by the routes, in the order they are probed
+         */
+        private final Map<String, PersistenceManager> managers = new LinkedHashMap<>();
+        private volatile DelegatedPersistenceManager delegatedManager;
+        private ServiceRegistration<PersistenceManager> registration;
+
+        public DelegatingPersistenceTracker(BundleContext context,  SystemPropertiesHelper propertiesHelper, PidRouter router, LogHelper logHelper) {
             super(context, PersistenceManager.class, null);
-            this.primaryName = propertiesHelper.getDelegatedPrimary();
-            this.secondaryName = propertiesHelper.getDelegatedSecondary();
-            this.primaryPids = Pattern.compile(propertiesHelper.getDelegatedPrimaryPids());
-            logHelper.log(LogService.LOG_DEBUG, "Primary PersistenceManager "+primaryName+" will hold PIDs matching: "+propertiesHelper.getDelegatedPrimaryPids(), null);
+            String routes = propertiesHelper.getDelegatedRoutes();
+            if (isNotEmpty(routes)) {
+                logHelper.log(LogService.LOG_DEBUG, "PIDs will be routed by the rules: "+routes, null);
+            }
+            else {
+                logHelper.log(LogService.LOG_DEBUG, "Primary PersistenceManager "+propertiesHelper.getDelegatedPrimary()+" will hold PIDs matching: "+propertiesHelper.getDelegatedPrimaryPids(), null);
+            }
+            this.router = router;
+            for (String name : router.getTargets()) {
+                managers.put(name, null);
+            }
+            this.metricsEnabled = propertiesHelper.isMetricsEnabled();
             this.logHelper = logHelper;
         }
         
         @Override
         public PersistenceManager addingService(ServiceReference<PersistenceManager> reference) {
             final String managerName = (String) reference.getProperty(PersistenceManager.PROPERTY_NAME);
-            final PersistenceManager service;
-            if (primaryManager == null && primaryName.equals(managerName)) {
-                logHelper.log(LogService.LOG_DEBUG, "Primary "+primaryName+" PersistenceManager added", null);
-                primaryManager = service = context.getService(reference);
-            }
-            else if (secondaryManager == null && secondaryName.equals(managerName)) {
-                logHelper.log(LogService.LOG_DEBUG, "Secondary "+primaryName+" PersistenceManager added", null);
-                secondaryManager = service = context.getService(reference);
-            }
-            else {
+            if (managerName == null || !managers.containsKey(managerName) || managers.get(managerName) != null) {
                 return null;
             }
+            logHelper.log(LogService.LOG_DEBUG, managerName+" PersistenceManager added", null);
+            final PersistenceManager service = context.getService(reference);
+            managers.put(managerName, service);
             
-            if(primaryManager!=null && secondaryManager!=null) {
-                DelegatedPersistenceManager delegated = new DelegatedPersistenceManager(primaryManager, secondaryManager, primaryPids);
+            if(!managers.containsValue(null)) {
+                PersistenceManager delegated;
+                if (metricsEnabled) {
+                    Map<String, PersistenceManager> measured = new LinkedHashMap<>();
+                    managers.forEach((name, manager) -> measured.put(name, withMetrics(manager, DELEGATED_PM_NAME + "." + name)));
+                    delegatedManager = new DelegatedPersistenceManager(measured, router);
+                    delegated = withMetrics(delegatedManager, DELEGATED_PM_NAME);
+                }
+                else {
+                    delegatedManager = new DelegatedPersistenceManager(managers, router);
+                    delegated = delegatedManager;
+                }
                 Hashtable<String, Object> props = new Hashtable<>();
                 props.put(Constants.SERVICE_DESCRIPTION, "Configuration Persistence Manager - Delegated");
                 props.put(Constants.SERVICE_RANKING, SERVICE_RANKING_VALUE+1);
@@ -198,24 +523,62 @@ public class Activator implements BundleActivator {
             }
             return service;
         }
+
+        private PersistenceManager withMetrics(PersistenceManager manager, Object name) {
+            PersistenceMetrics managerMetrics = registerMetrics(name, logHelper);
+            metrics.add(managerMetrics);
+            return MetricsPersistenceManager.wrap(manager, managerMetrics);
+        }
         
+        /**
+         * Makes the delegated persistence manager look the PID up again, as it was written behind its back
+         */
+        @Override
+        public void configurationChanged(String pid) {
+            DelegatedPersistenceManager manager = delegatedManager;
+            if (manager != null) {
+                manager.configurationChanged(pid);
+            }
+        }
+
         @Override
         public void removedService(ServiceReference<PersistenceManager> reference, PersistenceManager service) {
             if(this.registration!=null) {
                 this.registration.unregister();
                 this.registration = null;
             }
-            if(service == primaryManager) {
-                primaryManager = null;
-            }
-            else if(service == secondaryManager) {
-                secondaryManager = null;
+            if (this.delegatedManager != null) {
+                this.delegatedManager.close();
+                this.delegatedManager = null;
             }
+            metrics.forEach(PersistenceMetrics::close);
+            metrics.clear();
+            managers.replaceAll((name, manager) -> manager == service ? null : manager);
             context.ungetService(reference);
         }
         
     }
     
+    private static PersistenceMetrics registerMetrics(Object name, LogHelper logHelper) {
+        PersistenceMetrics metrics = new PersistenceMetrics(String.valueOf(name), logHelper);
+        metrics.register();
+        return metrics;
+    }
+    
+    private static Hashtable<String, Object> createBulkServiceProperties() {
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(Constants.SERVICE_DESCRIPTION, "Configuration Bulk Persistence - Database");
+        return props;
+    }
+
+    private static Hashtable<String, Object> createServiceProperties() {
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(Constants.SERVICE_DESCRIPTION, "Configuration Persistence Manager - Database");
+        props.put(Constants.SERVICE_RANKING, SERVICE_RANKING_VALUE);
+        props.put(PersistenceManager.PROPERTY_NAME, SQL_PM_NAME);
+        return props;
+    }
+    
     private static boolean isEmpty(String str) {
         return str == null || str.isEmpty();
     }
@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary counterpart of {@link PropertyConverter}. Each value starts with a tag identifying the element type and
+ * whether it is a single value, an array or a collection. Integral numbers are written as zig-zag varints, floating
+ * point numbers as their raw IEEE 754 bits and strings as UTF-8.
+ * <p>
+ * The values produced by {@link #decode(byte[])} have the same types as the ones produced by
+ * {@link PropertyConverter#convertFromString(String, String)}.
+ *
+ * @author jassuncao
+ *
+ */
+final class BinaryPropertyCodec {
+
+    static final int TAG_STRING = 1;
+
+    static final int TAG_INTEGER = 2;
+
+    static final int TAG_LONG = 3;
+
+    static final int TAG_FLOAT = 4;
+
+    static final int TAG_DOUBLE = 5;
+
+    static final int TAG_BYTE = 6;
+
+    static final int TAG_SHORT = 7;
+
+    static final int TAG_CHARACTER = 8;
+
+    static final int TAG_BOOLEAN = 9;
+
+    static final int TAG_OBJECT = 10;
+
+    static final int FLAG_PRIMITIVE = 0x10;
+
+    static final int FLAG_ARRAY = 0x20;
+
+    static final int FLAG_COLLECTION = 0x40;
+
+    private static final int TYPE_MASK = 0x0F;
+
+    private static final Map<Class<?>, Integer> type2Tag = new HashMap<>();
+
+    private static final Map<Integer, Class<?>> tag2Type = new HashMap<>();
+
+    static {
+        register(String.class, TAG_STRING);
+        register(Integer.class, TAG_INTEGER);
+        register(Long.class, TAG_LONG);
+        register(Float.class, TAG_FLOAT);
+        register(Double.class, TAG_DOUBLE);
+        register(Byte.class, TAG_BYTE);
+        register(Short.class, TAG_SHORT);
+        register(Character.class, TAG_CHARACTER);
+        register(Boolean.class, TAG_BOOLEAN);
+        register(Object.class, TAG_OBJECT);
+
+        register(Integer.TYPE, TAG_INTEGER | FLAG_PRIMITIVE);
+        register(Long.TYPE, TAG_LONG | FLAG_PRIMITIVE);
+        register(Float.TYPE, TAG_FLOAT | FLAG_PRIMITIVE);
+        register(Double.TYPE, TAG_DOUBLE | FLAG_PRIMITIVE);
+        register(Byte.TYPE, TAG_BYTE | FLAG_PRIMITIVE);
+        register(Short.TYPE, TAG_SHORT | FLAG_PRIMITIVE);
+        register(Character.TYPE, TAG_CHARACTER | FLAG_PRIMITIVE);
+        register(Boolean.TYPE, TAG_BOOLEAN | FLAG_PRIMITIVE);
+    }
+
+    private static void register(Class<?> type, int tag) {
+        type2Tag.put(type, tag);
+        tag2Type.put(tag, type);
+    }
+
+    private BinaryPropertyCodec() {
+    }
+
+    /**
+     * @return the encoded value or null if the value can't be represented in binary, like arrays holding null elements
+     *         or collections mixing different types
+     */
+    static byte[] encode(Object value) {
+        Output out = new Output();
+        return out.writeValue(value) ? out.toByteArray() : null;
+    }
+
+    static Object decode(byte[] bytes) {
+        Input in = new Input(bytes);
+        Object value = in.readValue();
+        in.checkEnd();
+        return value;
+    }
+
+    /**
+     * Encodes a whole dictionary as the number of properties followed by the name and value of each property
+     *
+     * @return the encoded properties or null if any of the values can't be represented in binary
+     */
+    static byte[] encodeProperties(Map<String, Object> properties) {
+        Output out = new Output();
+        out.writeVarInt(properties.size());
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            out.writeString(entry.getKey());
+            if (!out.writeValue(entry.getValue())) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static Hashtable<String, Object> decodeProperties(byte[] bytes) {
+        Input in = new Input(bytes);
+        int size = in.readVarInt();
+        Hashtable<String, Object> dictionary = new Hashtable<>(Math.max(size * 2, 11)); // NOSONAR
+        for (int i = 0; i < size; i++) {
+            String name = in.readString();
+            Object value = in.readValue();
+            if (value != null) {
+                dictionary.put(name, value);
+            }
+        }
+        in.checkEnd();
+        return dictionary;
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(64);
+        }
+
+        boolean writeValue(Object value) {
+            if (value == null) {
+                return false;
+            }
+            Class<?> clazz = value.getClass();
+            if (clazz.isArray()) {
+                Integer tag = type2Tag.get(clazz.getComponentType());
+                if (tag == null) {
+                    return false;
+                }
+                int length = Array.getLength(value);
+                write(tag | FLAG_ARRAY);
+                writeVarInt(length);
+                if ((tag & FLAG_PRIMITIVE) != 0) {
+                    writePrimitiveArray(tag & TYPE_MASK, value, length);
+                    return true;
+                }
+                for (int i = 0; i < length; i++) {
+                    Object element = Array.get(value, i);
+                    if (element == null || !writeSimple(tag, element)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+                Class<?> elementType = collection.isEmpty() ? Object.class : collectionElementType(collection);
+                Integer tag = elementType != null ? type2Tag.get(elementType) : null;
+                if (tag == null) {
+                    return false;
+                }
+                write(tag | FLAG_COLLECTION);
+                writeVarInt(collection.size());
+                for (Object element : collection) {
+                    if (!writeSimple(tag, element)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            Integer tag = type2Tag.get(clazz);
+            if (tag == null || tag == TAG_OBJECT) {
+                return false;
+            }
+            write(tag);
+            return writeSimple(tag, value);
+        }
+
+        private Class<?> collectionElementType(Collection<?> collection) {
+            Class<?> elementType = null;
+            for (Object element : collection) {
+                if (element == null || (elementType != null && elementType != element.getClass())) {
+                    return null;
+                }
+                elementType = element.getClass();
+            }
+            return elementType;
+        }
+
+        private boolean writeSimple(int tag, Object value) {
+            switch (tag & TYPE_MASK) {
+                case TAG_STRING:
+                    writeString((String) value);
+                    break;
+                case TAG_INTEGER:
+                    writeVarInt(zigZag((Integer) value));
+                    break;
+                case TAG_LONG:
+                    writeVarLong(zigZag((Long) value));
+                    break;
+                case TAG_FLOAT:
+                    writeFixedInt(Float.floatToRawIntBits((Float) value));
+                    break;
+                case TAG_DOUBLE:
+                    writeFixedLong(Double.doubleToRawLongBits((Double) value));
+                    break;
+                case TAG_BYTE:
+                    write((Byte) value);
+                    break;
+                case TAG_SHORT:
+                    writeVarInt(zigZag((Short) value));
+                    break;
+                case TAG_CHARACTER:
+                    writeVarInt((Character) value);
+                    break;
+                case TAG_BOOLEAN:
+                    write((Boolean) value ? 1 : 0);
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+
+        private void writePrimitiveArray(int type, Object array, int length) {
+            switch (type) {
+                case TAG_INTEGER:
+                    for (int v : (int[]) array) {
+                        writeVarInt(zigZag(v));
+                    }
+                    break;
+                case TAG_LONG:
+                    for (long v : (long[]) array) {
+                        writeVarLong(zigZag(v));
+                    }
+                    break;
+                case TAG_FLOAT:
+                    for (float v : (float[]) array) {
+                        writeFixedInt(Float.floatToRawIntBits(v));
+                    }
+                    break;
+                case TAG_DOUBLE:
+                    for (double v : (double[]) array) {
+                        writeFixedLong(Double.doubleToRawLongBits(v));
+                    }
+                    break;
+                case TAG_BYTE:
+                    write((byte[]) array, 0, length);
+                    break;
+                case TAG_SHORT:
+                    for (short v : (short[]) array) {
+                        writeVarInt(zigZag(v));
+                    }
+                    break;
+                case TAG_CHARACTER:
+                    for (char v : (char[]) array) {
+                        writeVarInt(v);
+                    }
+                    break;
+                case TAG_BOOLEAN:
+                    for (boolean v : (boolean[]) array) {
+                        write(v ? 1 : 0);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown type " + type);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeFixedInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        private void writeFixedLong(long value) {
+            writeFixedInt((int) (value >>> 32));
+            writeFixedInt((int) value);
+        }
+
+        private static int zigZag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static class Input {
+
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        Object readValue() {
+            int tag = readByte();
+            int type = tag & TYPE_MASK;
+            if ((tag & FLAG_ARRAY) != 0) {
+                int length = readLength();
+                int elementTag = tag & ~FLAG_ARRAY;
+                if ((elementTag & FLAG_PRIMITIVE) != 0) {
+                    return readPrimitiveArray(type, length);
+                }
+                Class<?> elementType = tag2Type.get(elementTag);
+                if (elementType == null) {
+                    throw new IllegalArgumentException("Unknown type tag " + tag);
+                }
+                Object array = Array.newInstance(elementType, length);
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, readSimple(type));
+                }
+                return array;
+            }
+            if ((tag & FLAG_COLLECTION) != 0) {
+                int length = readLength();
+                List<Object> collection = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    collection.add(readSimple(type));
+                }
+                return collection;
+            }
+            return readSimple(type);
+        }
+
+        private Object readSimple(int type) {
+            switch (type) {
+                case TAG_STRING:
+                    return readString();
+                case TAG_INTEGER:
+                    return unZigZag(readVarInt());
+                case TAG_LONG:
+                    return unZigZag(readVarLong());
+                case TAG_FLOAT:
+                    return Float.intBitsToFloat(readFixedInt());
+                case TAG_DOUBLE:
+                    return Double.longBitsToDouble(readFixedLong());
+                case TAG_BYTE:
+                    return (byte) readByte();
+                case TAG_SHORT:
+                    return (short) unZigZag(readVarInt());
+                case TAG_CHARACTER:
+                    return (char) readVarInt();
+                case TAG_BOOLEAN:
+                    return readByte() != 0;
+                default:
+                    throw new IllegalArgumentException("Unknown type tag " + type);
+            }
+        }
+
+        private Object readPrimitiveArray(int type, int length) {
+            switch (type) {
+                case TAG_INTEGER: {
+                    int[] array = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = unZigZag(readVarInt());
+                    }
+                    return array;
+                }
+                case TAG_LONG: {
+                    long[] array = new long[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = unZigZag(readVarLong());
+                    }
+                    return array;
+                }
+                case TAG_FLOAT: {
+                    float[] array = new float[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = Float.intBitsToFloat(readFixedInt());
+                    }
+                    return array;
+                }
+                case TAG_DOUBLE: {
+                    double[] array = new double[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = Double.longBitsToDouble(readFixedLong());
+                    }
+                    return array;
+                }
+                case TAG_BYTE: {
+                    ensureAvailable(length);
+                    byte[] array = new byte[length];
+                    System.arraycopy(bytes, position, array, 0, length);
+                    position += length;
+                    return array;
+                }
+                case TAG_SHORT: {
+                    short[] array = new short[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = (short) unZigZag(readVarInt());
+                    }
+                    return array;
+                }
+                case TAG_CHARACTER: {
+                    char[] array = new char[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = (char) readVarInt();
+                    }
+                    return array;
+                }
+                case TAG_BOOLEAN: {
+                    boolean[] array = new boolean[length];
+                    for (int i = 0; i < length; i++) {
+                        array[i] = readByte() != 0;
+                    }
+                    return array;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown type tag " + type);
+            }
+        }
+
+        String readString() {
+            int length = readLength();
+            ensureAvailable(length);
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Reads a length, rejecting values that couldn't possibly fit in the remaining bytes
+         */
+        private int readLength() {
+            int length = readVarInt();
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalArgumentException("Invalid length " + length + " at position " + position);
+            }
+            return length;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at position " + position);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at position " + position);
+        }
+
+        private int readFixedInt() {
+            ensureAvailable(4);
+            int value = ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16)
+                    | ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+
+        private long readFixedLong() {
+            long high = readFixedInt() & 0xFFFFFFFFL;
+            long low = readFixedInt() & 0xFFFFFFFFL;
+            return (high << 32) | low;
+        }
+
+        private int readByte() {
+            ensureAvailable(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        private void ensureAvailable(int count) {
+            if (count > bytes.length - position) {
+                throw new IllegalArgumentException("Unexpected end of data at position " + position);
+            }
+        }
+
+        void checkEnd() {
+            if (position != bytes.length) {
+                throw new IllegalArgumentException("Unexpected data at position " + position);
+            }
+        }
+
+        private static int unZigZag(int value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.cm.NotCachablePersistenceManager;
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.Constants;
+
+/**
+ * Write-through cache placed in front of another {@link PersistenceManager}.
+ * Stores and deletes are forwarded to the delegate and then applied to the cache. Reads are served from the cache
+ * whenever possible. The number of cached configurations is bounded and the least recently used entries are evicted
+ * first.
+ * <p>
+ * Configuration Admin doesn't add its own cache on top of this one, so configurations evicted after a change made by
+ * another process are reloaded from the delegate.
+ *
+ * @author jassuncao
+ *
+ */
+public class CachingPersistenceManager implements NotCachablePersistenceManager, ConfigurationChangeListener {
+
+    private final PersistenceManager delegate;
+
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, Dictionary<String, Object>> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Incremented on every write. Used to discard values loaded from the delegate while a write was in progress.
+     */
+    private long generation;
+
+    /**
+     * True when the cache holds every configuration known to the delegate.
+     */
+    private boolean complete;
+
+    /**
+     * PIDs cached by {@link #cacheStored(Map)} and not changed since. Storing them again with the same properties
+     * doesn't reach the delegate.
+     */
+    private final Set<String> storedInBulk = new HashSet<>();
+
+    public CachingPersistenceManager(PersistenceManager delegate, int maxEntries) {
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, Dictionary<String, Object>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Dictionary<String, Object>> eldest) {
+                if (size() > CachingPersistenceManager.this.maxEntries) {
+                    complete = false;
+                    storedInBulk.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String pid) {
+        synchronized (cache) {
+            if (cache.containsKey(pid)) {
+                hits.incrementAndGet();
+                return true;
+            }
+            if (complete) {
+                hits.incrementAndGet();
+                return false;
+            }
+        }
+        misses.incrementAndGet();
+        return delegate.exists(pid);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Dictionary load(String pid) throws IOException {
+        long loadGeneration;
+        synchronized (cache) {
+            Dictionary<String, Object> cached = cache.get(pid);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return Dictionaries.copy(cached);
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        Dictionary<?, ?> properties = delegate.load(pid);
+        if (properties != null && !properties.isEmpty()) {
+            synchronized (cache) {
+                if (loadGeneration == generation) {
+                    cache.put(pid, Dictionaries.copy(properties));
+                }
+            }
+        }
+        return properties;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getDictionaries() throws IOException {
+        long loadGeneration;
+        synchronized (cache) {
+            if (complete) {
+                hits.incrementAndGet();
+                List<Dictionary<String, Object>> dictionaries = new ArrayList<>(cache.size());
+                for (Dictionary<String, Object> dictionary : cache.values()) {
+                    dictionaries.add(Dictionaries.copy(dictionary));
+                }
+                return Dictionaries.enumeration(dictionaries);
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        return new CachingEnumeration(delegate.getDictionaries(), loadGeneration);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void store(String pid, Dictionary properties) throws IOException {
+        synchronized (cache) {
+            if (storedInBulk.remove(pid) && isSame(cache.get(pid), properties)) {
+                // Configuration Admin reloading a configuration just stored in bulk
+                hits.incrementAndGet();
+                return;
+            }
+        }
+        try {
+            delegate.store(pid, properties);
+        }
+        catch (IOException | RuntimeException ex) {
+            evict(pid);
+            throw ex;
+        }
+        synchronized (cache) {
+            generation++;
+            cache.put(pid, Dictionaries.copy(properties));
+        }
+    }
+
+    @Override
+    public void delete(String pid) throws IOException {
+        try {
+            delegate.delete(pid);
+        }
+        catch (IOException | RuntimeException ex) {
+            evict(pid);
+            throw ex;
+        }
+        synchronized (cache) {
+            generation++;
+            storedInBulk.remove(pid);
+            cache.remove(pid);
+        }
+    }
+
+    /**
+     * Removes a configuration from the cache, forcing the next access to go to the delegate.
+     */
+    public void evict(String pid) {
+        synchronized (cache) {
+            generation++;
+            complete = false;
+            storedInBulk.remove(pid);
+            cache.remove(pid);
+        }
+    }
+
+    @Override
+    public void configurationChanged(String pid) {
+        evict(pid);
+    }
+
+    /**
+     * Caches configurations written straight to the delegate, like those stored in bulk, so that Configuration Admin
+     * reloading them doesn't have to go to the delegate. The first store of each with the same properties is not
+     * written again.
+     */
+    public void cacheStored(Map<String, ? extends Dictionary<String, ?>> configurations) {
+        synchronized (cache) {
+            generation++;
+            for (Map.Entry<String, ? extends Dictionary<String, ?>> entry : configurations.entrySet()) {
+                cache.put(entry.getKey(), Dictionaries.copy(entry.getValue()));
+                storedInBulk.add(entry.getKey());
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingPersistenceManager[hits=" + getHitCount() + ", misses=" + getMissCount() + ", size="
+                + getSize() + ", maxSize=" + maxEntries + "]";
+    }
+
+    private void cacheAll(Map<String, Dictionary<String, Object>> dictionaries, long loadGeneration, boolean all) {
+        synchronized (cache) {
+            if (loadGeneration != generation) {
+                return;
+            }
+            for (Map.Entry<String, Dictionary<String, Object>> entry : dictionaries.entrySet()) {
+                cache.put(entry.getKey(), entry.getValue());
+            }
+            if (all && dictionaries.size() <= maxEntries) {
+                complete = true;
+            }
+        }
+    }
+
+    private static boolean isSame(Dictionary<?, ?> cached, Dictionary<?, ?> properties) {
+        if (cached == null || cached.size() != properties.size()) {
+            return false;
+        }
+        for (Enumeration<?> keys = properties.keys(); keys.hasMoreElements();) {
+            Object key = keys.nextElement();
+            if (!Objects.deepEquals(cached.get(key), properties.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes through the dictionaries returned by the delegate, collecting them as they are consumed. Once the
+     * enumeration is exhausted the collected dictionaries are added to the cache.
+     */
+    private class CachingEnumeration implements Enumeration<Object>, AutoCloseable {
+
+        private final Enumeration<?> dictionaries;
+        private final long loadGeneration;
+        private Map<String, Dictionary<String, Object>> collected = new LinkedHashMap<>();
+        private boolean cacheable = true;
+
+        CachingEnumeration(Enumeration<?> dictionaries, long loadGeneration) {
+            this.dictionaries = dictionaries;
+            this.loadGeneration = loadGeneration;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            boolean more = dictionaries.hasMoreElements();
+            if (!more && collected != null) {
+                cacheAll(collected, loadGeneration, cacheable);
+                collected = null;
+            }
+            return more;
+        }
+
+        @Override
+        public Object nextElement() {
+            Object element = dictionaries.nextElement();
+            if (collected != null) {
+                Object pid = ((Dictionary<?, ?>) element).get(Constants.SERVICE_PID);
+                if (pid instanceof String && collected.size() < maxEntries) {
+                    collected.put((String) pid, Dictionaries.copy((Dictionary<?, ?>) element));
+                }
+                else {
+                    cacheable = false;
+                }
+            }
+            return element;
+        }
+
+        /**
+         * Closes the enumeration of the delegate, for callers giving up before exhausting it
+         */
+        @Override
+        public void close() {
+            ParallelDictionaries.close(dictionaries);
+        }
+    }
+
+}
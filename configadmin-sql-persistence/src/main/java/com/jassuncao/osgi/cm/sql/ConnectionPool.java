@@ -0,0 +1,719 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * A bounded pool of physical connections obtained from another {@link DataSource}.
+ * Connections handed out by the pool are returned to it when closed. Idle connections above the minimum size are
+ * evicted after a configurable time and connections are optionally validated before being handed out. Each physical
+ * connection keeps its prepared statements open, so repeated statements are only parsed once by the database.
+ * <p>
+ * The auto commit mode and the isolation level of each physical connection are tracked by the pool. Reading them
+ * doesn't reach the database and setting them to the current value is skipped. Both must be changed through the
+ * {@link Connection} methods, not with SQL statements, for the tracking to hold.
+ *
+ * @author jassuncao
+ *
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    private static final String ERROR_CLOSING_CONNECTION = "Error closing pooled connection";
+
+    private final DataSource dataSource;
+
+    private final LogHelper logHelper;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    private final long acquireTimeoutMillis;
+
+    private final long idleTimeoutMillis;
+
+    private final int validationTimeoutSeconds;
+
+    private final int statementCacheSize;
+
+    private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
+
+    private final ScheduledExecutorService evictor;
+
+    private int totalConnections;
+
+    private boolean closed;
+
+    private long createdCount;
+
+    private long destroyedCount;
+
+    private long acquiredCount;
+
+    private long waitCount;
+
+    private long timeoutCount;
+
+    private long validationFailureCount;
+
+    private long waitTimeNanos;
+
+    private final AtomicLong statementHits = new AtomicLong();
+
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    private volatile int transactionIsolation = -1;
+
+    /**
+     * @param dataSource the DataSource used to create physical connections
+     * @param logHelper
+     * @param minSize the number of connections kept open even when idle
+     * @param maxSize the maximum number of connections open at any time
+     * @param acquireTimeoutMillis how long to wait for a connection when all are in use
+     * @param idleTimeoutMillis how long a connection may stay idle before being closed. 0 disables eviction
+     * @param validationTimeoutSeconds the timeout used to validate connections before use. 0 disables validation
+     * @param statementCacheSize the number of prepared statements kept open for each connection. 0 disables caching
+     */
+    public ConnectionPool(DataSource dataSource, LogHelper logHelper, int minSize, int maxSize,
+            long acquireTimeoutMillis, long idleTimeoutMillis, int validationTimeoutSeconds, int statementCacheSize) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.dataSource = dataSource;
+        this.logHelper = logHelper;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "osgi-cm-sql-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = idleTimeoutMillis > 0 ? Math.min(idleTimeoutMillis, 30000L) : 30000L;
+        this.evictor.scheduleWithFixedDelay(this::evictIdleConnections, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        boolean waited = false;
+        while (true) {
+            PooledConnection pooled;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    pooled = idleConnections.pollFirst();
+                    if (pooled != null || totalConnections < maxSize) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeoutCount++;
+                        throw new SQLException("Timeout waiting for a connection. All " + maxSize + " connections are in use");
+                    }
+                    waited = true;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", ex);
+                    }
+                }
+                if (pooled == null) {
+                    totalConnections++;
+                }
+            }
+            if (pooled == null) {
+                pooled = createConnection();
+            }
+            else if (!validate(pooled)) {
+                continue;
+            }
+            synchronized (this) {
+                acquiredCount++;
+                if (waited) {
+                    waitCount++;
+                    waitTimeNanos += System.nanoTime() - start;
+                }
+            }
+            return pooled.newHandle();
+        }
+    }
+
+    /**
+     * Sets the isolation level applied once to each new physical connection. Connections returned to the pool keep
+     * the isolation level they were left with.
+     *
+     * @param level one of the {@link Connection} TRANSACTION_ constants, or -1 to keep the driver default
+     */
+    public void setTransactionIsolation(int level) {
+        this.transactionIsolation = level;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The connection pool only supports the configured credentials");
+    }
+
+    /**
+     * Closes all idle connections. Connections still in use are closed when returned to the pool.
+     */
+    @Override
+    public void close() {
+        List<PooledConnection> toClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        for (PooledConnection pooled : toClose) {
+            destroy(pooled);
+        }
+        logHelper.log(LogService.LOG_INFO, "Connection pool closed. " + this, null);
+    }
+
+    public synchronized int getActiveCount() {
+        return totalConnections - idleConnections.size();
+    }
+
+    public synchronized int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    public synchronized long getDestroyedCount() {
+        return destroyedCount;
+    }
+
+    public synchronized long getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public synchronized long getValidationFailureCount() {
+        return validationFailureCount;
+    }
+
+    public synchronized long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimeNanos);
+    }
+
+    /**
+     * @return how many times a prepared statement was reused from the statement cache
+     */
+    public long getStatementCacheHitCount() {
+        return statementHits.get();
+    }
+
+    /**
+     * @return how many times a statement had to be prepared by the database
+     */
+    public long getStatementCacheMissCount() {
+        return statementMisses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionPool[active=" + (totalConnections - idleConnections.size()) + ", idle=" + idleConnections.size()
+                + ", created=" + createdCount + ", destroyed=" + destroyedCount + ", acquired=" + acquiredCount
+                + ", waits=" + waitCount + ", timeouts=" + timeoutCount + ", validationFailures="
+                + validationFailureCount + ", statementHits=" + statementHits + ", statementMisses=" + statementMisses
+                + "]";
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        try {
+            Connection connection = dataSource.getConnection();
+            synchronized (this) {
+                createdCount++;
+            }
+            PooledConnection pooled = new PooledConnection(connection);
+            int level = transactionIsolation;
+            if (level >= 0) {
+                try {
+                    pooled.setTransactionIsolation(level);
+                }
+                catch (SQLException | RuntimeException ex) {
+                    destroy(pooled);
+                    throw ex;
+                }
+            }
+            return pooled;
+        }
+        catch (SQLException | RuntimeException ex) {
+            synchronized (this) {
+                totalConnections--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    private boolean validate(PooledConnection pooled) {
+        if (validationTimeoutSeconds <= 0) {
+            return true;
+        }
+        boolean valid;
+        try {
+            valid = pooled.connection.isValid(validationTimeoutSeconds);
+        }
+        catch (SQLException ex) {
+            valid = false;
+        }
+        if (!valid) {
+            logHelper.log(LogService.LOG_DEBUG, "Discarding invalid pooled connection", null);
+            synchronized (this) {
+                validationFailureCount++;
+            }
+            discard(pooled);
+        }
+        return valid;
+    }
+
+    private void release(PooledConnection pooled) {
+        boolean reusable;
+        try {
+            Connection connection = pooled.connection;
+            reusable = !connection.isClosed();
+            if (reusable && !pooled.getAutoCommit()) {
+                connection.rollback();
+                pooled.setAutoCommit(true);
+            }
+        }
+        catch (SQLException ex) {
+            logHelper.log(LogService.LOG_DEBUG, "Failed to reset pooled connection", ex);
+            reusable = false;
+        }
+        synchronized (this) {
+            if (reusable && !closed) {
+                pooled.lastUsed = System.currentTimeMillis();
+                idleConnections.addFirst(pooled);
+                notifyAll();
+                return;
+            }
+        }
+        discard(pooled);
+    }
+
+    private void discard(PooledConnection pooled) {
+        synchronized (this) {
+            totalConnections--;
+            notifyAll();
+        }
+        destroy(pooled);
+    }
+
+    private void destroy(PooledConnection pooled) {
+        synchronized (this) {
+            destroyedCount++;
+        }
+        try {
+            pooled.connection.close();
+        }
+        catch (SQLException ex) {
+            logHelper.log(LogService.LOG_DEBUG, ERROR_CLOSING_CONNECTION, ex);
+        }
+    }
+
+    private void evictIdleConnections() {
+        List<PooledConnection> evicted = new ArrayList<>();
+        int missing;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (idleTimeoutMillis > 0) {
+                long threshold = System.currentTimeMillis() - idleTimeoutMillis;
+                // The oldest connections are at the end of the deque
+                Iterator<PooledConnection> it = idleConnections.descendingIterator();
+                while (it.hasNext() && totalConnections - evicted.size() > minSize) {
+                    PooledConnection pooled = it.next();
+                    if (pooled.lastUsed > threshold) {
+                        break;
+                    }
+                    it.remove();
+                    evicted.add(pooled);
+                }
+                totalConnections -= evicted.size();
+            }
+            missing = minSize - totalConnections;
+            totalConnections += Math.max(missing, 0);
+        }
+        for (PooledConnection pooled : evicted) {
+            destroy(pooled);
+        }
+        for (int i = 0; i < missing; i++) {
+            try {
+                PooledConnection pooled = createConnection();
+                synchronized (this) {
+                    pooled.lastUsed = System.currentTimeMillis();
+                    idleConnections.addLast(pooled);
+                    notifyAll();
+                }
+            }
+            catch (SQLException | RuntimeException ex) {
+                logHelper.log(LogService.LOG_WARNING, "Failed to open pooled connection", ex);
+                synchronized (this) {
+                    totalConnections -= missing - i - 1;
+                }
+                break;
+            }
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private class PooledConnection {
+
+        private final Connection connection;
+
+        private final Map<String, CachedStatement> statements;
+
+        private long lastUsed;
+
+        /**
+         * The auto commit mode of the physical connection, or null until read from the driver
+         */
+        private Boolean autoCommit;
+
+        /**
+         * The isolation level of the physical connection, or -1 until read from the driver
+         */
+        private int isolation = -1;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        eldest.getValue().evict();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        boolean getAutoCommit() throws SQLException {
+            if (autoCommit == null) {
+                autoCommit = connection.getAutoCommit();
+            }
+            return autoCommit;
+        }
+
+        void setAutoCommit(boolean value) throws SQLException {
+            if (autoCommit != null && autoCommit == value) {
+                return;
+            }
+            // Unknown until the driver accepts the change
+            autoCommit = null;
+            connection.setAutoCommit(value);
+            autoCommit = value;
+        }
+
+        int getTransactionIsolation() throws SQLException {
+            if (isolation < 0) {
+                isolation = connection.getTransactionIsolation();
+            }
+            return isolation;
+        }
+
+        void setTransactionIsolation(int level) throws SQLException {
+            if (isolation == level) {
+                return;
+            }
+            isolation = -1;
+            connection.setTransactionIsolation(level);
+            isolation = level;
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new ConnectionHandle(this));
+        }
+
+        PreparedStatement prepareStatement(Connection handle, String sql) throws SQLException {
+            if (statementCacheSize <= 0) {
+                return connection.prepareStatement(sql);
+            }
+            CachedStatement cached = statements.get(sql);
+            if (cached == null) {
+                statementMisses.incrementAndGet();
+                cached = new CachedStatement(connection.prepareStatement(sql));
+                statements.put(sql, cached);
+            }
+            else if (cached.inUse) {
+                // The same SQL is already in use through this connection. Don't cache the new statement
+                statementMisses.incrementAndGet();
+                return connection.prepareStatement(sql);
+            }
+            else {
+                statementHits.incrementAndGet();
+            }
+            return cached.newHandle(handle);
+        }
+    }
+
+    /**
+     * A prepared statement kept open for the lifetime of a physical connection
+     */
+    private static class CachedStatement {
+
+        private final PreparedStatement statement;
+
+        private boolean inUse;
+
+        private boolean evicted;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement newHandle(Connection connectionHandle) {
+            inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, new StatementHandle(this, connectionHandle));
+        }
+
+        void release() throws SQLException {
+            inUse = false;
+            if (evicted) {
+                statement.close();
+            }
+            else {
+                statement.clearParameters();
+                statement.clearBatch();
+            }
+        }
+
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                try {
+                    statement.close();
+                }
+                catch (SQLException ex) { // NOSONAR
+                    // Ignored. The statement is closed with the connection anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * The statement seen by the pool users. Closing it returns the statement to the cache.
+     */
+    private static class StatementHandle implements InvocationHandler {
+
+        private final CachedStatement cached;
+
+        private final Connection connectionHandle;
+
+        private boolean released;
+
+        StatementHandle(CachedStatement cached, Connection connectionHandle) {
+            this.cached = cached;
+            this.connectionHandle = connectionHandle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        cached.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return released || cached.statement.isClosed();
+                case "getConnection":
+                    return connectionHandle;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + cached.statement + "]";
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                return method.invoke(cached.statement, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * The connection seen by the pool users. Closing it returns the physical connection to the pool.
+     */
+    private class ConnectionHandle implements InvocationHandler {
+
+        private final PooledConnection pooled;
+
+        private boolean released;
+
+        ConnectionHandle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.connection + "]";
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("Connection is closed");
+            }
+            switch (method.getName()) {
+                case "prepareStatement":
+                    if (args.length == 1) {
+                        return pooled.prepareStatement((Connection) proxy, (String) args[0]);
+                    }
+                    break;
+                case "getAutoCommit":
+                    return pooled.getAutoCommit();
+                case "setAutoCommit":
+                    pooled.setAutoCommit((Boolean) args[0]);
+                    return null;
+                case "getTransactionIsolation":
+                    return pooled.getTransactionIsolation();
+                case "setTransactionIsolation":
+                    pooled.setTransactionIsolation((Integer) args[0]);
+                    return null;
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+}
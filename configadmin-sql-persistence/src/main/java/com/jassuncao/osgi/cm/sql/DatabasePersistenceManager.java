@@ -16,31 +16,59 @@
 package com.jassuncao.osgi.cm.sql;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.DataSource;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.osgi.service.log.LogService;
 
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
 /**
  * @author jassuncao
  *
  */
-public class DatabasePersistenceManager implements PersistenceManager {
+public class DatabasePersistenceManager implements PersistenceManager, BulkPersistenceManager, ConfigurationChangeListener {
 
+    /**
+     * How the configurations are laid out in the table
+     */
+    public enum Layout {
+        /**
+         * One row for each property of a configuration
+         */
+        ROWS,
+        /**
+         * One row for each configuration, with all the properties encoded in a single column
+         */
+        DOCUMENT
+    }
 
     private static final String ERROR_CLOSING_CONNECTION = "Error closing connection";
 
@@ -50,6 +78,18 @@ public class DatabasePersistenceManager implements PersistenceManager {
 
     private static final String ERROR_LOADING_PROPERTIES_FROM_DATABASE = "Error loading properties from database";
 
+    private static final int DEFAULT_FETCH_SIZE = 100;
+
+    private static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final String SQLSTATE_SERIALIZATION_FAILURE = "40001";
+
+    private static final String SQLSTATE_DEADLOCK = "40P01";
+
+    private static final String SQLSTATE_INTEGRITY_VIOLATION_CLASS = "23";
+
+    private static final int MAX_RECENT_WRITES = 1000;
+
     private final DataSource datasource;
 
     private final LogHelper logHelper;
@@ -60,22 +100,308 @@ public class DatabasePersistenceManager implements PersistenceManager {
 
     private final String schema;
 
+    private String existsSql;
+
+    private String selectPropertiesSql;
+
+    private String selectAllPropertiesSql;
+
+    private String insertPropertySql;
+
+    private String updatePropertySql;
+
+    private final String deletePropertySql;
+
+    private final String deletePropertiesSql;
+
+    private String selectAllPropertiesOrderedSql;
+
+    private final String revisionTable;
+
+    private final String revisionSequenceTable;
+
+    private final String bumpSequenceSql;
+
+    private final String selectSequenceSql;
+
+    private final String updateRevisionSql;
+
+    private final String insertRevisionSql;
+
+    private final String selectChangesSql;
+
+    private final String versionTable;
+
+    private final String selectVersionSql;
+
+    private final String selectAllVersionsSql;
+
+    private final String insertVersionSql;
+
+    private final String updateVersionSql;
+
+    private String selectPayloadSql;
+
+    private String selectAllPayloadsSql;
+
+    private String selectAllPayloadsOrderedSql;
+
+    private String insertPayloadSql;
+
+    private String updatePayloadSql;
+
+    private String upsertPropertySql;
+
+    private String upsertPayloadSql;
+
+    private String upsertRevisionSql;
+
+    private SqlDialect dialect = new SqlDialect();
+
+    private boolean dialectConfigured;
+
+    private Layout layout = Layout.ROWS;
+
+    private boolean binaryEncoding;
+
+    /**
+     * True when the table has the binary column, which is then read and written even with the binary encoding
+     * disabled, so that values written in binary can still be read
+     */
+    private boolean binaryColumn;
+
+    private String migrationTable;
+
+    private boolean streaming;
+
+    private boolean revisionTracking;
+
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    private PersistenceMetrics metrics;
+
+    private boolean optimistic;
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    private final LongAdder conflicts = new LongAdder();
+
+    /**
+     * Queues the writes of this node that bump the revision, so that they don't conflict with each other on the
+     * sequence row. Only writes from other nodes are left to conflict and retry.
+     */
+    private final ReentrantLock revisionLock = new ReentrantLock();
+
+    private DataSource replica;
+
+    private long readYourWritesNanos;
+
+    /**
+     * The System.nanoTime() until which reads of a recently changed PID go to the primary database
+     */
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+
+    /**
+     * The System.nanoTime() until which reads of all configurations go to the primary database
+     */
+    private volatile long allWritesDeadline = System.nanoTime();
+
     public DatabasePersistenceManager(DataSource datasource, LogHelper logHelper, String tableName, String schema) {
         this.datasource = datasource;
         this.logHelper = logHelper;
         this.tableName = tableName;
         this.schema = schema;
-        this.qualifiedTable = schema == null || schema.trim().isEmpty() ? tableName : schema + "." + tableName;
+        this.qualifiedTable = qualify(schema, tableName);
+        // The statements are built once so that pooled connections can reuse the prepared statements
+        this.deletePropertySql = "DELETE FROM " + qualifiedTable + " WHERE pid = ? AND prop_name = ?";
+        this.deletePropertiesSql = "DELETE FROM " + qualifiedTable + " WHERE pid = ?";
+        this.revisionTable = qualify(schema, tableName + "_rev");
+        this.revisionSequenceTable = qualify(schema, tableName + "_rev_seq");
+        this.bumpSequenceSql = "UPDATE " + revisionSequenceTable + " SET revision = revision + 1 WHERE id = 1";
+        this.selectSequenceSql = "SELECT revision FROM " + revisionSequenceTable + " WHERE id = 1";
+        this.updateRevisionSql = "UPDATE " + revisionTable + " SET revision = ? WHERE pid = ?";
+        this.insertRevisionSql = "INSERT INTO " + revisionTable + " (pid, revision) VALUES (?, ?)";
+        this.selectChangesSql = "SELECT pid, revision FROM " + revisionTable + " WHERE revision > ? ORDER BY revision";
+        this.versionTable = qualify(schema, tableName + "_ver");
+        this.selectVersionSql = "SELECT version FROM " + versionTable + " WHERE pid = ?";
+        this.selectAllVersionsSql = "SELECT pid, version FROM " + versionTable;
+        this.insertVersionSql = "INSERT INTO " + versionTable + " (pid, version) VALUES (?, ?)";
+        this.updateVersionSql = "UPDATE " + versionTable + " SET version = ? WHERE pid = ? AND version = ?";
+        buildStatements();
+    }
+
+    /**
+     * Builds the statements that depend on the dialect or on the binary columns being in use
+     */
+    private void buildStatements() {
+        this.existsSql = dialect.limitToOneRow("SELECT 1 FROM " + qualifiedTable + " WHERE pid = ?");
+        String propBin = binaryColumn ? ", prop_bin" : "";
+        String payloadBin = binaryColumn ? ", payload_bin" : "";
+        String extraParameter = binaryColumn ? ", ?" : "";
+        this.selectPropertiesSql = "SELECT prop_name, prop_type, prop_value" + propBin + " FROM " + qualifiedTable + " WHERE pid = ?";
+        this.selectAllPropertiesSql = "SELECT pid, prop_name, prop_type, prop_value" + propBin + " FROM " + qualifiedTable;
+        this.selectAllPropertiesOrderedSql = selectAllPropertiesSql + " ORDER BY pid";
+        this.insertPropertySql = "INSERT INTO " + qualifiedTable + " (pid, prop_name, prop_type, prop_value" + propBin
+                + ") VALUES (?, ?, ?, ?" + extraParameter + ")";
+        this.updatePropertySql = "UPDATE " + qualifiedTable + " SET prop_type = ?, prop_value = ?"
+                + (binaryColumn ? ", prop_bin = ?" : "") + " WHERE pid = ? AND prop_name = ?";
+        this.selectPayloadSql = "SELECT payload" + payloadBin + " FROM " + qualifiedTable + " WHERE pid = ?";
+        this.selectAllPayloadsSql = "SELECT pid, payload" + payloadBin + " FROM " + qualifiedTable;
+        this.selectAllPayloadsOrderedSql = selectAllPayloadsSql + " ORDER BY pid";
+        this.insertPayloadSql = "INSERT INTO " + qualifiedTable + " (pid, payload" + payloadBin + ") VALUES (?, ?"
+                + extraParameter + ")";
+        this.updatePayloadSql = "UPDATE " + qualifiedTable + " SET payload = ?"
+                + (binaryColumn ? ", payload_bin = ?" : "") + " WHERE pid = ?";
+        this.upsertPropertySql = dialect.upsertSql(qualifiedTable, Arrays.asList("pid", "prop_name"),
+                binaryColumn ? Arrays.asList("prop_type", "prop_value", "prop_bin") : Arrays.asList("prop_type", "prop_value"));
+        this.upsertPayloadSql = dialect.upsertSql(qualifiedTable, Collections.singletonList("pid"),
+                binaryColumn ? Arrays.asList("payload", "payload_bin") : Collections.singletonList("payload"));
+        this.upsertRevisionSql = dialect.upsertSql(revisionTable, Collections.singletonList("pid"),
+                Collections.singletonList("revision"));
+    }
+
+    private static String qualify(String schema, String table) {
+        return schema == null || schema.trim().isEmpty() ? table : schema + "." + table;
+    }
+
+    /**
+     * When enabled {@link #getDictionaries()} reads the configurations from an open cursor, one at a time, instead of
+     * loading the whole table into memory.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * When enabled, every change bumps the revision of the PID in a revision table, in the same transaction. Other
+     * nodes sharing the database use {@link #loadChangesSince(long)} to find the PIDs changed since they last looked.
+     */
+    public void setRevisionTracking(boolean revisionTracking) {
+        this.revisionTracking = revisionTracking;
+    }
+
+    /**
+     * Selects the table layout. Must be called before {@link #init()}.
+     */
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * When enabled, values are written with {@link BinaryPropertyCodec} to a binary column added to the table, instead
+     * of the text columns. Each value is kept in one of them only, and read from whichever holds it. When disabled, the
+     * values still kept in binary are read, and written as text the next time they change.
+     */
+    public void setBinaryEncoding(boolean binaryEncoding) {
+        this.binaryEncoding = binaryEncoding;
+        this.binaryColumn = binaryEncoding;
+        buildStatements();
+    }
+
+    /**
+     * When enabled, writes run at READ_COMMITTED and are serialized per PID by a compare-and-set on a version kept in
+     * the table {@code <table>_ver}, instead of running at REPEATABLE_READ. Reads don't change the isolation level.
+     * With the {@link Layout#ROWS} layout the properties of a PID are read between two reads of its version, and read
+     * again when a write committed in between. All nodes writing to the same table must use the same mode.
+     */
+    public void setOptimisticConcurrency(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    /**
+     * The number of times an optimistic write is retried after a conflict before failing
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the isolation level used by the transactions of this manager. Connections already at this level are used
+     *         as they are
+     */
+    public int getTransactionIsolation() {
+        return optimistic ? Connection.TRANSACTION_READ_COMMITTED : Connection.TRANSACTION_REPEATABLE_READ;
+    }
+
+    /**
+     * Sends {@link #exists(String)}, {@link #load(String)} and {@link #getDictionaries()} to a read replica. Writes
+     * and the revision tracking stay on the primary database. After a change made by this process, or reported with
+     * {@link #configurationChanged(String)}, the PID is read from the primary database for a while, so the change is
+     * seen even when the replica lags behind.
+     *
+     * @param replica the DataSource of the read replica, or null to read from the primary database
+     * @param readYourWritesMillis how long a changed PID keeps being read from the primary database
+     */
+    public void setReplica(DataSource replica, long readYourWritesMillis) {
+        this.replica = replica;
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+    }
+
+    /**
+     * Sets the SQL dialect instead of detecting it from the database in {@link #init()}
+     */
+    public void setDialect(SqlDialect dialect) {
+        this.dialect = dialect;
+        this.dialectConfigured = true;
+        buildStatements();
+    }
+
+    public SqlDialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * With the {@link Layout#DOCUMENT} layout, copies the configurations found in this table, laid out one row per
+     * property, when the table in use is still empty.
+     */
+    public void setMigrationTable(String migrationTable) {
+        this.migrationTable = migrationTable;
+    }
+
+    /**
+     * The number of rows fetched from the database at a time while streaming
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Records the time waiting for connections and converting values in the given metrics. Nothing is recorded when
+     * null, the default.
+     */
+    public void setMetrics(PersistenceMetrics metrics) {
+        this.metrics = metrics;
     }
 
     public void init() {
         Connection connection = null;
         try {
-            connection = datasource.getConnection();
-            boolean exists = tableExistsGuess(connection);
+            connection = getConnection();
+            if (!dialectConfigured) {
+                dialect = SqlDialect.detect(connection.getMetaData());
+                buildStatements();
+                logHelper.log(LogService.LOG_DEBUG, "Using SQL dialect " + dialect, null);
+            }
+            boolean exists = tableExistsGuess(connection, tableName);
             if (!exists) {
                 createTable(connection);
             }
+            if (binaryEncoding) {
+                addBinaryColumn(connection);
+            }
+            else if (columnExists(connection, qualifiedTable, layout == Layout.DOCUMENT ? "payload_bin" : "prop_bin")) {
+                binaryColumn = true;
+                buildStatements();
+            }
+            if (layout == Layout.DOCUMENT && migrationTable != null && !migrationTable.isEmpty()) {
+                migrateRows(connection);
+            }
+            if (revisionTracking && !tableExistsGuess(connection, tableName + "_rev")) {
+                createRevisionTables(connection);
+            }
+            if (optimistic && !tableExistsGuess(connection, tableName + "_ver")) {
+                createVersionTable(connection);
+            }
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_WARNING, "Failed to create config table. Probably it alread exists", ex);
         } finally {
@@ -83,12 +409,12 @@ public class DatabasePersistenceManager implements PersistenceManager {
         }
     }
 
-    private boolean tableExistsGuess(Connection connection) {
+    private boolean tableExistsGuess(Connection connection, String table) {
         boolean res = false;
-        logHelper.log(LogService.LOG_DEBUG, "Checking if config table (" + qualifiedTable + ") exists", null);
+        logHelper.log(LogService.LOG_DEBUG, "Checking if table (" + qualify(schema, table) + ") exists", null);
         try {
             DatabaseMetaData metaData = connection.getMetaData();
-            try(ResultSet tables = metaData.getTables(null, schema, tableName, null)){
+            try(ResultSet tables = metaData.getTables(null, schema, table, null)){
                 res = tables.next();
             }
         } catch (SQLException ex) {
@@ -102,8 +428,16 @@ public class DatabasePersistenceManager implements PersistenceManager {
         Statement statement = null;
         try {
             statement = connection.createStatement();
-            String createStmt = "CREATE TABLE " + qualifiedTable
-                    + " (pid VARCHAR NOT NULL, prop_name VARCHAR NOT NULL, prop_type VARCHAR NOT NULL, prop_value VARCHAR, CONSTRAINT pk_"+tableName+" PRIMARY KEY (pid, prop_name))";
+            String createStmt;
+            String keyType = dialect.keyType();
+            if (layout == Layout.DOCUMENT) {
+                createStmt = "CREATE TABLE " + qualifiedTable + " (pid " + keyType + " NOT NULL, payload "
+                        + dialect.textType() + ", CONSTRAINT pk_"+tableName+" PRIMARY KEY (pid))";
+            } else {
+                createStmt = "CREATE TABLE " + qualifiedTable + " (pid " + keyType + " NOT NULL, prop_name " + keyType
+                        + " NOT NULL, prop_type " + dialect.typeCodeType() + " NOT NULL, prop_value " + dialect.textType()
+                        + ", CONSTRAINT pk_"+tableName+" PRIMARY KEY (pid, prop_name))";
+            }
             statement.executeUpdate(createStmt);
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_WARNING, "Failed to create config table. Probably it already exists", ex);
@@ -112,6 +446,147 @@ public class DatabasePersistenceManager implements PersistenceManager {
         }
     }
 
+    private void createRevisionTables(Connection connection) {
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            statement.executeUpdate("CREATE TABLE " + revisionTable + " (pid " + dialect.keyType()
+                    + " NOT NULL, revision BIGINT NOT NULL, CONSTRAINT pk_" + tableName + "_rev PRIMARY KEY (pid))");
+            // Covers the query looking for changes, which reads the PIDs by revision
+            statement.executeUpdate(dialect.createIndexSql("ix_" + tableName + "_rev", revisionTable,
+                    Collections.singletonList("revision"), Collections.singletonList("pid")));
+            statement.executeUpdate("CREATE TABLE " + revisionSequenceTable
+                    + " (id INT NOT NULL, revision BIGINT NOT NULL, CONSTRAINT pk_" + tableName + "_rev_seq PRIMARY KEY (id))");
+            statement.executeUpdate("INSERT INTO " + revisionSequenceTable + " (id, revision) VALUES (1, 0)");
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to create revision tables. Probably they already exist", ex);
+        } finally {
+            closeStatement(statement);
+        }
+    }
+
+    private void createVersionTable(Connection connection) {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE " + versionTable + " (pid " + dialect.keyType()
+                    + " NOT NULL, version BIGINT NOT NULL, CONSTRAINT pk_" + tableName + "_ver PRIMARY KEY (pid))");
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to create version table. Probably it already exists", ex);
+        }
+    }
+
+    /**
+     * Checks the number of shards against the one recorded in the table {@code <name>_shards} of this database,
+     * recording it when there is none. A different number of shards would look up PIDs in other shards and hide the
+     * configurations already stored.
+     *
+     * @param name the table name the shards are named after
+     * @param shards the number of shards. Without sharding nothing is recorded, but an existing record is checked
+     * @throws IllegalStateException if a different number of shards was recorded
+     */
+    public void checkShardCount(String name, int shards) throws SQLException {
+        String shardsTable = qualify(schema, name + "_shards");
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            Integer recorded = null;
+            boolean exists = true;
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT shards FROM " + shardsTable + " WHERE id = 1")) {
+                if (rs.next()) {
+                    recorded = rs.getInt(1);
+                }
+            } catch (SQLException ex) {
+                exists = false;
+            }
+            if (recorded != null && recorded != shards) {
+                throw new IllegalStateException("Configurations are stored in " + recorded + " shards, recorded in "
+                        + shardsTable + ", but " + shards + " are configured");
+            }
+            if (recorded != null || shards < 2) {
+                return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                if (!exists) {
+                    statement.executeUpdate("CREATE TABLE " + shardsTable + " (id INTEGER NOT NULL, shards INTEGER NOT NULL, CONSTRAINT pk_"
+                            + name + "_shards PRIMARY KEY (id))");
+                }
+                statement.executeUpdate("INSERT INTO " + shardsTable + " (id, shards) VALUES (1, " + shards + ")");
+            }
+            logHelper.log(LogService.LOG_INFO, "Recorded " + shards + " shards in " + shardsTable, null);
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    private void addBinaryColumn(Connection connection) {
+        String column = layout == Layout.DOCUMENT ? "payload_bin" : "prop_bin";
+        if (columnExists(connection, qualifiedTable, column)) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("ALTER TABLE " + qualifiedTable + " ADD COLUMN " + column + " " + dialect.binaryType());
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to add column " + column + " to the config table", ex);
+        }
+    }
+
+    private boolean columnExists(Connection connection, String table, String column) {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT " + column + " FROM " + table + " WHERE 1 = 0")) {
+            return true;
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_DEBUG, "Column " + column + " not found in " + table, null);
+            return false;
+        }
+    }
+
+    /**
+     * Copies the configurations from a table laid out one row per property into this table, in a single transaction.
+     * Nothing is copied if this table already holds configurations.
+     */
+    private void migrateRows(Connection connection) throws SQLException {
+        if (!tableExistsGuess(connection, migrationTable)) {
+            logHelper.log(LogService.LOG_WARNING, "Table to migrate (" + qualify(schema, migrationTable) + ") not found", null);
+            return;
+        }
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.setMaxRows(1);
+                try (ResultSet rs = statement.executeQuery(dialect.limitToOneRow("SELECT 1 FROM " + qualifiedTable))) {
+                    if (rs.next()) {
+                        return;
+                    }
+                }
+            }
+            DatabasePersistenceManager rows = new DatabasePersistenceManager(datasource, logHelper, migrationTable, schema);
+            rows.setBinaryEncoding(columnExists(connection, qualify(schema, migrationTable), "prop_bin"));
+            Map<String, Dictionary<String, Object>> dictionaries = rows.loadAllProperties(connection);
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            try (PreparedStatement insertStatement = connection.prepareStatement(insertPayloadSql)) {
+                for (Map.Entry<String, Dictionary<String, Object>> entry : dictionaries.entrySet()) {
+                    SortedMap<String, Object> sorted = sortProperties(entry.getValue());
+                    byte[] binaryPayload = encodeBinaryPayload(sorted);
+                    insertStatement.setString(1, entry.getKey());
+                    setValueParameters(insertStatement, 2, binaryPayload == null ? encodePayload(sorted) : null, binaryPayload);
+                    insertStatement.addBatch();
+                }
+                insertStatement.executeBatch();
+            }
+            connection.commit();
+            logHelper.log(LogService.LOG_INFO, "Migrated " + dictionaries.size() + " configurations from " + qualify(schema, migrationTable), null);
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_ERROR, "Failed to migrate configurations from " + qualify(schema, migrationTable), ex);
+            rollback(connection);
+        } finally {
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
     @Override
     public boolean exists(String pid) {
         logHelper.log(LogService.LOG_DEBUG, "Checking for a configuration for PID " + pid, null);
@@ -119,13 +594,12 @@ public class DatabasePersistenceManager implements PersistenceManager {
         PreparedStatement countStatement = null;
         boolean res = false;
         try {
-            connection = datasource.getConnection();
-            countStatement = connection
-                    .prepareStatement("SELECT EXISTS(SELECT 1 FROM " + qualifiedTable + " WHERE pid = ?)");
+            connection = getReadConnection(pid);
+            countStatement = connection.prepareStatement(existsSql);
+            countStatement.setMaxRows(1);
             countStatement.setString(1, pid);
-            ResultSet rs = countStatement.executeQuery();
-            if (rs.next()) {
-                res = rs.getBoolean(1);
+            try (ResultSet rs = countStatement.executeQuery()) {
+                res = rs.next();
             }
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_ERROR, ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
@@ -143,7 +617,7 @@ public class DatabasePersistenceManager implements PersistenceManager {
         Connection connection = null;
         Dictionary<String, Object> properties;
         try {
-            connection = datasource.getConnection();
+            connection = getReadConnection(pid);
             properties = loadProperties(connection, pid);
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_ERROR, ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
@@ -162,10 +636,13 @@ public class DatabasePersistenceManager implements PersistenceManager {
     @SuppressWarnings("rawtypes")
     @Override
     public Enumeration getDictionaries() throws IOException {
+        if (streaming) {
+            return streamAllProperties();
+        }
         Connection connection = null;
         Map<String, Dictionary<String, Object>> dictionaries;
         try {
-            connection = datasource.getConnection();
+            connection = getReadConnection(null);
             dictionaries = loadAllProperties(connection);
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_ERROR, ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
@@ -173,7 +650,7 @@ public class DatabasePersistenceManager implements PersistenceManager {
         } finally {
             closeConnection(connection);
         }
-        return new DictionariesEnumeration(dictionaries.values());
+        return Dictionaries.enumeration(dictionaries.values());
     }
 
     @SuppressWarnings({"unchecked", "rawtypes" })
@@ -182,7 +659,7 @@ public class DatabasePersistenceManager implements PersistenceManager {
         logHelper.log(LogService.LOG_DEBUG, "Storing configuration for PID " + pid, null);
         Connection connection = null;
         try {
-            connection = datasource.getConnection();
+            connection = getConnection();
             storeProperties(connection, pid, properties);
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_ERROR, ERROR_SAVING_PROPERTIES_TO_DATABASE, ex);
@@ -190,6 +667,7 @@ public class DatabasePersistenceManager implements PersistenceManager {
         }
         finally {
             closeConnection(connection);
+            recordWrite(pid);
         }
     }
 
@@ -198,134 +676,1047 @@ public class DatabasePersistenceManager implements PersistenceManager {
         logHelper.log(LogService.LOG_DEBUG, "Deleting configuration for PID " + pid, null);
         Connection connection = null;
         try {
-            connection = datasource.getConnection();
-            Dictionary<String, Object> properties = new Hashtable<>(0); // NOSONAR
-            storeProperties(connection, pid, properties);
+            connection = getConnection();
+            deleteProperties(connection, pid);
         } catch (SQLException ex) {
             logHelper.log(LogService.LOG_ERROR, ERROR_DELETING_PROPERTIES_FROM_DATABASE, ex);
             throw new IOException(ERROR_DELETING_PROPERTIES_FROM_DATABASE, ex);
         } finally {
             closeConnection(connection);
+            recordWrite(pid);
         }
     }
 
-    private void storeProperties(Connection connection, String pid, Dictionary<String, Object> properties)
-            throws SQLException {
+    /**
+     * Replaces the configurations with a batch of deletes followed by a batch of inserts, in a single transaction
+     */
+    @Override
+    public void storeAll(Map<String, ? extends Dictionary<String, ?>> configurations) throws IOException {
+        logHelper.log(LogService.LOG_DEBUG, "Storing " + configurations.size() + " configurations", null);
+        if (configurations.isEmpty()) {
+            return;
+        }
+        SortedMap<String, Dictionary<String, ?>> sorted = new TreeMap<>(configurations);
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            Connection transaction = connection;
+            SqlWrite write = () -> writeConfigurations(transaction, sorted);
+            if (optimistic) {
+                writeOptimistically(connection, sorted.keySet(), write);
+            }
+            else {
+                writeInTransaction(connection, sorted.keySet(), write);
+            }
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_ERROR, ERROR_SAVING_PROPERTIES_TO_DATABASE, ex);
+            throw new IOException(ERROR_SAVING_PROPERTIES_TO_DATABASE, ex);
+        } finally {
+            closeConnection(connection);
+            for (String pid : sorted.keySet()) {
+                recordWrite(pid);
+            }
+        }
+    }
 
-        PreparedStatement deleteStatement = null;
-        PreparedStatement insertPropertyStatement = null;
+    /**
+     * Runs a write in its own REPEATABLE_READ transaction. With revision tracking, the revision is bumped in the same
+     * transaction, right before the commit, so a change is never committed without its revision. Concurrent changes
+     * of this node queue on {@link #revisionLock}. Those of other nodes conflict on the sequence row, in which case
+     * the whole transaction is rolled back and run again, up to the configured number of retries. The sequence row
+     * stays locked until the commit, so revisions become visible in the order they are assigned and pollers never
+     * skip one.
+     */
+    private void writeInTransaction(Connection connection, Collection<String> pids, SqlWrite write) throws SQLException {
         boolean autoCommit = connection.getAutoCommit();
         int previousLevel = connection.getTransactionIsolation();
         try {
-            connection.setAutoCommit(false);
-            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-            deleteStatement = connection.prepareStatement("DELETE FROM " + qualifiedTable + " WHERE pid = ?");
-            deleteStatement.setString(1, pid);
-            deleteStatement.executeUpdate();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            if (previousLevel != Connection.TRANSACTION_REPEATABLE_READ) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            }
+            for (int attempt = 0;; attempt++) {
+                long start = System.nanoTime();
+                if (revisionTracking) {
+                    revisionLock.lock();
+                }
+                try {
+                    if (write.write() && revisionTracking) {
+                        bumpRevision(connection, pids);
+                    }
+                    connection.commit();
+                    return;
+                } catch (SQLException ex) {
+                    rollback(connection);
+                    if (!revisionTracking || !isConflict(ex) || attempt >= maxRetries) {
+                        throw ex;
+                    }
+                    conflicts.increment();
+                    if (metrics != null) {
+                        metrics.record(PersistenceMetrics.CONFLICT, start, false);
+                    }
+                    logHelper.log(LogService.LOG_DEBUG, "Retrying write of " + pids + " after a conflict", ex);
+                } finally {
+                    if (revisionTracking) {
+                        revisionLock.unlock();
+                    }
+                }
+                backOff(attempt);
+            }
+        } finally {
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+            if (previousLevel != Connection.TRANSACTION_REPEATABLE_READ) {
+                connection.setTransactionIsolation(previousLevel);
+            }
+        }
+    }
+
+    private boolean writeConfigurations(Connection connection, Map<String, Dictionary<String, ?>> configurations)
+            throws SQLException {
+        try (PreparedStatement deleteStatement = connection.prepareStatement(deletePropertiesSql)) {
+            for (String pid : configurations.keySet()) {
+                deleteStatement.setString(1, pid);
+                deleteStatement.addBatch();
+            }
+            deleteStatement.executeBatch();
+        }
+        String insertSql = layout == Layout.DOCUMENT ? insertPayloadSql : insertPropertySql;
+        try (PreparedStatement insertStatement = connection.prepareStatement(insertSql)) {
+            for (Map.Entry<String, Dictionary<String, ?>> entry : configurations.entrySet()) {
+                @SuppressWarnings("unchecked")
+                Dictionary<String, Object> properties = (Dictionary<String, Object>) entry.getValue();
+                if (layout == Layout.DOCUMENT) {
+                    addPayloadInsert(insertStatement, entry.getKey(), properties);
+                }
+                else {
+                    addPropertyInserts(insertStatement, entry.getKey(), properties);
+                }
+            }
+            insertStatement.executeBatch();
+        }
+        return true;
+    }
+
+    private void addPropertyInserts(PreparedStatement insertStatement, String pid, Dictionary<String, Object> properties)
+            throws SQLException {
+        for (Enumeration<?> ce = properties.keys(); ce.hasMoreElements();) {
+            String name = (String) ce.nextElement();
+            Object value = properties.get(name);
+            long start = metrics != null ? System.nanoTime() : 0;
+            String typeCode = PropertyConverter.getCodeForType(value);
+            byte[] binary = binaryEncoding ? BinaryPropertyCodec.encode(value) : null;
+            String valueString = binary == null ? PropertyConverter.convertToString(value) : null;
+            if (metrics != null) {
+                metrics.record(PersistenceMetrics.ENCODE, start, false);
+            }
+            if (typeCode == null || (valueString == null && binary == null)) {
+                logHelper.log(LogService.LOG_WARNING, "Failed to convert property " + name, null);
+                continue;
+            }
+            insertStatement.setString(1, pid);
+            insertStatement.setString(2, name);
+            insertStatement.setString(3, typeCode);
+            setValueParameters(insertStatement, 4, valueString, binary);
+            insertStatement.addBatch();
+        }
+    }
+
+    private void addPayloadInsert(PreparedStatement insertStatement, String pid, Dictionary<String, Object> properties)
+            throws SQLException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        SortedMap<String, Object> sorted = sortProperties(properties);
+        byte[] binaryPayload = encodeBinaryPayload(sorted);
+        String payload = binaryPayload == null ? encodePayload(sorted) : null;
+        if (metrics != null) {
+            metrics.record(PersistenceMetrics.ENCODE, start, false);
+        }
+        if (sorted.isEmpty()) {
+            return;
+        }
+        insertStatement.setString(1, pid);
+        setValueParameters(insertStatement, 2, payload, binaryPayload);
+        insertStatement.addBatch();
+    }
+
+    private void storeProperties(Connection connection, String pid, Dictionary<String, Object> properties)
+            throws SQLException {
+        SqlWrite write = () -> writeConfiguration(connection, pid, properties);
+        if (optimistic) {
+            writeOptimistically(connection, Collections.singleton(pid), write);
+        }
+        else {
+            writeInTransaction(connection, Collections.singleton(pid), write);
+        }
+    }
 
-            insertPropertyStatement = connection
-                    .prepareStatement("INSERT INTO " + qualifiedTable + " (pid, prop_name, prop_type, prop_value) VALUES (?, ?, ?, ?)");
-            insertPropertyStatement.setString(1, pid);
+    /**
+     * Writes the configuration within the current transaction
+     *
+     * @return true when something was written
+     */
+    private boolean writeConfiguration(Connection connection, String pid, Dictionary<String, Object> properties)
+            throws SQLException {
+        return layout == Layout.DOCUMENT ? writePayload(connection, pid, properties)
+                : writeProperties(connection, pid, properties);
+    }
+
+    private boolean writeProperties(Connection connection, String pid, Dictionary<String, Object> properties)
+            throws SQLException {
+        PreparedStatement insertStatement = null;
+        PreparedStatement updateStatement = null;
+        PreparedStatement deleteStatement = null;
+        try {
+            Map<String, StoredProperty> storedProperties = loadStoredProperties(connection, pid);
 
             for (Enumeration<?> ce = properties.keys(); ce.hasMoreElements();) {
                 String name = (String) ce.nextElement();
                 Object value = properties.get(name);
+                long start = metrics != null ? System.nanoTime() : 0;
                 String typeCode = PropertyConverter.getCodeForType(value);
-                String valueString = PropertyConverter.convertToString(value);
-                if (typeCode != null && valueString != null) {
-                    insertPropertyStatement.setString(2, name);
-                    insertPropertyStatement.setString(3, typeCode);
-                    insertPropertyStatement.setString(4, valueString);
-                    insertPropertyStatement.executeUpdate();
-                } else {
+                byte[] binary = binaryEncoding ? BinaryPropertyCodec.encode(value) : null;
+                String valueString = binary == null ? PropertyConverter.convertToString(value) : null;
+                if (metrics != null) {
+                    metrics.record(PersistenceMetrics.ENCODE, start, false);
+                }
+                if (typeCode == null || (valueString == null && binary == null)) {
                     logHelper.log(LogService.LOG_WARNING, "Failed to convert property " + name, null);
+                    continue;
+                }
+                StoredProperty stored = storedProperties.remove(name);
+                if (stored != null && stored.matches(typeCode, valueString, binary)) {
+                    continue;
+                }
+                // With an upsert the rows changed meanwhile by another node are overwritten instead of failing
+                if (stored == null || upsertPropertySql != null) {
+                    if (insertStatement == null) {
+                        insertStatement = connection.prepareStatement(upsertPropertySql != null ? upsertPropertySql : insertPropertySql);
+                    }
+                    insertStatement.setString(1, pid);
+                    insertStatement.setString(2, name);
+                    insertStatement.setString(3, typeCode);
+                    setValueParameters(insertStatement, 4, valueString, binary);
+                    insertStatement.addBatch();
+                } else {
+                    if (updateStatement == null) {
+                        updateStatement = connection.prepareStatement(updatePropertySql);
+                    }
+                    updateStatement.setString(1, typeCode);
+                    int index = setValueParameters(updateStatement, 2, valueString, binary);
+                    updateStatement.setString(index, pid);
+                    updateStatement.setString(index + 1, name);
+                    updateStatement.addBatch();
                 }
             }
-            connection.commit();
 
-        } catch (SQLException ex) {
-            logHelper.log(LogService.LOG_ERROR, ERROR_SAVING_PROPERTIES_TO_DATABASE, ex);
-            try {
-                connection.rollback();
-            } catch (SQLException e) {
-                logHelper.log(LogService.LOG_WARNING, "Failed to rollback transaction", e);
+            for (String name : storedProperties.keySet()) {
+                if (deleteStatement == null) {
+                    deleteStatement = connection.prepareStatement(deletePropertySql);
+                }
+                deleteStatement.setString(1, pid);
+                deleteStatement.setString(2, name);
+                deleteStatement.addBatch();
             }
+
+            executeBatch(deleteStatement);
+            executeBatch(updateStatement);
+            executeBatch(insertStatement);
+            return deleteStatement != null || updateStatement != null || insertStatement != null;
         } finally {
             closeStatement(deleteStatement);
-            closeStatement(insertPropertyStatement);
-            connection.setAutoCommit(autoCommit);
+            closeStatement(updateStatement);
+            closeStatement(insertStatement);
+        }
+    }
+
+    /**
+     * Writes the whole configuration to a single row. The row is left untouched when the encoded properties didn't
+     * change.
+     */
+    private boolean writePayload(Connection connection, String pid, Dictionary<String, Object> properties)
+            throws SQLException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        SortedMap<String, Object> sorted = sortProperties(properties);
+        byte[] binaryPayload = encodeBinaryPayload(sorted);
+        String payload = binaryPayload == null ? encodePayload(sorted) : null;
+        if (metrics != null) {
+            metrics.record(PersistenceMetrics.ENCODE, start, false);
+        }
+        boolean empty = binaryPayload == null ? payload.isEmpty() : sorted.isEmpty();
+        PreparedStatement selectStatement = null;
+        PreparedStatement writeStatement = null;
+        try {
+            selectStatement = connection.prepareStatement(selectPayloadSql);
+            selectStatement.setString(1, pid);
+            boolean found;
+            String storedPayload = null;
+            byte[] storedBinaryPayload = null;
+            try (ResultSet rs = selectStatement.executeQuery()) {
+                found = rs.next();
+                if (found) {
+                    storedPayload = rs.getString(1);
+                    storedBinaryPayload = binaryColumn ? rs.getBytes(2) : null;
+                }
+            }
+
+            boolean changed = false;
+            if (empty) {
+                if (found) {
+                    writeStatement = connection.prepareStatement(deletePropertiesSql);
+                    writeStatement.setString(1, pid);
+                    changed = true;
+                }
+            } else if (!found || (upsertPayloadSql != null && (!Objects.equals(payload, storedPayload)
+                    || !Arrays.equals(binaryPayload, storedBinaryPayload)))) {
+                writeStatement = connection.prepareStatement(upsertPayloadSql != null ? upsertPayloadSql : insertPayloadSql);
+                writeStatement.setString(1, pid);
+                setValueParameters(writeStatement, 2, payload, binaryPayload);
+                changed = true;
+            } else if (!Objects.equals(payload, storedPayload) || !Arrays.equals(binaryPayload, storedBinaryPayload)) {
+                writeStatement = connection.prepareStatement(updatePayloadSql);
+                int index = setValueParameters(writeStatement, 1, payload, binaryPayload);
+                writeStatement.setString(index, pid);
+                changed = true;
+            }
+            if (changed) {
+                writeStatement.executeUpdate();
+            }
+            return changed;
+        } finally {
+            closeStatement(selectStatement);
+            closeStatement(writeStatement);
+        }
+    }
+
+    /**
+     * The properties are encoded sorted by name, so that the same configuration always produces the same payload
+     */
+    private static SortedMap<String, Object> sortProperties(Dictionary<String, Object> properties) {
+        SortedMap<String, Object> sorted = new TreeMap<>();
+        for (Enumeration<?> ce = properties.keys(); ce.hasMoreElements();) {
+            String name = (String) ce.nextElement();
+            sorted.put(name, properties.get(name));
+        }
+        return sorted;
+    }
+
+    private byte[] encodeBinaryPayload(SortedMap<String, Object> sorted) {
+        return binaryEncoding ? BinaryPropertyCodec.encodeProperties(sorted) : null;
+    }
+
+    private String encodePayload(SortedMap<String, Object> sorted) {
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+            String typeCode = PropertyConverter.getCodeForType(entry.getValue());
+            String valueString = PropertyConverter.convertToString(entry.getValue());
+            if (typeCode == null || valueString == null) {
+                logHelper.log(LogService.LOG_WARNING, "Failed to convert property " + entry.getKey(), null);
+                continue;
+            }
+            PropertyConverter.appendEntry(payload, entry.getKey(), typeCode, valueString);
+        }
+        return payload.toString();
+    }
+
+    /**
+     * Sets the text value and, when the table has the binary column, the binary value. Only one of them is not null.
+     *
+     * @return the index of the next parameter
+     */
+    private int setValueParameters(PreparedStatement statement, int index, String value, byte[] binary)
+            throws SQLException {
+        statement.setString(index, value);
+        if (!binaryColumn) {
+            return index + 1;
+        }
+        if (binary == null) {
+            statement.setNull(index + 1, Types.VARBINARY);
+        } else {
+            statement.setBytes(index + 1, binary);
+        }
+        return index + 2;
+    }
+
+    /**
+     * Reads a property value from the binary column when the table has it and it isn't null, otherwise from the text
+     * columns
+     */
+    private Object readValue(ResultSet rs, int typeIndex) throws SQLException {
+        if (metrics == null) {
+            return decodeValue(rs, typeIndex);
+        }
+        long start = System.nanoTime();
+        Object value = decodeValue(rs, typeIndex);
+        metrics.record(PersistenceMetrics.DECODE, start, false);
+        return value;
+    }
+
+    private Object decodeValue(ResultSet rs, int typeIndex) throws SQLException {
+        if (binaryColumn) {
+            byte[] binary = rs.getBytes(typeIndex + 2);
+            if (binary != null) {
+                return BinaryPropertyCodec.decode(binary);
+            }
+        }
+        return PropertyConverter.convertFromString(rs.getString(typeIndex), rs.getString(typeIndex + 1));
+    }
+
+    private Hashtable<String, Object> readPayload(ResultSet rs, int payloadIndex) throws SQLException {
+        if (metrics == null) {
+            return decodePayload(rs, payloadIndex);
+        }
+        long start = System.nanoTime();
+        Hashtable<String, Object> properties = decodePayload(rs, payloadIndex);
+        metrics.record(PersistenceMetrics.DECODE, start, false);
+        return properties;
+    }
+
+    private Hashtable<String, Object> decodePayload(ResultSet rs, int payloadIndex) throws SQLException {
+        if (binaryColumn) {
+            byte[] binaryPayload = rs.getBytes(payloadIndex + 1);
+            if (binaryPayload != null) {
+                return BinaryPropertyCodec.decodeProperties(binaryPayload);
+            }
+        }
+        return PropertyConverter.convertFromPayload(rs.getString(payloadIndex));
+    }
+
+    private void deleteProperties(Connection connection, String pid) throws SQLException {
+        if (optimistic) {
+            writeOptimistically(connection, Collections.singleton(pid), () -> {
+                try (PreparedStatement statement = connection.prepareStatement(deletePropertiesSql)) {
+                    statement.setString(1, pid);
+                    return statement.executeUpdate() > 0;
+                }
+            });
+            return;
+        }
+        writeInTransaction(connection, Collections.singleton(pid), () -> {
+            try (PreparedStatement deleteStatement = connection.prepareStatement(deletePropertiesSql)) {
+                deleteStatement.setString(1, pid);
+                return deleteStatement.executeUpdate() > 0;
+            }
+        });
+    }
+
+    /**
+     * Waits a little before a retry, longer after each attempt and with some jitter, so that the writers that
+     * conflicted don't collide again straight away
+     */
+    private static void backOff(int attempt) throws SQLException {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(1L << Math.min(attempt, 6)) + 1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying a write", ex);
+        }
+    }
+
+    /**
+     * Assigns a new revision to the PIDs within the current transaction
+     */
+    private void bumpRevision(Connection connection, Collection<String> pids) throws SQLException {
+        long revision;
+        try (PreparedStatement statement = connection.prepareStatement(bumpSequenceSql)) {
+            statement.executeUpdate();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(selectSequenceSql);
+                ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("Revision sequence not found in " + revisionSequenceTable);
+            }
+            revision = rs.getLong(1);
+        }
+        for (String pid : pids) {
+            writeRevision(connection, pid, revision);
+        }
+    }
+
+    private void writeRevision(Connection connection, String pid, long revision) throws SQLException {
+        if (upsertRevisionSql != null) {
+            try (PreparedStatement statement = connection.prepareStatement(upsertRevisionSql)) {
+                statement.setString(1, pid);
+                statement.setLong(2, revision);
+                statement.executeUpdate();
+            }
+            return;
+        }
+        int updated;
+        try (PreparedStatement statement = connection.prepareStatement(updateRevisionSql)) {
+            statement.setLong(1, revision);
+            statement.setString(2, pid);
+            updated = statement.executeUpdate();
+        }
+        if (updated == 0) {
+            try (PreparedStatement statement = connection.prepareStatement(insertRevisionSql)) {
+                statement.setString(1, pid);
+                statement.setLong(2, revision);
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * @return the latest revision assigned to a change
+     */
+    public long loadCurrentRevision() throws IOException {
+        Connection connection = null;
+        try {
+            connection = getConnection();
+            try (PreparedStatement statement = connection.prepareStatement(selectSequenceSql);
+                    ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        } catch (SQLException ex) {
+            throw new IOException(ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * @return the PIDs changed after the given revision, in the order they were changed, together with their revision
+     */
+    public Map<String, Long> loadChangesSince(long revision) throws IOException {
+        Connection connection = null;
+        Map<String, Long> changes = new LinkedHashMap<>();
+        try {
+            connection = getConnection();
+            try (PreparedStatement statement = connection.prepareStatement(selectChangesSql)) {
+                statement.setLong(1, revision);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        changes.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException(ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
+        } finally {
+            closeConnection(connection);
+        }
+        return changes;
+    }
+
+    private Map<String, StoredProperty> loadStoredProperties(Connection connection, String pid) throws SQLException {
+        PreparedStatement selectStatement = null;
+        Map<String, StoredProperty> storedProperties = new HashMap<>();
+        try {
+            selectStatement = connection.prepareStatement(selectPropertiesSql);
+            selectStatement.setString(1, pid);
+            try (ResultSet rs = selectStatement.executeQuery()) {
+                while (rs.next()) {
+                    storedProperties.put(rs.getString(1), new StoredProperty(rs.getString(2), rs.getString(3),
+                            binaryColumn ? rs.getBytes(4) : null));
+                }
+            }
+        } finally {
+            closeStatement(selectStatement);
+        }
+        return storedProperties;
+    }
+
+    /**
+     * Switches the connection to REPEATABLE_READ, unless using optimistic concurrency
+     *
+     * @return the isolation level to restore in {@link #endRead(Connection, int)}, or -1 when left unchanged
+     */
+    private int beginRead(Connection connection) throws SQLException {
+        if (optimistic) {
+            return -1;
+        }
+        int previousLevel = connection.getTransactionIsolation();
+        if (previousLevel == Connection.TRANSACTION_REPEATABLE_READ) {
+            return -1;
+        }
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        return previousLevel;
+    }
+
+    private static void endRead(Connection connection, int previousLevel) throws SQLException {
+        if (previousLevel >= 0) {
             connection.setTransactionIsolation(previousLevel);
         }
     }
 
+    /**
+     * Runs a write in its own READ_COMMITTED transaction, after taking the version of the PIDs with a compare-and-set.
+     * Concurrent writers of the same PID wait for each other on the version row. The loser finds the version changed,
+     * rolls back and retries, up to the configured number of retries.
+     *
+     * @param pids the PIDs written, in a stable order so that concurrent writers lock them in the same order
+     */
+    private void writeOptimistically(Connection connection, Collection<String> pids, SqlWrite write) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        int previousLevel = connection.getTransactionIsolation();
+        try {
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            if (previousLevel != Connection.TRANSACTION_READ_COMMITTED) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            }
+            for (int attempt = 0;; attempt++) {
+                long start = System.nanoTime();
+                try {
+                    for (String pid : pids) {
+                        if (!compareAndSetVersion(connection, pid)) {
+                            throw new SQLException("Concurrent modification of " + pid, SQLSTATE_SERIALIZATION_FAILURE);
+                        }
+                    }
+                    if (write.write() && revisionTracking) {
+                        bumpRevision(connection, pids);
+                    }
+                    connection.commit();
+                    return;
+                } catch (SQLException ex) {
+                    rollback(connection);
+                    if (!isConflict(ex) || attempt >= maxRetries) {
+                        throw ex;
+                    }
+                    conflicts.increment();
+                    if (metrics != null) {
+                        metrics.record(PersistenceMetrics.CONFLICT, start, false);
+                    }
+                    logHelper.log(LogService.LOG_DEBUG, "Retrying write of " + pids + " after a conflict", ex);
+                }
+            }
+        } finally {
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+            if (previousLevel != Connection.TRANSACTION_READ_COMMITTED) {
+                connection.setTransactionIsolation(previousLevel);
+            }
+        }
+    }
+
+    /**
+     * Increments the version of the PID if it is still the one read
+     *
+     * @return false when another transaction changed the version meanwhile
+     */
+    private boolean compareAndSetVersion(Connection connection, String pid) throws SQLException {
+        Long version = null;
+        try (PreparedStatement statement = connection.prepareStatement(selectVersionSql)) {
+            statement.setString(1, pid);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    version = rs.getLong(1);
+                }
+            }
+        }
+        if (version == null) {
+            try (PreparedStatement statement = connection.prepareStatement(insertVersionSql)) {
+                statement.setString(1, pid);
+                statement.setLong(2, 1L);
+                statement.executeUpdate();
+                return true;
+            } catch (SQLException ex) {
+                // Inserted meanwhile by another transaction
+                if (ex.getSQLState() != null && ex.getSQLState().startsWith(SQLSTATE_INTEGRITY_VIOLATION_CLASS)) {
+                    return false;
+                }
+                throw ex;
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(updateVersionSql)) {
+            statement.setLong(1, version + 1);
+            statement.setString(2, pid);
+            statement.setLong(3, version);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Serialization failures and deadlocks are worth retrying
+     */
+    private static boolean isConflict(SQLException ex) {
+        String state = ex.getSQLState();
+        return SQLSTATE_SERIALIZATION_FAILURE.equals(state) || SQLSTATE_DEADLOCK.equals(state);
+    }
+
+    /**
+     * @return the number of writes and optimistic reads retried because another transaction changed the same PID
+     */
+    public long getConflictCount() {
+        return conflicts.sum();
+    }
+
+    private void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to rollback transaction", e);
+        }
+    }
+
+    private static void executeBatch(PreparedStatement statement) throws SQLException {
+        if (statement != null) {
+            statement.executeBatch();
+        }
+    }
+
     public Dictionary<String, Object> loadProperties(Connection connection, String pid) throws SQLException {
         PreparedStatement selectStatement = null;
         Hashtable<String, Object> dictionary = new Hashtable<>(); // NOSONAR
-        int previousLevel = connection.getTransactionIsolation();
+        int previousLevel = beginRead(connection);
         try {
-            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-            selectStatement = connection
-                    .prepareStatement("SELECT prop_name, prop_type, prop_value FROM " + qualifiedTable + " WHERE pid = ?");
-            selectStatement.setString(1, pid);
-            ResultSet rs = selectStatement.executeQuery();
-            while (rs.next()) {
-                String name = rs.getString(1);
-                String type = rs.getString(2);
-                String valueAsString = rs.getString(3);
-                Object value = PropertyConverter.convertFromString(type, valueAsString);
-                dictionary.put(name, value);
+            if (layout == Layout.DOCUMENT) {
+                selectStatement = connection.prepareStatement(selectPayloadSql);
+                selectStatement.setString(1, pid);
+                try (ResultSet rs = selectStatement.executeQuery()) {
+                    if (rs.next()) {
+                        dictionary = readPayload(rs, 1);
+                    }
+                }
+                return dictionary;
+            }
+            if (optimistic) {
+                return loadVersionedProperties(connection, pid);
             }
+            return readProperties(connection, pid);
         } finally {
             closeStatement(selectStatement);
-            connection.setTransactionIsolation(previousLevel);
+            endRead(connection, previousLevel);
+        }
+    }
+
+    private Dictionary<String, Object> readProperties(Connection connection, String pid) throws SQLException {
+        Hashtable<String, Object> dictionary = new Hashtable<>(); // NOSONAR
+        try (PreparedStatement selectStatement = connection.prepareStatement(selectPropertiesSql)) {
+            selectStatement.setString(1, pid);
+            try (ResultSet rs = selectStatement.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    Object value = readValue(rs, 2);
+                    dictionary.put(name, value);
+                }
+            }
         }
         return dictionary;
     }
 
+    /**
+     * Reads the properties of the PID between two reads of its version. The version changes when a write commits in
+     * between, in which case the properties are read again, so the configuration returned never mixes the properties
+     * of two writes.
+     */
+    private Dictionary<String, Object> loadVersionedProperties(Connection connection, String pid) throws SQLException {
+        for (int attempt = 0;; attempt++) {
+            Long version = loadVersion(connection, pid);
+            Dictionary<String, Object> dictionary = readProperties(connection, pid);
+            if (Objects.equals(version, loadVersion(connection, pid))) {
+                return dictionary;
+            }
+            if (attempt >= maxRetries) {
+                throw new SQLException("Configuration " + pid + " kept changing while being read", SQLSTATE_SERIALIZATION_FAILURE);
+            }
+            conflicts.increment();
+            logHelper.log(LogService.LOG_DEBUG, "Reading " + pid + " again after a concurrent write", null);
+        }
+    }
+
+    private Long loadVersion(Connection connection, String pid) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(selectVersionSql)) {
+            statement.setString(1, pid);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        }
+    }
+
+    private Map<String, Long> loadAllVersions(Connection connection) throws SQLException {
+        Map<String, Long> versions = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(selectAllVersionsSql);
+                ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                versions.put(rs.getString(1), rs.getLong(2));
+            }
+        }
+        return versions;
+    }
+
     public Map<String, Dictionary<String, Object>> loadAllProperties(Connection connection) throws SQLException {
         PreparedStatement selectStatement = null;
         Map<String, Dictionary<String, Object>> dictionaries = new HashMap<>();
-        int previousLevel = connection.getTransactionIsolation();
+        int previousLevel = beginRead(connection);
         try {
-            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-            selectStatement = connection.prepareStatement("SELECT pid, prop_name, prop_type, prop_value FROM " + qualifiedTable);
-            ResultSet rs = selectStatement.executeQuery();
-            while (rs.next()) {
-                String pid = rs.getString(1);
-                String name = rs.getString(2);
-                String type = rs.getString(3);
-                String valueAsString = rs.getString(4);
-                Object value = PropertyConverter.convertFromString(type, valueAsString);
-                Dictionary<String, Object> dictionary = dictionaries.get(pid);
-                if (dictionary == null) {
-                    dictionary = new Hashtable<>();// NOSONAR
-                    dictionaries.put(pid, dictionary);
+            if (layout == Layout.DOCUMENT) {
+                selectStatement = connection.prepareStatement(selectAllPayloadsSql);
+                try (ResultSet rs = selectStatement.executeQuery()) {
+                    while (rs.next()) {
+                        dictionaries.put(rs.getString(1), readPayload(rs, 2));
+                    }
+                }
+                return dictionaries;
+            }
+            Map<String, Long> versions = optimistic ? loadAllVersions(connection) : null;
+            selectStatement = connection.prepareStatement(selectAllPropertiesSql);
+            try (ResultSet rs = selectStatement.executeQuery()) {
+                while (rs.next()) {
+                    String pid = rs.getString(1);
+                    String name = rs.getString(2);
+                    Object value = readValue(rs, 3);
+                    Dictionary<String, Object> dictionary = dictionaries.get(pid);
+                    if (dictionary == null) {
+                        dictionary = new Hashtable<>();// NOSONAR
+                        dictionaries.put(pid, dictionary);
+                    }
+                    dictionary.put(name, value);
+                }
+            }
+            if (versions != null) {
+                // The PIDs written while the table was read are read again, one at a time
+                for (Map.Entry<String, Long> version : loadAllVersions(connection).entrySet()) {
+                    String pid = version.getKey();
+                    if (!version.getValue().equals(versions.get(pid))) {
+                        Dictionary<String, Object> dictionary = loadVersionedProperties(connection, pid);
+                        if (dictionary.isEmpty()) {
+                            dictionaries.remove(pid);
+                        }
+                        else {
+                            dictionaries.put(pid, dictionary);
+                        }
+                    }
                 }
-                dictionary.put(name, value);
             }
         } finally {
             closeStatement(selectStatement);
-            connection.setTransactionIsolation(previousLevel);
+            endRead(connection, previousLevel);
         }
         return dictionaries;
     }
 
-    private static class DictionariesEnumeration implements Enumeration<Dictionary<String, Object>> {
+    private Enumeration<Dictionary<String, Object>> streamAllProperties() throws IOException {
+        Connection connection = null;
+        PreparedStatement selectStatement = null;
+        try {
+            connection = getReadConnection(null);
+            boolean autoCommit = connection.getAutoCommit();
+            // Some drivers, like PostgreSQL, only use a cursor when auto commit is disabled
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            int previousLevel = beginRead(connection);
+            selectStatement = connection.prepareStatement(
+                    layout == Layout.DOCUMENT ? selectAllPayloadsOrderedSql : selectAllPropertiesOrderedSql);
+            selectStatement.setFetchSize(fetchSize);
+            ResultSet rs = selectStatement.executeQuery();
+            return new StreamingDictionariesEnumeration(connection, selectStatement, rs, autoCommit, previousLevel);
+        } catch (SQLException ex) {
+            logHelper.log(LogService.LOG_ERROR, ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
+            closeStatement(selectStatement);
+            closeConnection(connection);
+            throw new IOException(ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
+        }
+    }
+
+    /**
+     * Builds the dictionaries one at a time from an open result set ordered by PID, holding the connection and the
+     * cursor meanwhile. The connection is released once the last row is read or on {@link #close()}, which callers
+     * giving up before that must call.
+     */
+    private class StreamingDictionariesEnumeration implements Enumeration<Dictionary<String, Object>>, AutoCloseable {
 
-        private final Iterator<Dictionary<String, Object>> iterator;
+        private final Connection connection;
+        private final PreparedStatement statement;
+        private final ResultSet rs;
+        private final boolean autoCommit;
+        private final int previousLevel;
+        private boolean rowAvailable;
+        private Dictionary<String, Object> next;
+        private boolean closed;
 
-        public DictionariesEnumeration(Collection<Dictionary<String, Object>> dictionaries) {
-            this.iterator = dictionaries.iterator();
+        StreamingDictionariesEnumeration(Connection connection, PreparedStatement statement, ResultSet rs,
+                boolean autoCommit, int previousLevel) throws SQLException {
+            this.connection = connection;
+            this.statement = statement;
+            this.rs = rs;
+            this.autoCommit = autoCommit;
+            this.previousLevel = previousLevel;
+            try {
+                this.rowAvailable = rs.next();
+                this.next = readNext();
+            }
+            catch (SQLException ex) {
+                close();
+                throw ex;
+            }
         }
 
         @Override
         public boolean hasMoreElements() {
-            return iterator.hasNext();
+            return next != null;
         }
 
         @Override
         public Dictionary<String, Object> nextElement() {
-            return iterator.next();
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Dictionary<String, Object> current = next;
+            try {
+                next = readNext();
+            }
+            catch (SQLException ex) {
+                logHelper.log(LogService.LOG_ERROR, ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex);
+                next = null;
+                close();
+                throw new UncheckedIOException(new IOException(ERROR_LOADING_PROPERTIES_FROM_DATABASE, ex));
+            }
+            return current;
+        }
+
+        private Dictionary<String, Object> readNext() throws SQLException {
+            if (!rowAvailable) {
+                close();
+                return null;
+            }
+            if (layout == Layout.DOCUMENT) {
+                Hashtable<String, Object> dictionary = readPayload(rs, 2);
+                rowAvailable = rs.next();
+                return dictionary;
+            }
+            String pid = rs.getString(1);
+            Hashtable<String, Object> dictionary = new Hashtable<>(); // NOSONAR
+            do {
+                String name = rs.getString(2);
+                dictionary.put(name, readValue(rs, 3));
+                rowAvailable = rs.next();
+            } while (rowAvailable && pid.equals(rs.getString(1)));
+            return dictionary;
+        }
+
+        /**
+         * Releases the cursor and the connection. Does nothing once closed.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            next = null;
+            try {
+                rs.close();
+                connection.commit();
+                if (autoCommit) {
+                    connection.setAutoCommit(true);
+                }
+                endRead(connection, previousLevel);
+            }
+            catch (SQLException ex) {
+                logHelper.log(LogService.LOG_DEBUG, "Error closing streaming result set", ex);
+            }
+            finally {
+                closeStatement(statement);
+                closeConnection(connection);
+            }
+        }
+    }
+
+    private interface SqlWrite {
+
+        /**
+         * @return true when something was written
+         */
+        boolean write() throws SQLException;
+    }
+
+    /**
+     * The type and value of a property as currently stored in the database
+     */
+    private static class StoredProperty {
+
+        private final String type;
+        private final String value;
+        private final byte[] binary;
+
+        StoredProperty(String type, String value, byte[] binary) {
+            this.type = type;
+            this.value = value;
+            this.binary = binary;
+        }
+
+        boolean matches(String otherType, String otherValue, byte[] otherBinary) {
+            return type.equals(otherType) && Objects.equals(value, otherValue) && Arrays.equals(binary, otherBinary);
+        }
+    }
+
+    /**
+     * The read replica may not have the change yet. The PID, and all configurations, are read from the primary
+     * database for a while.
+     */
+    @Override
+    public void configurationChanged(String pid) {
+        recordWrite(pid);
+    }
+
+    private void recordWrite(String pid) {
+        if (replica == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long deadline = now + readYourWritesNanos;
+        if (recentWrites.size() >= MAX_RECENT_WRITES) {
+            recentWrites.values().removeIf(expires -> expires - now <= 0);
+        }
+        recentWrites.put(pid, deadline);
+        allWritesDeadline = deadline;
+    }
+
+    private boolean isRecentlyWritten(String pid) {
+        long now = System.nanoTime();
+        if (pid == null) {
+            return allWritesDeadline - now > 0;
+        }
+        Long deadline = recentWrites.get(pid);
+        if (deadline == null) {
+            return false;
+        }
+        if (deadline - now > 0) {
+            return true;
+        }
+        recentWrites.remove(pid, deadline);
+        return false;
+    }
+
+    /**
+     * @param pid the PID read, or null when reading all configurations
+     */
+    private Connection getReadConnection(String pid) throws SQLException {
+        if (replica == null || isRecentlyWritten(pid)) {
+            return getConnection(datasource);
+        }
+        try {
+            return getConnection(replica);
+        }
+        catch (SQLException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Read replica unavailable. Reading from the primary database", ex);
+            return getConnection(datasource);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        return getConnection(datasource);
+    }
+
+    private Connection getConnection(DataSource source) throws SQLException {
+        if (metrics == null) {
+            return source.getConnection();
+        }
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Connection connection = source.getConnection();
+            error = false;
+            return connection;
+        } finally {
+            metrics.record(PersistenceMetrics.CONNECTION, start, error);
         }
     }
 
@@ -16,102 +16,280 @@
 package com.jassuncao.osgi.cm.sql;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.NoSuchElementException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.Constants;
 
-public class DelegatedPersistenceManager implements PersistenceManager {
+/**
+ * Keeps each PID in one of several named {@link PersistenceManager}s, selected by a {@link PidRouter}.
+ * <p>
+ * The manager holding each PID is indexed once {@link #getDictionaries()} has been fully consumed, and kept up to date
+ * on every store and delete. From then on each operation goes straight to the manager holding the PID. Until then the
+ * managers are probed in order.
+ */
+public class DelegatedPersistenceManager implements PersistenceManager, ConfigurationChangeListener, AutoCloseable {
     
-    private final PersistenceManager primaryManager;
-    private final PersistenceManager secondaryManager;
-    private final Pattern primaryPids;
+    private static final String PRIMARY = "primary";
+    private static final String SECONDARY = "secondary";
+
+    private final Map<String, PersistenceManager> managers;
+    private final List<PersistenceManager> probeOrder;
+    private final PidRouter router;
+    private final ParallelDictionaries dictionaries;
+
+    /**
+     * The manager holding each known PID
+     */
+    private final Map<String, PersistenceManager> owners = new HashMap<>();
+
+    /**
+     * Incremented on every write. Used to discard what was learned from the managers while a write was in progress.
+     */
+    private long generation;
+
+    /**
+     * True when {@link #owners} holds every PID of all managers
+     */
+    private boolean complete;
 
     public DelegatedPersistenceManager(PersistenceManager primaryManager, PersistenceManager secondaryManager, Pattern primaryPids) {
-        this.primaryManager = primaryManager;
-        this.secondaryManager = secondaryManager;
-        this.primaryPids = primaryPids;
+        this(createManagers(primaryManager, secondaryManager),
+                PidRouter.builder().regex(primaryPids.pattern(), PRIMARY).any(SECONDARY).build());
+    }
+
+    /**
+     * @param managers the managers by name. PIDs found in more than one manager are loaded from the first of them
+     * @param router selects the name of the manager where each PID is stored
+     */
+    public DelegatedPersistenceManager(Map<String, PersistenceManager> managers, PidRouter router) {
+        this.managers = new LinkedHashMap<>(managers);
+        this.probeOrder = new ArrayList<>(managers.values());
+        this.router = router;
+        this.dictionaries = new ParallelDictionaries(probeOrder, "osgi-cm-delegated");
+    }
+
+    private static Map<String, PersistenceManager> createManagers(PersistenceManager primaryManager, PersistenceManager secondaryManager) {
+        Map<String, PersistenceManager> managers = new LinkedHashMap<>();
+        managers.put(PRIMARY, primaryManager);
+        managers.put(SECONDARY, secondaryManager);
+        return managers;
     }
 
     @Override
     public void delete(String pid) throws IOException {
-        this.primaryManager.delete(pid);
-        this.secondaryManager.delete(pid);
+        PersistenceManager owner;
+        boolean known;
+        synchronized (this) {
+            owner = owners.get(pid);
+            known = owner != null || complete;
+        }
+        try {
+            if (owner != null) {
+                owner.delete(pid);
+            }
+            else if (!known) {
+                for (PersistenceManager manager : probeOrder) {
+                    manager.delete(pid);
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            forget(pid);
+            throw ex;
+        }
+        synchronized (this) {
+            generation++;
+            owners.remove(pid);
+        }
     }
 
     @Override
     public boolean exists(String pid) {
-        return this.primaryManager.exists(pid) || this.secondaryManager.exists(pid);
+        long probeGeneration;
+        synchronized (this) {
+            if (owners.containsKey(pid)) {
+                return true;
+            }
+            if (complete) {
+                return false;
+            }
+            probeGeneration = generation;
+        }
+        for (PersistenceManager manager : probeOrder) {
+            if (manager.exists(pid)) {
+                learn(pid, manager, probeGeneration);
+                return true;
+            }
+        }
+        return false;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Asks all managers for their dictionaries at the same time and enumerates them in turn
+     */
     @Override
     public Enumeration<Object> getDictionaries() throws IOException {
-        Enumeration<Object> primary = this.primaryManager.getDictionaries();
-        Enumeration<Object> secondary = this.secondaryManager.getDictionaries();
-        return new DualEnumerationWrapper(primary, secondary);
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        return new IndexingEnumeration(dictionaries.getDictionaries(), loadGeneration);
+    }
+
+    /**
+     * Stops the threads used by {@link #getDictionaries()}
+     */
+    @Override
+    public void close() {
+        dictionaries.close();
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public Dictionary<String,Object> load(String pid) throws IOException {
-        if(this.primaryManager.exists(pid)) {
-            return this.primaryManager.load(pid);
+        PersistenceManager owner;
+        long probeGeneration;
+        synchronized (this) {
+            owner = owners.get(pid);
+            if (owner == null && complete) {
+                owner = route(pid);
+                if (owner == null) {
+                    // Not held by any manager and no rule matches, so there is nowhere to load it from
+                    return new Hashtable<>(); // NOSONAR
+                }
+            }
+            probeGeneration = generation;
+        }
+        if (owner == null) {
+            owner = probe(pid, probeGeneration);
         }
-        return this.secondaryManager.load(pid);
+        return owner.load(pid);
     }
 
+    /**
+     * Finds the manager holding the PID, without asking the last manager
+     */
+    private PersistenceManager probe(String pid, long probeGeneration) {
+        int last = probeOrder.size() - 1;
+        for (int i = 0; i < last; i++) {
+            PersistenceManager manager = probeOrder.get(i);
+            if (manager.exists(pid)) {
+                learn(pid, manager, probeGeneration);
+                return manager;
+            }
+        }
+        return probeOrder.get(last);
+    }
+
+    /**
+     * Stores the PID in the manager selected by the router. When the PID is known to be held by another manager, it
+     * is deleted from there.
+     */
     @SuppressWarnings("rawtypes")
     @Override
     public void store(String pid, Dictionary properties) throws IOException {
-        if(primaryPids.matcher(pid).matches()) {
-            primaryManager.store(pid, properties);
+        PersistenceManager target = route(pid);
+        if (target == null) {
+            throw new IOException("No persistence manager configured for PID " + pid);
+        }
+        PersistenceManager previous;
+        synchronized (this) {
+            previous = owners.get(pid);
+        }
+        try {
+            target.store(pid, properties);
+        }
+        catch (IOException | RuntimeException ex) {
+            forget(pid);
+            throw ex;
+        }
+        synchronized (this) {
+            generation++;
+            owners.put(pid, target);
+        }
+        if (previous != null && previous != target) {
+            previous.delete(pid);
+        }
+    }
+
+    /**
+     * Forgets which manager holds the PID, for PIDs written straight to one of the managers
+     */
+    @Override
+    public void configurationChanged(String pid) {
+        forget(pid);
+    }
+
+    private PersistenceManager route(String pid) {
+        String name = router.route(pid);
+        return name != null ? managers.get(name) : null;
+    }
+
+    private synchronized void learn(String pid, PersistenceManager owner, long probeGeneration) {
+        if (probeGeneration == generation) {
+            owners.put(pid, owner);
         }
-        else {
-            secondaryManager.store(pid, properties); 
+    }
+
+    /**
+     * Called when a write fails, leaving unknown which manager holds the PID
+     */
+    private synchronized void forget(String pid) {
+        generation++;
+        complete = false;
+        owners.remove(pid);
+    }
+
+    private synchronized void index(Map<String, PersistenceManager> collected, long loadGeneration, boolean all) {
+        if (loadGeneration != generation) {
+            return;
         }
+        owners.putAll(collected);
+        complete = all;
     }
     
-    private static class DualEnumerationWrapper implements Enumeration<Object>  {
-        
-        private Enumeration<Object> primaryProperties;
-        private Enumeration<Object> secondaryProperties;
-        
-        DualEnumerationWrapper(Enumeration<Object> primaryProperties, Enumeration<Object> secondaryProperties){
-            this.primaryProperties = primaryProperties;
-            this.secondaryProperties = secondaryProperties;
+    /**
+     * Enumerates the dictionaries of each manager in turn, collecting the manager holding each PID. Once all are
+     * exhausted the collected PIDs are indexed.
+     */
+    private class IndexingEnumeration extends ParallelDictionaries.ChainedEnumeration {
+
+        private final long loadGeneration;
+        private final Map<String, PersistenceManager> collected = new HashMap<>();
+        private boolean indexable = true;
+
+        IndexingEnumeration(List<Enumeration<Object>> dictionaries, long loadGeneration) {
+            super(dictionaries);
+            this.loadGeneration = loadGeneration;
         }
 
         @Override
-        public synchronized boolean hasMoreElements() {
-            if(primaryProperties!=null) {
-                if(primaryProperties.hasMoreElements()) {
-                    return true;
-                }
-                primaryProperties = null;
+        Object element(Object element, int manager) {
+            Object pid = element instanceof Dictionary ? ((Dictionary<?, ?>) element).get(Constants.SERVICE_PID) : null;
+            if (pid instanceof String) {
+                // A PID found in more than one manager is loaded from the first
+                collected.putIfAbsent((String) pid, probeOrder.get(manager));
             }
-            if(secondaryProperties!=null) {
-                if(secondaryProperties.hasMoreElements()) {
-                    return true;
-                }
-                secondaryProperties = null;
+            else {
+                indexable = false;
             }
-            return false;
+            return element;
         }
 
         @Override
-        public synchronized Object nextElement() {
-            if(primaryProperties!=null && primaryProperties.hasMoreElements()) {
-                return primaryProperties.nextElement();
-            }
-            if(secondaryProperties!=null && secondaryProperties.hasMoreElements()) {
-                return secondaryProperties.nextElement();
-            }
-            throw new NoSuchElementException();
+        void exhausted() {
+            index(collected, loadGeneration, indexable);
         }
-        
+
     }
 
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Helpers shared by the persistence managers to copy and enumerate configuration dictionaries.
+ *
+ * @author jassuncao
+ *
+ */
+final class Dictionaries {
+
+    private Dictionaries() {
+    }
+
+    /**
+     * @return a copy of the properties that the caller can keep, since the dictionaries given by Configuration Admin
+     *         may be modified afterwards
+     */
+    static Dictionary<String, Object> copy(Dictionary<?, ?> properties) {
+        Hashtable<String, Object> copy = new Hashtable<>(Math.max(properties.size() * 2, 11)); // NOSONAR
+        for (Enumeration<?> keys = properties.keys(); keys.hasMoreElements();) {
+            Object key = keys.nextElement();
+            copy.put((String) key, properties.get(key));
+        }
+        return copy;
+    }
+
+    /**
+     * @return an enumeration of the dictionaries, as returned by {@code PersistenceManager.getDictionaries()}
+     */
+    static Enumeration<Dictionary<String, Object>> enumeration(Collection<Dictionary<String, Object>> dictionaries) {
+        return Collections.enumeration(dictionaries);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.util.List;
+
+/**
+ * @author jassuncao
+ *
+ */
+public class H2Dialect extends SqlDialect {
+
+    public static final String NAME = "h2";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String limitToOneRow(String query) {
+        return query + " FETCH FIRST ROW ONLY";
+    }
+
+    @Override
+    public String upsertSql(String table, List<String> keyColumns, List<String> valueColumns) {
+        return "MERGE INTO " + table + " (" + columnList(keyColumns, valueColumns) + ") KEY ("
+                + String.join(", ", keyColumns) + ") VALUES (" + parameterList(keyColumns.size() + valueColumns.size()) + ")";
+    }
+
+    @Override
+    public String keyType() {
+        return "VARCHAR(255)";
+    }
+
+    @Override
+    public String typeCodeType() {
+        return "VARCHAR(16)";
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+
+import org.apache.felix.cm.NotCachablePersistenceManager;
+import org.apache.felix.cm.PersistenceManager;
+
+/**
+ * Records the time spent in each call to another {@link PersistenceManager}. For {@link #getDictionaries()} only the
+ * call itself is timed, not the consumption of the enumeration.
+ *
+ * @author jassuncao
+ *
+ */
+public class MetricsPersistenceManager implements PersistenceManager {
+
+    private final PersistenceManager delegate;
+
+    private final PersistenceMetrics metrics;
+
+    protected MetricsPersistenceManager(PersistenceManager delegate, PersistenceMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Wraps the delegate, keeping it {@link NotCachablePersistenceManager} when it was, so Configuration Admin only
+     * adds its own cache when it would without the metrics
+     */
+    public static PersistenceManager wrap(PersistenceManager delegate, PersistenceMetrics metrics) {
+        if (delegate instanceof NotCachablePersistenceManager) {
+            return new NotCachable(delegate, metrics);
+        }
+        return new MetricsPersistenceManager(delegate, metrics);
+    }
+
+    @Override
+    public boolean exists(String pid) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            boolean exists = delegate.exists(pid);
+            error = false;
+            return exists;
+        } finally {
+            metrics.record(PersistenceMetrics.EXISTS, start, error);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Dictionary load(String pid) throws IOException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Dictionary properties = delegate.load(pid);
+            error = false;
+            return properties;
+        } finally {
+            metrics.record(PersistenceMetrics.LOAD, start, error);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getDictionaries() throws IOException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Enumeration dictionaries = delegate.getDictionaries();
+            error = false;
+            return dictionaries;
+        } finally {
+            metrics.record(PersistenceMetrics.GET_DICTIONARIES, start, error);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void store(String pid, Dictionary properties) throws IOException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.store(pid, properties);
+            error = false;
+        } finally {
+            metrics.record(PersistenceMetrics.STORE, start, error);
+        }
+    }
+
+    @Override
+    public void delete(String pid) throws IOException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            delegate.delete(pid);
+            error = false;
+        } finally {
+            metrics.record(PersistenceMetrics.DELETE, start, error);
+        }
+    }
+
+    private static class NotCachable extends MetricsPersistenceManager implements NotCachablePersistenceManager {
+
+        NotCachable(PersistenceManager delegate, PersistenceMetrics metrics) {
+            super(delegate, metrics);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.util.List;
+
+/**
+ * Dialect for MySQL and MariaDB
+ *
+ * @author jassuncao
+ *
+ */
+public class MySqlDialect extends SqlDialect {
+
+    public static final String NAME = "mysql";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String limitToOneRow(String query) {
+        return query + " LIMIT 1";
+    }
+
+    @Override
+    public String upsertSql(String table, List<String> keyColumns, List<String> valueColumns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (")
+                .append(columnList(keyColumns, valueColumns)).append(") VALUES (")
+                .append(parameterList(keyColumns.size() + valueColumns.size())).append(") ON DUPLICATE KEY UPDATE ");
+        for (int i = 0; i < valueColumns.size(); i++) {
+            String column = valueColumns.get(i);
+            sql.append(i == 0 ? "" : ", ").append(column).append(" = VALUES(").append(column).append(')');
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Both key columns fit in the 3072 bytes allowed for an InnoDB key with 4 byte characters
+     */
+    @Override
+    public String keyType() {
+        return "VARCHAR(255)";
+    }
+
+    @Override
+    public String typeCodeType() {
+        return "VARCHAR(16)";
+    }
+
+    @Override
+    public String textType() {
+        return "MEDIUMTEXT";
+    }
+
+    @Override
+    public String binaryType() {
+        return "LONGBLOB";
+    }
+}
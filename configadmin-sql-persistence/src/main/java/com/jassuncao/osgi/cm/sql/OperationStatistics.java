@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+/**
+ * Snapshot of the statistics recorded for an operation. Times are in microseconds and the percentiles are the upper
+ * bound of the histogram bucket where they fall.
+ *
+ * @author jassuncao
+ *
+ */
+public class OperationStatistics {
+
+    private final long count;
+    private final long errorCount;
+    private final long totalTime;
+    private final long maxTime;
+    private final long p50;
+    private final long p95;
+    private final long p99;
+    private final long[] histogramBounds;
+    private final long[] histogramCounts;
+
+    OperationStatistics(long count, long errorCount, long totalTime, long maxTime, long p50, long p95, long p99,
+            long[] histogramBounds, long[] histogramCounts) {
+        this.count = count;
+        this.errorCount = errorCount;
+        this.totalTime = totalTime;
+        this.maxTime = maxTime;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+        this.histogramBounds = histogramBounds;
+        this.histogramCounts = histogramCounts;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getMeanTime() {
+        return count > 0 ? totalTime / count : 0;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * @return the upper bound of each histogram bucket. The last bucket has no upper bound and is reported as
+     *         {@link Long#MAX_VALUE}
+     */
+    public long[] getHistogramBounds() {
+        return histogramBounds.clone();
+    }
+
+    /**
+     * @return the number of calls that took up to the matching bound in {@link #getHistogramBounds()}
+     */
+    public long[] getHistogramCounts() {
+        return histogramCounts.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", errors=" + errorCount + ", mean=" + getMeanTime() + "us, p50=" + p50 + "us, p95="
+                + p95 + "us, p99=" + p99 + "us, max=" + maxTime + "us";
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.cm.PersistenceManager;
+
+/**
+ * Asks several {@link PersistenceManager}s for their dictionaries at the same time. The first manager is asked from the
+ * calling thread and the others from a thread pool with one thread for each of them.
+ *
+ * @author jassuncao
+ *
+ */
+final class ParallelDictionaries implements AutoCloseable {
+
+    private final List<PersistenceManager> managers;
+
+    private final ExecutorService executor;
+
+    ParallelDictionaries(List<? extends PersistenceManager> managers, String threadName) {
+        this.managers = new ArrayList<>(managers);
+        int threads = Math.max(1, managers.size() - 1);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * @return the dictionaries of each manager, in the order of the managers. When one of the managers fails, the
+     *         dictionaries obtained from the others, now or once they are ready, are closed
+     */
+    @SuppressWarnings("unchecked")
+    List<Enumeration<Object>> getDictionaries() throws IOException {
+        List<CompletableFuture<Enumeration<Object>>> pending = new ArrayList<>(managers.size() - 1);
+        for (PersistenceManager manager : managers.subList(1, managers.size())) {
+            pending.add(CompletableFuture.supplyAsync(() -> load(manager), executor));
+        }
+        List<Enumeration<Object>> dictionaries = new ArrayList<>(managers.size());
+        try {
+            dictionaries.add((Enumeration<Object>) managers.get(0).getDictionaries());
+            for (Future<Enumeration<Object>> future : pending) {
+                dictionaries.add(await(future));
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            dictionaries.forEach(ParallelDictionaries::close);
+            pending.forEach(future -> future.thenAccept(ParallelDictionaries::close));
+            throw ex;
+        }
+        return dictionaries;
+    }
+
+    /**
+     * Loads the dictionaries from a pool thread, where checked exceptions can't be thrown
+     */
+    @SuppressWarnings("unchecked")
+    private static Enumeration<Object> load(PersistenceManager manager) {
+        try {
+            return manager.getDictionaries();
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Closes enumerations holding resources until exhausted, like the streaming ones of
+     * {@link DatabasePersistenceManager}
+     */
+    static void close(Enumeration<?> enumeration) {
+        if (enumeration instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) enumeration).close();
+            }
+            catch (Exception ex) {
+                // Nothing else can be done with it
+            }
+        }
+    }
+
+    private static Enumeration<Object> await(Future<Enumeration<Object>> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the configurations");
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the threads used by {@link #getDictionaries()}
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Enumerates the dictionaries of each manager in turn. Like any enumeration, it is meant to be consumed by a single
+     * thread and takes no locks. When one of the dictionaries fails, all of them are closed.
+     */
+    static class ChainedEnumeration implements Enumeration<Object>, AutoCloseable {
+
+        private final List<Enumeration<Object>> dictionaries;
+        private int current;
+        private boolean exhausted;
+
+        ChainedEnumeration(List<Enumeration<Object>> dictionaries) {
+            this.dictionaries = dictionaries;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            while (current < dictionaries.size()) {
+                Enumeration<Object> enumeration = dictionaries.get(current);
+                if (enumeration != null && hasMoreElements(enumeration)) {
+                    return true;
+                }
+                current++;
+            }
+            if (!exhausted) {
+                exhausted = true;
+                exhausted();
+            }
+            return false;
+        }
+
+        @Override
+        public Object nextElement() {
+            if (!hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+            Object element;
+            try {
+                element = dictionaries.get(current).nextElement();
+            }
+            catch (RuntimeException ex) {
+                close();
+                throw ex;
+            }
+            return element(element, current);
+        }
+
+        private boolean hasMoreElements(Enumeration<Object> enumeration) {
+            try {
+                return enumeration.hasMoreElements();
+            }
+            catch (RuntimeException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Closes the dictionaries not yet exhausted
+         */
+        @Override
+        public void close() {
+            for (int i = current; i < dictionaries.size(); i++) {
+                ParallelDictionaries.close(dictionaries.get(i));
+            }
+        }
+
+        /**
+         * Called with each element and the index of the manager it came from
+         */
+        Object element(Object element, int manager) {
+            return element;
+        }
+
+        /**
+         * Called once, when all the dictionaries have been enumerated
+         */
+        void exhausted() {
+            // Nothing by default
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * Call counts, error counts and latency histograms for the operations of a persistence manager. Published on the
+ * platform MBean server as {@code com.jassuncao.osgi.cm.sql:type=PersistenceMetrics,name=<name>}.
+ *
+ * @author jassuncao
+ *
+ */
+public class PersistenceMetrics implements PersistenceMetricsMXBean, AutoCloseable {
+
+    public static final String EXISTS = "exists";
+
+    public static final String LOAD = "load";
+
+    public static final String STORE = "store";
+
+    public static final String DELETE = "delete";
+
+    public static final String GET_DICTIONARIES = "getDictionaries";
+
+    /**
+     * Time waiting for a database connection
+     */
+    public static final String CONNECTION = "connection";
+
+    /**
+     * Time converting values to the form kept in the database
+     */
+    public static final String ENCODE = "encode";
+
+    /**
+     * Time converting values read from the database
+     */
+    public static final String DECODE = "decode";
+
+    /**
+     * Time lost in writes retried because another transaction changed the same PID
+     */
+    public static final String CONFLICT = "conflict";
+
+    /**
+     * Reads answered by the cache
+     */
+    public static final String CACHE_HITS = "cacheHits";
+
+    /**
+     * Reads the cache passed on to the persistence manager behind it
+     */
+    public static final String CACHE_MISSES = "cacheMisses";
+
+    /**
+     * Configurations held by the cache
+     */
+    public static final String CACHE_SIZE = "cacheSize";
+
+    private static final String DOMAIN = "com.jassuncao.osgi.cm.sql";
+
+    /**
+     * Upper bounds of the histogram buckets, in microseconds
+     */
+    private static final long[] BUCKET_BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, Long.MAX_VALUE };
+
+    private final String name;
+
+    private final LogHelper logHelper;
+
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    public PersistenceMetrics(String name, LogHelper logHelper) {
+        this.name = name;
+        this.logHelper = logHelper;
+    }
+
+    /**
+     * Records a call to an operation
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the call started
+     */
+    public void record(String operation, long startNanos, boolean error) {
+        operation(operation).record(System.nanoTime() - startNanos, error);
+    }
+
+    /**
+     * Publishes a value kept by the persistence manager itself. The value is read every time the gauges are
+     * requested and isn't cleared by {@link #reset()}.
+     */
+    public void gauge(String gauge, LongSupplier value) {
+        gauges.put(gauge, value);
+    }
+
+    private Operation operation(String operation) {
+        Operation recorder = operations.get(operation);
+        if (recorder == null) {
+            recorder = operations.computeIfAbsent(operation, key -> new Operation());
+        }
+        return recorder;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Map<String, OperationStatistics> getOperations() {
+        Map<String, OperationStatistics> statistics = new TreeMap<>();
+        operations.forEach((operation, recorder) -> statistics.put(operation, recorder.snapshot()));
+        return statistics;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((gauge, value) -> values.put(gauge, value.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        operations.clear();
+    }
+
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName(DOMAIN + ":type=PersistenceMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, candidate);
+            objectName = candidate;
+        } catch (JMException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to register the metrics of " + name, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ex) {
+                logHelper.log(LogService.LOG_DEBUG, "Failed to unregister the metrics of " + name, ex);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PersistenceMetrics[" + name + ", " + getOperations() + ", " + getGauges() + "]";
+    }
+
+    private static class Operation {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length];
+
+        Operation() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos, boolean error) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            count.increment();
+            if (error) {
+                errors.increment();
+            }
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+            int bucket = 0;
+            while (micros > BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+        }
+
+        OperationStatistics snapshot() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            return new OperationStatistics(count.sum(), errors.sum(), totalMicros.sum(), maxMicros.get(),
+                    percentile(counts, total, 0.50), percentile(counts, total, 0.95), percentile(counts, total, 0.99),
+                    BUCKET_BOUNDS.clone(), counts);
+        }
+
+        private static long percentile(long[] counts, long total, double percentile) {
+            long threshold = (long) Math.ceil(total * percentile);
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= threshold && cumulative > 0) {
+                    return BUCKET_BOUNDS[i];
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link PersistenceMetrics}
+ *
+ * @author jassuncao
+ *
+ */
+public interface PersistenceMetricsMXBean {
+
+    String getName();
+
+    /**
+     * @return the statistics of each operation recorded so far, by operation name
+     */
+    Map<String, OperationStatistics> getOperations();
+
+    /**
+     * @return the current value of each gauge, like the number of cache hits, by gauge name
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * Clears the statistics of all operations
+     */
+    void reset();
+}
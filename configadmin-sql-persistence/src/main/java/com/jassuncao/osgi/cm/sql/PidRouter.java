@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the persistence manager of a PID from an ordered list of rules, where the first matching rule wins.
+ * <p>
+ * Prefix and exact rules are compiled into a trie walked once per PID. Regular expressions are only tried when they
+ * come before the best rule found in the trie. Regular expressions matching a literal prefix, like
+ * {@code ^com\.acme\..*}, are compiled as prefixes. The decision is cached per PID.
+ *
+ * @author jassuncao
+ *
+ */
+public class PidRouter {
+
+    private static final String REGEX_PREFIX = "regex:";
+
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    private static final int MAX_CACHED_PIDS = 10000;
+
+    private final Node root;
+
+    private final List<RegexRule> regexRules;
+
+    private final List<String> targets;
+
+    private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+
+    private PidRouter(Builder builder) {
+        this.root = builder.root;
+        this.regexRules = new ArrayList<>(builder.regexRules);
+        this.targets = new ArrayList<>(builder.targets);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Parses a comma separated list of rules in the form {@code <rule>=<manager>}. A rule is either {@code *}, matching
+     * every PID, a prefix ending in {@code *}, a regular expression starting with {@code regex:} or an exact PID.
+     */
+    public static PidRouter parse(String rules) {
+        Builder builder = builder();
+        for (String entry : rules.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int separator = trimmed.lastIndexOf('=');
+            if (separator <= 0 || separator == trimmed.length() - 1) {
+                throw new IllegalArgumentException("Invalid routing rule: " + trimmed);
+            }
+            String rule = trimmed.substring(0, separator).trim();
+            String target = trimmed.substring(separator + 1).trim();
+            if (rule.startsWith(REGEX_PREFIX)) {
+                builder.regex(rule.substring(REGEX_PREFIX.length()), target);
+            }
+            else if (rule.endsWith("*")) {
+                builder.prefix(rule.substring(0, rule.length() - 1), target);
+            }
+            else {
+                builder.exact(rule, target);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the manager of the PID or null when no rule matches
+     */
+    public String route(String pid) {
+        String target = cache.get(pid);
+        if (target == null) {
+            target = resolve(pid);
+            if (target != null) {
+                if (cache.size() >= MAX_CACHED_PIDS) {
+                    cache.clear();
+                }
+                cache.put(pid, target);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * @return the managers referenced by the rules, in the order they first appear
+     */
+    public Set<String> getTargets() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(targets));
+    }
+
+    private String resolve(String pid) {
+        int best = root.prefixRule;
+        Node node = root;
+        int length = pid.length();
+        int i = 0;
+        for (; i < length; i++) {
+            node = node.child(pid.charAt(i));
+            if (node == null) {
+                break;
+            }
+            best = Math.min(best, node.prefixRule);
+        }
+        if (i == length) {
+            best = Math.min(best, node.exactRule);
+        }
+        for (RegexRule rule : regexRules) {
+            if (rule.index >= best) {
+                break;
+            }
+            if (rule.pattern.matcher(pid).matches()) {
+                best = rule.index;
+                break;
+            }
+        }
+        return best != NO_RULE ? targets.get(best) : null;
+    }
+
+    public static class Builder {
+
+        private final Node root = new Node();
+
+        private final List<RegexRule> regexRules = new ArrayList<>();
+
+        private final List<String> targets = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Routes the PIDs starting with the prefix
+         */
+        public Builder prefix(String prefix, String target) {
+            Node node = root.insert(prefix);
+            node.prefixRule = Math.min(node.prefixRule, addTarget(target));
+            return this;
+        }
+
+        /**
+         * Routes a single PID
+         */
+        public Builder exact(String pid, String target) {
+            Node node = root.insert(pid);
+            node.exactRule = Math.min(node.exactRule, addTarget(target));
+            return this;
+        }
+
+        /**
+         * Routes the PIDs fully matching the regular expression
+         */
+        public Builder regex(String regex, String target) {
+            String prefix = literalPrefix(regex);
+            if (prefix != null) {
+                return prefix(prefix, target);
+            }
+            String literal = literal(stripAnchors(regex));
+            if (literal != null) {
+                return exact(literal, target);
+            }
+            regexRules.add(new RegexRule(addTarget(target), Pattern.compile(regex)));
+            return this;
+        }
+
+        /**
+         * Routes every PID not matched by the previous rules
+         */
+        public Builder any(String target) {
+            return prefix("", target);
+        }
+
+        public PidRouter build() {
+            return new PidRouter(this);
+        }
+
+        private int addTarget(String target) {
+            targets.add(target);
+            return targets.size() - 1;
+        }
+    }
+
+    /**
+     * @return the prefix matched by a regular expression in the form {@code <literal>.*}, or null
+     */
+    static String literalPrefix(String regex) {
+        String body = stripAnchors(regex);
+        if (!body.endsWith(".*") || body.endsWith("\\.*")) {
+            return null;
+        }
+        return literal(body.substring(0, body.length() - 2));
+    }
+
+    private static String stripAnchors(String regex) {
+        String body = regex.startsWith("^") ? regex.substring(1) : regex;
+        if (body.endsWith("$") && !body.endsWith("\\$")) {
+            body = body.substring(0, body.length() - 1);
+        }
+        return body;
+    }
+
+    /**
+     * @return the text matched by a regular expression without any construct other than escaped punctuation, or null
+     */
+    private static String literal(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == regex.length()) {
+                    return null;
+                }
+                char escaped = regex.charAt(++i);
+                if (Character.isLetterOrDigit(escaped)) {
+                    return null;
+                }
+                literal.append(escaped);
+            }
+            else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                return null;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    private static class Node {
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int prefixRule = NO_RULE;
+        private int exactRule = NO_RULE;
+
+        Node child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node insert(String key) {
+            Node node = this;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                Node next = node.child(c);
+                if (next == null) {
+                    next = new Node();
+                    node.keys = Arrays.copyOf(node.keys, node.keys.length + 1);
+                    node.keys[node.keys.length - 1] = c;
+                    node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                    node.children[node.children.length - 1] = next;
+                }
+                node = next;
+            }
+            return node;
+        }
+    }
+
+    private static class RegexRule {
+
+        private final int index;
+        private final Pattern pattern;
+
+        RegexRule(int index, Pattern pattern) {
+            this.index = index;
+            this.pattern = pattern;
+        }
+    }
+}
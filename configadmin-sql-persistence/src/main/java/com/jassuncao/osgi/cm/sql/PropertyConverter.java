@@ -19,6 +19,7 @@ import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -72,6 +73,10 @@ class PropertyConverter {
 
     protected static final char TOKEN_PRIMITIVE_BOOLEAN = 'b';
 
+    protected static final char TOKEN_FIELD_SEPARATOR = '\t';
+
+    protected static final char TOKEN_ENTRY_SEPARATOR = '\n';
+
     protected static final Map<Character, Class<?>> code2Type;
 
     protected static final Map<Class<?>, Character> type2Code;
@@ -120,10 +125,12 @@ class PropertyConverter {
         if (type.length() >= 3) {
             String suffix = type.substring(1, 3);
             if ("[]".equals(suffix)) {
-                return convertStringToArray(code, valueAsString);
+                Object array = convertStringToArrayFast(code, valueAsString);
+                return array != null ? array : convertStringToArray(code, valueAsString);
 
             } else if ("()".equals(suffix)) {
-                return convertStringToCollection(code, valueAsString);
+                Collection<Object> collection = convertStringToCollectionFast(code, valueAsString);
+                return collection != null ? collection : convertStringToCollection(code, valueAsString);
             }
         }
         return convertStringToSimple(code, valueAsString);
@@ -188,7 +195,7 @@ class PropertyConverter {
      * @param valueAsString
      * @return
      */
-    private static Collection<Object> convertStringToCollection(char code, String valueAsString) {
+    static Collection<Object> convertStringToCollection(char code, String valueAsString) {
         Collection<Object> collection = new ArrayList<>();
         List<String> elems = splitElements(valueAsString);
         for (String el : elems) {
@@ -205,7 +212,7 @@ class PropertyConverter {
      * @param valueAsString
      * @return
      */
-    private static Object convertStringToArray(char code, String valueAsString) {
+    static Object convertStringToArray(char code, String valueAsString) {
         List<String> list = splitElements(valueAsString);
         Class<?> type = code2Type.get(code);
         Object array = Array.newInstance(type, list.size());
@@ -216,6 +223,277 @@ class PropertyConverter {
         return array;
     }
 
+    /**
+     * Decodes arrays of numbers and booleans in a single pass, writing the elements straight into the array. Returns
+     * null whenever the string holds something the generic path might handle differently, like escape sequences, empty
+     * elements or numbers out of range, so the caller falls back to {@link #convertStringToArray(char, String)}.
+     */
+    static Object convertStringToArrayFast(char code, String valueAsString) {
+        int size = countElements(valueAsString);
+        if (size < 0) {
+            return null;
+        }
+        ElementScanner scanner = new ElementScanner(valueAsString);
+        switch (code) {
+            case TOKEN_PRIMITIVE_INT: {
+                int[] array = new int[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextNumber(code)) {
+                        return null;
+                    }
+                    array[i] = (int) scanner.value;
+                }
+                return array;
+            }
+            case TOKEN_PRIMITIVE_LONG: {
+                long[] array = new long[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextNumber(code)) {
+                        return null;
+                    }
+                    array[i] = scanner.value;
+                }
+                return array;
+            }
+            case TOKEN_PRIMITIVE_FLOAT: {
+                float[] array = new float[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextNumber(code)) {
+                        return null;
+                    }
+                    array[i] = Float.intBitsToFloat((int) scanner.value);
+                }
+                return array;
+            }
+            case TOKEN_PRIMITIVE_DOUBLE: {
+                double[] array = new double[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextNumber(code)) {
+                        return null;
+                    }
+                    array[i] = Double.longBitsToDouble(scanner.value);
+                }
+                return array;
+            }
+            case TOKEN_PRIMITIVE_SHORT: {
+                short[] array = new short[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextNumber(code)) {
+                        return null;
+                    }
+                    array[i] = (short) scanner.value;
+                }
+                return array;
+            }
+            case TOKEN_PRIMITIVE_BYTE: {
+                byte[] array = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextNumber(code)) {
+                        return null;
+                    }
+                    array[i] = (byte) scanner.value;
+                }
+                return array;
+            }
+            case TOKEN_PRIMITIVE_BOOLEAN: {
+                boolean[] array = new boolean[size];
+                for (int i = 0; i < size; i++) {
+                    if (!scanner.nextBoolean()) {
+                        return null;
+                    }
+                    array[i] = scanner.value != 0;
+                }
+                return array;
+            }
+            case TOKEN_SIMPLE_INTEGER:
+            case TOKEN_SIMPLE_LONG:
+            case TOKEN_SIMPLE_FLOAT:
+            case TOKEN_SIMPLE_DOUBLE:
+            case TOKEN_SIMPLE_SHORT:
+            case TOKEN_SIMPLE_BYTE:
+            case TOKEN_SIMPLE_BOOLEAN: {
+                Object[] array = (Object[]) Array.newInstance(code2Type.get(code), size);
+                for (int i = 0; i < size; i++) {
+                    Object element = scanner.next(code);
+                    if (element == null) {
+                        return null;
+                    }
+                    array[i] = element;
+                }
+                return array;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Collection counterpart of {@link #convertStringToArrayFast(char, String)}. Returns null when the caller must fall
+     * back to {@link #convertStringToCollection(char, String)}.
+     */
+    static Collection<Object> convertStringToCollectionFast(char code, String valueAsString) {
+        if (code == TOKEN_SIMPLE_STRING || code == TOKEN_SIMPLE_CHARACTER || code == TOKEN_PRIMITIVE_CHAR
+                || code == TOKEN_GENERIC_OBJECT) {
+            return null;
+        }
+        int size = countElements(valueAsString);
+        if (size < 0) {
+            return null;
+        }
+        ElementScanner scanner = new ElementScanner(valueAsString);
+        Collection<Object> collection = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Object element = scanner.next(code);
+            if (element == null) {
+                return null;
+            }
+            collection.add(element);
+        }
+        return collection;
+    }
+
+    /**
+     * @return the number of elements in a list without escape sequences or -1 if the list has any
+     */
+    private static int countElements(String s) {
+        int separators = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                return -1;
+            }
+            if (c == TOKEN_COMMA) {
+                separators++;
+            }
+        }
+        if (s.isEmpty() || s.charAt(s.length() - 1) == TOKEN_COMMA) {
+            return separators;
+        }
+        return separators + 1;
+    }
+
+    /**
+     * Walks the elements of a list without escape sequences, parsing them in place
+     */
+    private static final class ElementScanner {
+
+        private final String s;
+        private int position;
+        private long value;
+
+        ElementScanner(String s) {
+            this.s = s;
+        }
+
+        /**
+         * @return the next element boxed like {@link PropertyConverter#convertStringToSimple(int, String)} does or
+         *         null if it isn't a plain number or boolean
+         */
+        Object next(char code) {
+            if (code == TOKEN_SIMPLE_BOOLEAN || code == TOKEN_PRIMITIVE_BOOLEAN) {
+                return nextBoolean() ? Boolean.valueOf(value != 0) : null;
+            }
+            if (!nextNumber(code)) {
+                return null;
+            }
+            switch (code) {
+                case TOKEN_SIMPLE_INTEGER:
+                case TOKEN_PRIMITIVE_INT:
+                    return Integer.valueOf((int) value);
+                case TOKEN_SIMPLE_LONG:
+                case TOKEN_PRIMITIVE_LONG:
+                    return Long.valueOf(value);
+                case TOKEN_SIMPLE_FLOAT:
+                case TOKEN_PRIMITIVE_FLOAT:
+                    return Float.intBitsToFloat((int) value);
+                case TOKEN_SIMPLE_DOUBLE:
+                case TOKEN_PRIMITIVE_DOUBLE:
+                    return Double.longBitsToDouble(value);
+                case TOKEN_SIMPLE_SHORT:
+                case TOKEN_PRIMITIVE_SHORT:
+                    return Short.valueOf((short) value);
+                case TOKEN_SIMPLE_BYTE:
+                case TOKEN_PRIMITIVE_BYTE:
+                    return Byte.valueOf((byte) value);
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Parses the next element as an ASCII decimal number within the range of the type. Anything else, including
+         * numbers the JDK would still accept like non ASCII digits, is left to the generic path.
+         */
+        boolean nextNumber(char code) {
+            int end = elementEnd();
+            int i = position;
+            if (i == end) {
+                return false;
+            }
+            boolean negative = false;
+            char first = s.charAt(i);
+            if (first == '-' || first == '+') {
+                negative = first == '-';
+                if (++i == end) {
+                    return false;
+                }
+            }
+            long result = 0;
+            for (; i < end; i++) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10) {
+                    return false;
+                }
+                result = result * 10 + digit;
+            }
+            result = negative ? -result : result;
+            if (!inRange(code, result)) {
+                return false;
+            }
+            value = result;
+            position = end + 1;
+            return true;
+        }
+
+        boolean nextBoolean() {
+            int end = elementEnd();
+            if (position == end) {
+                return false;
+            }
+            value = end - position == 4 && s.regionMatches(true, position, "true", 0, 4) ? 1 : 0;
+            position = end + 1;
+            return true;
+        }
+
+        private int elementEnd() {
+            int end = s.indexOf(TOKEN_COMMA, position);
+            return end < 0 ? s.length() : end;
+        }
+
+        private static boolean inRange(char code, long value) {
+            switch (code) {
+                case TOKEN_SIMPLE_INTEGER:
+                case TOKEN_PRIMITIVE_INT:
+                case TOKEN_SIMPLE_FLOAT:
+                case TOKEN_PRIMITIVE_FLOAT:
+                    return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+                case TOKEN_SIMPLE_SHORT:
+                case TOKEN_PRIMITIVE_SHORT:
+                    return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+                case TOKEN_SIMPLE_BYTE:
+                case TOKEN_PRIMITIVE_BYTE:
+                    return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+                case TOKEN_SIMPLE_LONG:
+                case TOKEN_PRIMITIVE_LONG:
+                case TOKEN_SIMPLE_DOUBLE:
+                case TOKEN_PRIMITIVE_DOUBLE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
     private static List<String> splitElements(String s) {
         ArrayList<String> elements = new ArrayList<>();
         StringBuilder collector = new StringBuilder();
@@ -334,4 +612,91 @@ class PropertyConverter {
 
     }
 
+    /**
+     * Appends a property to a payload holding a whole dictionary. Each property takes one line with the name, type and
+     * value separated by tabs.
+     */
+    static void appendEntry(StringBuilder payload, String name, String type, String valueAsString) {
+        appendEscaped(payload, name);
+        payload.append(TOKEN_FIELD_SEPARATOR);
+        appendEscaped(payload, type);
+        payload.append(TOKEN_FIELD_SEPARATOR);
+        appendEscaped(payload, valueAsString);
+        payload.append(TOKEN_ENTRY_SEPARATOR);
+    }
+
+    /**
+     * Rebuilds the dictionary from a payload written with {@link #appendEntry(StringBuilder, String, String, String)}
+     */
+    static Hashtable<String, Object> convertFromPayload(String payload) {
+        Hashtable<String, Object> dictionary = new Hashtable<>(); // NOSONAR
+        if (payload == null) {
+            return dictionary;
+        }
+        String[] fields = new String[3];
+        int field = 0;
+        StringBuilder collector = new StringBuilder();
+        boolean underEscape = false;
+        for (int i = 0; i < payload.length(); ++i) {
+            char c = payload.charAt(i);
+            if (underEscape) {
+                collector.append(unescape(c));
+                underEscape = false;
+            } else if (c == '\\') {
+                underEscape = true;
+            } else if (c == TOKEN_FIELD_SEPARATOR && field < 2) {
+                fields[field++] = collector.toString();
+                collector.setLength(0);
+            } else if (c == TOKEN_ENTRY_SEPARATOR) {
+                fields[field] = collector.toString();
+                collector.setLength(0);
+                if (field == 2) {
+                    Object value = convertFromString(fields[1], fields[2]);
+                    if (value != null) {
+                        dictionary.put(fields[0], value);
+                    }
+                }
+                field = 0;
+            } else {
+                collector.append(c);
+            }
+        }
+        return dictionary;
+    }
+
+    private static void appendEscaped(StringBuilder builder, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case TOKEN_FIELD_SEPARATOR:
+                    builder.append("\\t");
+                    break;
+                case TOKEN_ENTRY_SEPARATOR:
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+    private static char unescape(char c) {
+        switch (c) {
+            case 't':
+                return TOKEN_FIELD_SEPARATOR;
+            case 'n':
+                return TOKEN_ENTRY_SEPARATOR;
+            case 'r':
+                return '\r';
+            default:
+                return c;
+        }
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * Periodically asks the database for the PIDs changed since the last known revision and notifies the listeners
+ * keeping local copies of the configurations.
+ *
+ * @author jassuncao
+ *
+ */
+public class RevisionPoller implements AutoCloseable {
+
+    private final DatabasePersistenceManager persistenceManager;
+
+    private final List<ConfigurationChangeListener> listeners;
+
+    private final LogHelper logHelper;
+
+    private final ScheduledExecutorService executor;
+
+    private long lastRevision = -1;
+
+    public RevisionPoller(DatabasePersistenceManager persistenceManager, List<ConfigurationChangeListener> listeners,
+            LogHelper logHelper) {
+        this.persistenceManager = persistenceManager;
+        this.listeners = listeners;
+        this.logHelper = logHelper;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "osgi-cm-sql-revision-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the current revision and starts polling for changes made after it
+     */
+    public void start(long intervalMillis) {
+        try {
+            lastRevision = persistenceManager.loadCurrentRevision();
+        }
+        catch (IOException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to read the current revision", ex);
+        }
+        executor.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    void poll() {
+        try {
+            if (lastRevision < 0) {
+                // Without a starting point every local copy is suspect
+                lastRevision = 0;
+            }
+            Map<String, Long> changes = persistenceManager.loadChangesSince(lastRevision);
+            for (Map.Entry<String, Long> change : changes.entrySet()) {
+                logHelper.log(LogService.LOG_DEBUG, "Configuration " + change.getKey() + " changed at revision " + change.getValue(), null);
+                for (ConfigurationChangeListener listener : listeners) {
+                    listener.configurationChanged(change.getKey());
+                }
+                lastRevision = Math.max(lastRevision, change.getValue());
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to poll for configuration changes", ex);
+        }
+    }
+
+    long getLastRevision() {
+        return lastRevision;
+    }
+
+}
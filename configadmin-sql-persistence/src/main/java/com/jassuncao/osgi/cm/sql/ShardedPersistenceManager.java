@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.felix.cm.PersistenceManager;
+
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
+/**
+ * Spreads the PIDs over several {@link PersistenceManager}s, the shards, using a stable hash of the PID. Each PID is
+ * only ever read from and written to its own shard, so the number and order of the shards must not change once
+ * configurations are stored. The number of shards is recorded with
+ * {@link DatabasePersistenceManager#checkShardCount(String, int)}.
+ *
+ * @author jassuncao
+ *
+ */
+public class ShardedPersistenceManager implements PersistenceManager, BulkPersistenceManager, AutoCloseable {
+
+    private final List<PersistenceManager> shards;
+
+    private final ParallelDictionaries dictionaries;
+
+    public ShardedPersistenceManager(List<? extends PersistenceManager> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = new ArrayList<>(shards);
+        this.dictionaries = new ParallelDictionaries(shards, "osgi-cm-sql-shards");
+    }
+
+    /**
+     * @return the index of the shard holding the PID, between 0 and count - 1
+     */
+    static int shardOf(String pid, int count) {
+        CRC32 crc = new CRC32();
+        crc.update(pid.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % count);
+    }
+
+    private PersistenceManager shard(String pid) {
+        return shards.get(shardOf(pid, shards.size()));
+    }
+
+    @Override
+    public boolean exists(String pid) {
+        return shard(pid).exists(pid);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Dictionary load(String pid) throws IOException {
+        return shard(pid).load(pid);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void store(String pid, Dictionary properties) throws IOException {
+        shard(pid).store(pid, properties);
+    }
+
+    @Override
+    public void delete(String pid) throws IOException {
+        shard(pid).delete(pid);
+    }
+
+    /**
+     * Stores the configurations of each shard together. Shards that don't support bulk writes store them one at a
+     * time.
+     */
+    @Override
+    public void storeAll(Map<String, ? extends Dictionary<String, ?>> configurations) throws IOException {
+        Map<PersistenceManager, Map<String, Dictionary<String, ?>>> byShard = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends Dictionary<String, ?>> entry : configurations.entrySet()) {
+            byShard.computeIfAbsent(shard(entry.getKey()), shard -> new LinkedHashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<PersistenceManager, Map<String, Dictionary<String, ?>>> entry : byShard.entrySet()) {
+            PersistenceManager shard = entry.getKey();
+            if (shard instanceof BulkPersistenceManager) {
+                ((BulkPersistenceManager) shard).storeAll(entry.getValue());
+                continue;
+            }
+            for (Map.Entry<String, Dictionary<String, ?>> configuration : entry.getValue().entrySet()) {
+                shard.store(configuration.getKey(), configuration.getValue());
+            }
+        }
+    }
+
+    /**
+     * Asks all shards for their dictionaries at the same time and enumerates them in turn
+     */
+    @Override
+    public Enumeration<Object> getDictionaries() throws IOException {
+        return new ParallelDictionaries.ChainedEnumeration(dictionaries.getDictionaries());
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Stops the threads used by {@link #getDictionaries()}
+     */
+    @Override
+    public void close() {
+        dictionaries.close();
+    }
+
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.cm.NotCachablePersistenceManager;
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.log.LogService;
+
+/**
+ * Serves configurations from a local snapshot file of the last known configuration set, so Configuration Admin can
+ * start before the database is available.
+ * Once a delegate is attached, changes made locally are pushed to it and the snapshot is reconciled with the delegate
+ * in the background. From then on writes go to the delegate first and the snapshot is kept up to date.
+ * <p>
+ * The whole configuration set is kept in memory, so Configuration Admin doesn't need to cache it. This also lets the
+ * reconciled configurations be visible to Configuration Admin. The snapshot file is rewritten in the background at most
+ * once every {@value #SNAPSHOT_DELAY_MILLIS} milliseconds, with all the changes made meanwhile, and on close.
+ *
+ * @author jassuncao
+ *
+ */
+public class SnapshotPersistenceManager implements NotCachablePersistenceManager, ConfigurationChangeListener, AutoCloseable {
+
+    private static final int MAGIC = 0x4F434653;
+
+    private static final int VERSION = 2;
+
+    private static final long RETRY_DELAY_MILLIS = 30000L;
+
+    private static final long SNAPSHOT_DELAY_MILLIS = 1000L;
+
+    private final File snapshotFile;
+
+    private final LogHelper logHelper;
+
+    private final Map<String, Dictionary<String, Object>> configurations = new LinkedHashMap<>();
+
+    /**
+     * PIDs stored or deleted while no delegate was attached
+     */
+    private final Set<String> pendingPids = new LinkedHashSet<>();
+
+    /**
+     * PIDs written since the current reconciliation started. The values read from the delegate for them are stale.
+     */
+    private final Set<String> touchedPids = new HashSet<>();
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Only one snapshot is written at a time
+     */
+    private final Object snapshotLock = new Object();
+
+    private PersistenceManager delegate;
+
+    /**
+     * The databases of the delegate, when they track revisions
+     */
+    private List<DatabasePersistenceManager> revisionSources = Collections.emptyList();
+
+    /**
+     * Revisions of the revision sources when the delegate was last detached or reconciled. Empty when not known.
+     */
+    private long[] syncRevisions = new long[0];
+
+    /**
+     * Whether there are changes not yet in the snapshot file
+     */
+    private boolean snapshotDirty;
+
+    private boolean snapshotScheduled;
+
+    private boolean closed;
+
+    private long attachGeneration;
+
+    private long writeGeneration;
+
+    public SnapshotPersistenceManager(File snapshotFile, LogHelper logHelper) {
+        this.snapshotFile = snapshotFile;
+        this.logHelper = logHelper;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "osgi-cm-sql-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the snapshot file, if present
+     */
+    public void init() {
+        if (!snapshotFile.isFile()) {
+            logHelper.log(LogService.LOG_INFO, "No configuration snapshot found at " + snapshotFile, null);
+            return;
+        }
+        try {
+            synchronized (this) {
+                readSnapshot();
+            }
+            logHelper.log(LogService.LOG_INFO, "Loaded " + configurations.size() + " configurations from snapshot " + snapshotFile, null);
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to read configuration snapshot " + snapshotFile, ex);
+            synchronized (this) {
+                configurations.clear();
+                pendingPids.clear();
+                syncRevisions = new long[0];
+            }
+        }
+    }
+
+    /**
+     * Sets the PersistenceManager holding the authoritative configurations. Local changes are pushed to it and the
+     * snapshot is reconciled in the background.
+     */
+    public void attach(PersistenceManager delegate) {
+        attach(delegate, Collections.emptyList());
+    }
+
+    /**
+     * Sets the PersistenceManager holding the authoritative configurations, together with the databases behind it.
+     * Local changes are pushed to it, except for the PIDs changed in the databases since the last detach, which keep
+     * the database value. The snapshot is reconciled in the background.
+     *
+     * @param revisionSources the databases of the delegate, tracking revisions. Can be empty, in which case every local
+     *        change is pushed
+     */
+    public synchronized void attach(PersistenceManager delegate, List<DatabasePersistenceManager> revisionSources) {
+        this.delegate = delegate;
+        this.revisionSources = revisionSources;
+        long generation = ++attachGeneration;
+        executor.execute(() -> synchronize(delegate, revisionSources, generation));
+    }
+
+    /**
+     * Removes the delegate and records the current revisions of its databases. Until a new delegate is attached,
+     * changes are only kept in the snapshot.
+     */
+    public void detach() {
+        List<DatabasePersistenceManager> sources;
+        synchronized (this) {
+            this.delegate = null;
+            attachGeneration++;
+            sources = revisionSources;
+            revisionSources = Collections.emptyList();
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        try {
+            long[] revisions = loadRevisions(sources);
+            synchronized (this) {
+                syncRevisions = revisions;
+                snapshotChanged();
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to read the database revision on detach. The revision of the last reconciliation is kept", ex);
+        }
+    }
+
+    /**
+     * Stops the background tasks and writes the changes not yet in the snapshot file
+     */
+    @Override
+    public void close() {
+        detach();
+        synchronized (this) {
+            closed = true;
+        }
+        executor.shutdownNow();
+        writeSnapshotQuietly();
+    }
+
+    @Override
+    public synchronized boolean exists(String pid) {
+        return configurations.containsKey(pid);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized Dictionary load(String pid) throws IOException {
+        Dictionary<String, Object> dictionary = configurations.get(pid);
+        return dictionary != null ? Dictionaries.copy(dictionary) : new Hashtable<>(); // NOSONAR
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized Enumeration getDictionaries() throws IOException {
+        List<Dictionary<String, Object>> dictionaries = new ArrayList<>(configurations.size());
+        for (Dictionary<String, Object> dictionary : configurations.values()) {
+            dictionaries.add(Dictionaries.copy(dictionary));
+        }
+        return Dictionaries.enumeration(dictionaries);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void store(String pid, Dictionary properties) throws IOException {
+        PersistenceManager target = writeTarget(pid);
+        if (target != null) {
+            target.store(pid, properties);
+        }
+        boolean writeNow;
+        synchronized (this) {
+            configurations.put(pid, Dictionaries.copy(properties));
+            writeNow = snapshotChanged();
+        }
+        if (writeNow) {
+            writeSnapshotQuietly();
+        }
+    }
+
+    @Override
+    public void delete(String pid) throws IOException {
+        PersistenceManager target = writeTarget(pid);
+        if (target != null) {
+            target.delete(pid);
+        }
+        boolean writeNow;
+        synchronized (this) {
+            configurations.remove(pid);
+            writeNow = snapshotChanged();
+        }
+        if (writeNow) {
+            writeSnapshotQuietly();
+        }
+    }
+
+    /**
+     * @return the delegate or null if there is none. In the latter case the PID is marked as pending.
+     */
+    private synchronized PersistenceManager writeTarget(String pid) {
+        touchedPids.add(pid);
+        writeGeneration++;
+        if (delegate == null || pendingPids.contains(pid)) {
+            pendingPids.add(pid);
+            return null;
+        }
+        return delegate;
+    }
+
+    /**
+     * Reloads the configuration from the delegate, if attached
+     */
+    @Override
+    public void configurationChanged(String pid) {
+        executor.execute(() -> refresh(pid));
+    }
+
+    private void refresh(String pid) {
+        PersistenceManager target;
+        long generation;
+        synchronized (this) {
+            target = delegate;
+            generation = writeGeneration;
+            if (target == null || pendingPids.contains(pid)) {
+                return;
+            }
+        }
+        try {
+            Dictionary<?, ?> properties = target.exists(pid) ? target.load(pid) : null;
+            synchronized (this) {
+                // A local write makes the loaded value stale. The write triggers another refresh anyway
+                if (generation != writeGeneration) {
+                    return;
+                }
+                if (properties == null || properties.isEmpty()) {
+                    configurations.remove(pid);
+                }
+                else {
+                    configurations.put(pid, Dictionaries.copy(properties));
+                }
+                snapshotChanged();
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to refresh configuration " + pid, ex);
+        }
+    }
+
+    private void synchronize(PersistenceManager target, List<DatabasePersistenceManager> sources, long generation) {
+        try {
+            discardConflictingChanges(sources, generation);
+            pushPendingChanges(target, generation);
+            long[] revisions = loadRevisions(sources);
+            reconcile(target, generation);
+            synchronized (this) {
+                if (generation == attachGeneration) {
+                    syncRevisions = revisions;
+                    snapshotChanged();
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to reconcile configuration snapshot. Retrying in " + RETRY_DELAY_MILLIS + "ms", ex);
+            synchronized (this) {
+                if (generation == attachGeneration) {
+                    executor.schedule(() -> synchronize(target, sources, generation), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops pushing the local changes to PIDs that were also changed in the databases since the last detach. The
+     * database value is kept and replaces the local one when reconciling.
+     */
+    private void discardConflictingChanges(List<DatabasePersistenceManager> sources, long generation) throws IOException {
+        long[] since;
+        synchronized (this) {
+            if (sources.isEmpty() || pendingPids.isEmpty()) {
+                return;
+            }
+            if (syncRevisions.length != sources.size()) {
+                logHelper.log(LogService.LOG_WARNING, "No database revision recorded in the snapshot. Local changes to " + pendingPids + " are pushed without checking for conflicts", null);
+                return;
+            }
+            since = syncRevisions.clone();
+        }
+        Set<String> changed = new HashSet<>();
+        for (int i = 0; i < since.length; i++) {
+            changed.addAll(sources.get(i).loadChangesSince(since[i]).keySet());
+        }
+        synchronized (this) {
+            if (generation != attachGeneration) {
+                return;
+            }
+            for (Iterator<String> it = pendingPids.iterator(); it.hasNext();) {
+                String pid = it.next();
+                if (changed.contains(pid)) {
+                    logHelper.log(LogService.LOG_WARNING, "Configuration " + pid + " was changed in the database while detached. Keeping the database value and discarding the local change", null);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static long[] loadRevisions(List<DatabasePersistenceManager> sources) throws IOException {
+        long[] revisions = new long[sources.size()];
+        for (int i = 0; i < revisions.length; i++) {
+            revisions[i] = sources.get(i).loadCurrentRevision();
+        }
+        return revisions;
+    }
+
+    private void pushPendingChanges(PersistenceManager target, long generation) throws IOException {
+        while (true) {
+            String pid;
+            Dictionary<String, Object> properties;
+            synchronized (this) {
+                if (generation != attachGeneration) {
+                    return;
+                }
+                Iterator<String> it = pendingPids.iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                pid = it.next();
+                properties = configurations.get(pid);
+            }
+            if (properties != null) {
+                target.store(pid, properties);
+            }
+            else {
+                target.delete(pid);
+            }
+            synchronized (this) {
+                // Only clear the PID if it wasn't changed again meanwhile
+                if (properties == configurations.get(pid)) {
+                    pendingPids.remove(pid);
+                }
+            }
+        }
+    }
+
+    private void reconcile(PersistenceManager target, long generation) throws IOException {
+        synchronized (this) {
+            touchedPids.clear();
+        }
+        Map<String, Dictionary<String, Object>> actual = new HashMap<>();
+        for (Enumeration<?> dictionaries = target.getDictionaries(); dictionaries.hasMoreElements();) {
+            Dictionary<?, ?> dictionary = (Dictionary<?, ?>) dictionaries.nextElement();
+            Object pid = dictionary.get(Constants.SERVICE_PID);
+            if (pid instanceof String) {
+                actual.put((String) pid, Dictionaries.copy(dictionary));
+            }
+        }
+        synchronized (this) {
+            if (generation != attachGeneration) {
+                return;
+            }
+            int differences = 0;
+            for (Iterator<String> it = configurations.keySet().iterator(); it.hasNext();) {
+                String pid = it.next();
+                if (!actual.containsKey(pid) && !touchedPids.contains(pid) && !pendingPids.contains(pid)) {
+                    it.remove();
+                    differences++;
+                }
+            }
+            for (Map.Entry<String, Dictionary<String, Object>> entry : actual.entrySet()) {
+                String pid = entry.getKey();
+                if (touchedPids.contains(pid) || pendingPids.contains(pid)) {
+                    continue;
+                }
+                if (!sameProperties(entry.getValue(), configurations.get(pid))) {
+                    configurations.put(pid, entry.getValue());
+                    differences++;
+                }
+            }
+            logHelper.log(LogService.LOG_INFO, "Configuration snapshot reconciled. " + differences + " differences found", null);
+            if (differences > 0) {
+                snapshotChanged();
+            }
+        }
+    }
+
+    /**
+     * Schedules writing the snapshot file, unless already scheduled. Must be called holding the monitor.
+     *
+     * @return true if closed, in which case the caller must write the snapshot itself, outside the monitor
+     */
+    private boolean snapshotChanged() {
+        snapshotDirty = true;
+        if (closed) {
+            return true;
+        }
+        if (!snapshotScheduled) {
+            snapshotScheduled = true;
+            executor.schedule(this::writeSnapshotQuietly, SNAPSHOT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Writes a copy of the configurations taken under the monitor, so stores and deletes don't wait for the file
+     */
+    private void writeSnapshotQuietly() {
+        synchronized (snapshotLock) {
+            Map<String, Dictionary<String, Object>> snapshot;
+            Collection<String> pending;
+            long[] revisions;
+            synchronized (this) {
+                snapshotScheduled = false;
+                if (!snapshotDirty) {
+                    return;
+                }
+                snapshotDirty = false;
+                // The dictionaries are never modified once in the map, so a shallow copy is enough
+                snapshot = new LinkedHashMap<>(configurations);
+                pending = new ArrayList<>(pendingPids);
+                revisions = syncRevisions;
+            }
+            try {
+                writeSnapshot(snapshot, pending, revisions);
+            }
+            catch (IOException ex) {
+                logHelper.log(LogService.LOG_WARNING, "Failed to write configuration snapshot " + snapshotFile, ex);
+                synchronized (this) {
+                    // Written again with the next change or on close
+                    snapshotDirty = true;
+                }
+            }
+        }
+    }
+
+    private void writeSnapshot(Map<String, Dictionary<String, Object>> configurations, Collection<String> pendingPids,
+            long[] revisions) throws IOException {
+        File parent = snapshotFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        Path target = snapshotFile.toPath();
+        Path temp = target.resolveSibling(snapshotFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(configurations.size());
+            for (Map.Entry<String, Dictionary<String, Object>> entry : configurations.entrySet()) {
+                writeString(out, entry.getKey());
+                Dictionary<String, Object> dictionary = entry.getValue();
+                List<String[]> properties = new ArrayList<>(dictionary.size());
+                for (Enumeration<String> keys = dictionary.keys(); keys.hasMoreElements();) {
+                    String name = keys.nextElement();
+                    Object value = dictionary.get(name);
+                    String typeCode = PropertyConverter.getCodeForType(value);
+                    if (typeCode != null) {
+                        properties.add(new String[] { name, typeCode, PropertyConverter.convertToString(value) });
+                    }
+                }
+                out.writeInt(properties.size());
+                for (String[] property : properties) {
+                    writeString(out, property[0]);
+                    writeString(out, property[1]);
+                    writeString(out, property[2]);
+                }
+            }
+            out.writeInt(pendingPids.size());
+            for (String pid : pendingPids) {
+                writeString(out, pid);
+            }
+            out.writeInt(revisions.length);
+            for (long revision : revisions) {
+                out.writeLong(revision);
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unsupported snapshot format");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String pid = readString(in);
+                int size = in.readInt();
+                Hashtable<String, Object> dictionary = new Hashtable<>(); // NOSONAR
+                for (int j = 0; j < size; j++) {
+                    String name = readString(in);
+                    String type = readString(in);
+                    String value = readString(in);
+                    dictionary.put(name, PropertyConverter.convertFromString(type, value));
+                }
+                configurations.put(pid, dictionary);
+            }
+            int pending = in.readInt();
+            for (int i = 0; i < pending; i++) {
+                pendingPids.add(readString(in));
+            }
+            // Snapshots of version 1 have no revisions
+            if (version >= 2) {
+                long[] revisions = new long[in.readInt()];
+                for (int i = 0; i < revisions.length; i++) {
+                    revisions[i] = in.readLong();
+                }
+                syncRevisions = revisions;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares two dictionaries using the stored representation of their values, so arrays are compared by content
+     */
+    private static boolean sameProperties(Dictionary<String, Object> a, Dictionary<String, Object> b) {
+        if (b == null || a.size() != b.size()) {
+            return false;
+        }
+        for (Enumeration<String> keys = a.keys(); keys.hasMoreElements();) {
+            String name = keys.nextElement();
+            Object value = a.get(name);
+            Object other = b.get(name);
+            if (other == null || !Objects.equals(PropertyConverter.getCodeForType(value), PropertyConverter.getCodeForType(other))
+                    || !PropertyConverter.convertToString(value).equals(PropertyConverter.convertToString(other))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
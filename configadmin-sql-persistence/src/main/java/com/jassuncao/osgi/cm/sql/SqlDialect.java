@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The SQL used by {@link DatabasePersistenceManager} that differs between databases. This class uses only portable
+ * SQL and is used for databases without a more specific dialect.
+ *
+ * @author jassuncao
+ *
+ */
+public class SqlDialect {
+
+    public static final String GENERIC = "generic";
+
+    /**
+     * @return the dialect matching the database product
+     */
+    public static SqlDialect detect(DatabaseMetaData metaData) throws SQLException {
+        return forProductName(metaData.getDatabaseProductName());
+    }
+
+    public static SqlDialect forProductName(String databaseProductName) {
+        String product = databaseProductName != null ? databaseProductName.toLowerCase(Locale.ROOT) : "";
+        if (product.startsWith("h2")) {
+            return new H2Dialect();
+        }
+        if (product.contains("postgres")) {
+            return new PostgreSqlDialect();
+        }
+        if (product.contains("mysql") || product.contains("mariadb")) {
+            return new MySqlDialect();
+        }
+        return new SqlDialect();
+    }
+
+    /**
+     * @param name one of {@code generic}, {@code h2}, {@code postgresql} or {@code mysql}
+     */
+    public static SqlDialect forName(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+        case GENERIC:
+            return new SqlDialect();
+        case H2Dialect.NAME:
+            return new H2Dialect();
+        case PostgreSqlDialect.NAME:
+            return new PostgreSqlDialect();
+        case MySqlDialect.NAME:
+            return new MySqlDialect();
+        default:
+            throw new IllegalArgumentException("Unknown SQL dialect " + name);
+        }
+    }
+
+    public String getName() {
+        return GENERIC;
+    }
+
+    /**
+     * Limits a query to its first row. Callers also set the maximum number of rows on the statement, so databases
+     * without a suitable clause return the query unchanged.
+     */
+    public String limitToOneRow(String query) {
+        return query;
+    }
+
+    /**
+     * Builds a statement inserting a row, or updating the value columns of the row with the same key. The parameters
+     * are the key columns followed by the value columns.
+     *
+     * @return the statement, or null when the database has no such statement
+     */
+    public String upsertSql(String table, List<String> keyColumns, List<String> valueColumns) {
+        return null;
+    }
+
+    /**
+     * @return the type of the PID and property name columns
+     */
+    public String keyType() {
+        return "VARCHAR";
+    }
+
+    /**
+     * @return the type of the column holding the property type code
+     */
+    public String typeCodeType() {
+        return "VARCHAR";
+    }
+
+    /**
+     * @return the type of the columns holding values encoded as text
+     */
+    public String textType() {
+        return "VARCHAR";
+    }
+
+    /**
+     * @return the type of the columns holding values encoded in binary
+     */
+    public String binaryType() {
+        return "VARBINARY";
+    }
+
+    /**
+     * Builds a statement creating an index on some columns that also holds the included columns, so queries reading
+     * only those columns don't need to read the table
+     */
+    public String createIndexSql(String index, String table, List<String> columns, List<String> includedColumns) {
+        StringBuilder sql = new StringBuilder("CREATE INDEX ").append(index).append(" ON ").append(table).append(" (");
+        sql.append(String.join(", ", columns));
+        for (String column : includedColumns) {
+            sql.append(", ").append(column);
+        }
+        return sql.append(')').toString();
+    }
+
+    protected static String columnList(List<String> keyColumns, List<String> valueColumns) {
+        StringBuilder columns = new StringBuilder(String.join(", ", keyColumns));
+        for (String column : valueColumns) {
+            columns.append(", ").append(column);
+        }
+        return columns.toString();
+    }
+
+    protected static String parameterList(int count) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            parameters.append(i == 0 ? "?" : ", ?");
+        }
+        return parameters.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
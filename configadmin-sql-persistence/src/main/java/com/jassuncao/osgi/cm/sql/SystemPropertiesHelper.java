@@ -15,8 +15,10 @@
  */
 package com.jassuncao.osgi.cm.sql;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Locale;
 import java.util.Properties;
 
 import org.osgi.framework.BundleContext;
@@ -38,20 +40,88 @@ public class SystemPropertiesHelper {
 
     public static final String PROPERTY_JDBC_PASSWORD = SQL_PREFIX+"password"; 
 
+    public static final String PROPERTY_REPLICA_URL = SQL_PREFIX+"replica.url";
+    
+    public static final String PROPERTY_REPLICA_USER = SQL_PREFIX+"replica.user";
+    
+    public static final String PROPERTY_REPLICA_PASSWORD = SQL_PREFIX+"replica.password";
+    
+    public static final String PROPERTY_REPLICA_WINDOW = SQL_PREFIX+"replica.window";
+    
     public static final String PROPERTY_TABLE = SQL_PREFIX+"table";
     
     public static final String PROPERTY_SCHEMA = SQL_PREFIX+"schema";
     
+    public static final String PROPERTY_SHARDS = SQL_PREFIX+"shards";
+    
+    public static final String PROPERTY_SHARD_URLS = SQL_PREFIX+"shard.urls";
+    
     public static final String PROPERTY_LOG_LEVEL = SQL_PREFIX+"loglevel";
     
     public static final String PROPERTY_PAX_CONFIG = SQL_PREFIX+"paxconfig";
     
+    public static final String PROPERTY_CACHE_ENABLED = SQL_PREFIX+"cache.enabled";
+    
+    public static final String PROPERTY_CACHE_SIZE = SQL_PREFIX+"cache.size";
+    
+    public static final String PROPERTY_POOL_ENABLED = SQL_PREFIX+"pool.enabled";
+    
+    public static final String PROPERTY_POOL_MIN_SIZE = SQL_PREFIX+"pool.min.size";
+    
+    public static final String PROPERTY_POOL_MAX_SIZE = SQL_PREFIX+"pool.max.size";
+    
+    public static final String PROPERTY_POOL_ACQUIRE_TIMEOUT = SQL_PREFIX+"pool.acquire.timeout";
+    
+    public static final String PROPERTY_POOL_IDLE_TIMEOUT = SQL_PREFIX+"pool.idle.timeout";
+    
+    public static final String PROPERTY_POOL_VALIDATION_TIMEOUT = SQL_PREFIX+"pool.validation.timeout";
+    
+    public static final String PROPERTY_POOL_STATEMENT_CACHE_SIZE = SQL_PREFIX+"pool.statement.cache.size";
+    
+    public static final String PROPERTY_STREAMING = SQL_PREFIX+"streaming";
+    
+    public static final String PROPERTY_FETCH_SIZE = SQL_PREFIX+"fetch.size";
+    
+    public static final String PROPERTY_SNAPSHOT_ENABLED = SQL_PREFIX+"snapshot.enabled";
+    
+    public static final String PROPERTY_SNAPSHOT_FILE = SQL_PREFIX+"snapshot.file";
+    
+    public static final String PROPERTY_REVISION_ENABLED = SQL_PREFIX+"revision.enabled";
+    
+    public static final String PROPERTY_REVISION_POLL_INTERVAL = SQL_PREFIX+"revision.poll.interval";
+    
+    public static final String PROPERTY_LAYOUT = SQL_PREFIX+"layout";
+    
+    public static final String PROPERTY_LAYOUT_MIGRATE_FROM = SQL_PREFIX+"layout.migrate.from";
+    
+    public static final String PROPERTY_BINARY_ENABLED = SQL_PREFIX+"binary.enabled";
+    
+    public static final String PROPERTY_METRICS_ENABLED = SQL_PREFIX+"metrics.enabled";
+    
+    public static final String PROPERTY_DIALECT = SQL_PREFIX+"dialect";
+    
+    public static final String PROPERTY_OPTIMISTIC_ENABLED = SQL_PREFIX+"optimistic.enabled";
+    
+    public static final String PROPERTY_OPTIMISTIC_RETRIES = SQL_PREFIX+"optimistic.retries";
+    
+    public static final String PROPERTY_WRITE_BEHIND_ENABLED = SQL_PREFIX+"writebehind.enabled";
+    
+    public static final String PROPERTY_WRITE_BEHIND_DELAY = SQL_PREFIX+"writebehind.delay";
+    
+    public static final String PROPERTY_WRITE_BEHIND_BATCH_SIZE = SQL_PREFIX+"writebehind.batch.size";
+    
+    public static final String PROPERTY_WRITE_BEHIND_CLOSE_TIMEOUT = SQL_PREFIX+"writebehind.close.timeout";
+    
+    public static final String PROPERTY_WRITE_BEHIND_PENDING_FILE = SQL_PREFIX+"writebehind.pending.file";
+    
     public static final String PROPERTY_DELEGATED_PRIMARY = DELEGATED_PREFIX+"primary";
     
     public static final String PROPERTY_DELEGATED_SECONDARY = DELEGATED_PREFIX+"secondary";
     
     public static final String PROPERTY_DELEGATED_PRIMARY_PIDS = DELEGATED_PREFIX+"primary.pids";
     
+    public static final String PROPERTY_DELEGATED_ROUTES = DELEGATED_PREFIX+"routes";
+    
     
     private final BundleContext bundleContext;
     private final Properties paxJdbcProperties = new Properties();
@@ -86,6 +156,22 @@ public class SystemPropertiesHelper {
         return getOwnValueOrPax(PROPERTY_JDBC_PASSWORD,"password", null);
     }
 
+    public String getReplicaUrl() {
+        return getOwnValue(PROPERTY_REPLICA_URL, null);
+    }
+
+    public String getReplicaUser() {
+        return getOwnValue(PROPERTY_REPLICA_USER, getJdbcUser());
+    }
+
+    public String getReplicaPassword() {
+        return getOwnValue(PROPERTY_REPLICA_PASSWORD, getJdbcPassword());
+    }
+
+    public long getReplicaWindow() {
+        return getLongValue(PROPERTY_REPLICA_WINDOW, 5000L);
+    }
+
     public String getTableName() {
         return getOwnValue(PROPERTY_TABLE, "osgi_config");
     }
@@ -94,10 +180,138 @@ public class SystemPropertiesHelper {
         return getOwnValue(PROPERTY_SCHEMA, null);
     }
     
+    public int getShards() {
+        return getIntValue(PROPERTY_SHARDS, 1);
+    }
+
+    public String getShardUrls() {
+        return getOwnValue(PROPERTY_SHARD_URLS, null);
+    }
+    
     public String getPaxJdbcConfig() {
         return getOwnValue(PROPERTY_PAX_CONFIG, null);
     }
    
+    public boolean isCacheEnabled() {
+        return getBooleanValue(PROPERTY_CACHE_ENABLED, false);
+    }
+    
+    public int getCacheSize() {
+        return getIntValue(PROPERTY_CACHE_SIZE, 1000);
+    }
+   
+    public boolean isPoolEnabled() {
+        return getBooleanValue(PROPERTY_POOL_ENABLED, false);
+    }
+    
+    public int getPoolMinSize() {
+        return getIntValue(PROPERTY_POOL_MIN_SIZE, 1);
+    }
+    
+    public int getPoolMaxSize() {
+        return getIntValue(PROPERTY_POOL_MAX_SIZE, 8);
+    }
+    
+    public long getPoolAcquireTimeout() {
+        return getLongValue(PROPERTY_POOL_ACQUIRE_TIMEOUT, 30000L);
+    }
+    
+    public long getPoolIdleTimeout() {
+        return getLongValue(PROPERTY_POOL_IDLE_TIMEOUT, 600000L);
+    }
+    
+    public int getPoolValidationTimeout() {
+        return getIntValue(PROPERTY_POOL_VALIDATION_TIMEOUT, 5);
+    }
+    
+    public int getPoolStatementCacheSize() {
+        return getIntValue(PROPERTY_POOL_STATEMENT_CACHE_SIZE, 16);
+    }
+   
+    public boolean isStreaming() {
+        return getBooleanValue(PROPERTY_STREAMING, false);
+    }
+    
+    public int getFetchSize() {
+        return getIntValue(PROPERTY_FETCH_SIZE, 100);
+    }
+   
+    public boolean isSnapshotEnabled() {
+        return getBooleanValue(PROPERTY_SNAPSHOT_ENABLED, false);
+    }
+    
+    /**
+     * @return the snapshot file, or null when not set and the framework has no file system support for the bundle's
+     *         data area
+     */
+    public File getSnapshotFile() {
+        String value = getOwnValue(PROPERTY_SNAPSHOT_FILE, null);
+        return value != null ? new File(value) : bundleContext.getDataFile("config-snapshot.dat");
+    }
+   
+    public boolean isRevisionEnabled() {
+        return getBooleanValue(PROPERTY_REVISION_ENABLED, false);
+    }
+    
+    public long getRevisionPollInterval() {
+        return getLongValue(PROPERTY_REVISION_POLL_INTERVAL, 5000L);
+    }
+   
+    public DatabasePersistenceManager.Layout getLayout() {
+        String value = getOwnValue(PROPERTY_LAYOUT, null);
+        return value != null ? DatabasePersistenceManager.Layout.valueOf(value.trim().toUpperCase(Locale.ROOT))
+                : DatabasePersistenceManager.Layout.ROWS;
+    }
+    
+    public String getLayoutMigrateFrom() {
+        return getOwnValue(PROPERTY_LAYOUT_MIGRATE_FROM, null);
+    }
+   
+    public boolean isBinaryEnabled() {
+        return getBooleanValue(PROPERTY_BINARY_ENABLED, false);
+    }
+   
+    public String getDialect() {
+        return getOwnValue(PROPERTY_DIALECT, null);
+    }
+   
+    public boolean isOptimisticEnabled() {
+        return getBooleanValue(PROPERTY_OPTIMISTIC_ENABLED, false);
+    }
+   
+    public int getOptimisticRetries() {
+        return getIntValue(PROPERTY_OPTIMISTIC_RETRIES, 5);
+    }
+   
+    public boolean isMetricsEnabled() {
+        return getBooleanValue(PROPERTY_METRICS_ENABLED, false);
+    }
+   
+    public boolean isWriteBehindEnabled() {
+        return getBooleanValue(PROPERTY_WRITE_BEHIND_ENABLED, false);
+    }
+   
+    public long getWriteBehindDelay() {
+        return getLongValue(PROPERTY_WRITE_BEHIND_DELAY, 1000L);
+    }
+   
+    public int getWriteBehindBatchSize() {
+        return getIntValue(PROPERTY_WRITE_BEHIND_BATCH_SIZE, 100);
+    }
+   
+    public long getWriteBehindCloseTimeout() {
+        return getLongValue(PROPERTY_WRITE_BEHIND_CLOSE_TIMEOUT, 10000L);
+    }
+    
+    /**
+     * @return the file where the writes that can't be flushed on close are saved, or null when not set and the
+     *         framework has no file system support for the bundle's data area
+     */
+    public File getWriteBehindPendingFile() {
+        String value = getOwnValue(PROPERTY_WRITE_BEHIND_PENDING_FILE, null);
+        return value != null ? new File(value) : bundleContext.getDataFile("write-behind-pending.dat");
+    }
+   
     public String getDelegatedPrimary() {
         return getOwnValue(PROPERTY_DELEGATED_PRIMARY, null);
     }
@@ -110,6 +324,10 @@ public class SystemPropertiesHelper {
         return getOwnValue(PROPERTY_DELEGATED_PRIMARY_PIDS, null);
     }
     
+    public String getDelegatedRoutes() {
+        return getOwnValue(PROPERTY_DELEGATED_ROUTES, null);
+    }
+    
     private String getOwnValueOrPax(String key, String paxFallbackKey, String defaultValue) {
         String value = bundleContext.getProperty(key);
         if(value==null) {
@@ -127,6 +345,16 @@ public class SystemPropertiesHelper {
         String value = bundleContext.getProperty(key);
         return value !=null ? Integer.parseInt(value) : defaultValue;
     }
+    
+    private long getLongValue(String key, long defaultValue) {
+        String value = bundleContext.getProperty(key);
+        return value !=null ? Long.parseLong(value) : defaultValue;
+    }
+    
+    private boolean getBooleanValue(String key, boolean defaultValue) {
+        String value = bundleContext.getProperty(key);
+        return value !=null ? Boolean.parseBoolean(value) : defaultValue;
+    }
 
     
 }
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.service.log.LogService;
+
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
+/**
+ * Acknowledges stores and deletes as soon as they are kept in memory and writes them to another
+ * {@link PersistenceManager} in the background. Repeated writes to the same PID before a flush are merged, so only the
+ * last one reaches the delegate.
+ * <p>
+ * Pending writes are flushed at most {@code maxDelay} milliseconds after the first of them, or sooner once
+ * {@code batchSize} PIDs are waiting. Reads see the pending writes. A failed flush keeps the writes and is retried.
+ * When a {@link BulkPersistenceManager} is available, the stores of a flush are written in a single transaction.
+ * <p>
+ * On close, a failed flush is retried with an increasing delay until {@code closeTimeout} expires. Writes that still
+ * can't be flushed are saved to the pending file, when one is set, and written again by {@link #init()} on the next
+ * start. They are also kept in memory and written together with the next write.
+ *
+ * @author jassuncao
+ *
+ */
+public class WriteBehindPersistenceManager implements PersistenceManager, AutoCloseable {
+
+    private static final long RETRY_DELAY_MILLIS = 5000L;
+
+    private static final long CLOSE_RETRY_DELAY_MILLIS = 100L;
+
+    private static final int MAGIC = 0x4F435742;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Marks a pending delete
+     */
+    private static final Dictionary<String, Object> DELETED = new Hashtable<>(); // NOSONAR
+
+    private final PersistenceManager delegate;
+
+    private final BulkPersistenceManager bulkDelegate;
+
+    private final LogHelper logHelper;
+
+    private final long maxDelay;
+
+    private final int batchSize;
+
+    private final File pendingFile;
+
+    private final long closeTimeout;
+
+    /**
+     * Writes not yet taken by a flush, in the order the PIDs were first written
+     */
+    private final Map<String, Dictionary<String, Object>> pending = new LinkedHashMap<>();
+
+    /**
+     * Writes taken by the running flush and not yet written to the delegate
+     */
+    private Map<String, Dictionary<String, Object>> flushing = Collections.emptyMap();
+
+    /**
+     * Only one flush runs at a time, so the writes to a PID reach the delegate in order
+     */
+    private final Object flushLock = new Object();
+
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    private boolean closed;
+
+    /**
+     * The pending file was saved or loaded and is deleted once nothing is pending
+     */
+    private boolean pendingFileSaved;
+
+    public WriteBehindPersistenceManager(PersistenceManager delegate, LogHelper logHelper, long maxDelay, int batchSize) {
+        this(delegate, delegate instanceof BulkPersistenceManager ? (BulkPersistenceManager) delegate : null,
+                logHelper, maxDelay, batchSize);
+    }
+
+    /**
+     * @param bulkDelegate writes the stores of each flush in a single transaction to the same configurations as the
+     *        delegate. Can be null, in which case each store is written on its own
+     */
+    public WriteBehindPersistenceManager(PersistenceManager delegate, BulkPersistenceManager bulkDelegate,
+            LogHelper logHelper, long maxDelay, int batchSize) {
+        this(delegate, bulkDelegate, logHelper, maxDelay, batchSize, null, 0L);
+    }
+
+    /**
+     * @param pendingFile where the writes that can't be flushed on close are saved. Can be null, in which case they are
+     *        only kept in memory
+     * @param closeTimeout milliseconds a failed flush is retried for on close
+     */
+    public WriteBehindPersistenceManager(PersistenceManager delegate, BulkPersistenceManager bulkDelegate,
+            LogHelper logHelper, long maxDelay, int batchSize, File pendingFile, long closeTimeout) {
+        this.delegate = delegate;
+        this.bulkDelegate = bulkDelegate;
+        this.logHelper = logHelper;
+        this.maxDelay = maxDelay;
+        this.batchSize = batchSize;
+        this.pendingFile = pendingFile;
+        this.closeTimeout = closeTimeout;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "osgi-cm-sql-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the writes saved to the pending file by a previous close and flushes them in the background. The file is
+     * deleted once they are written.
+     */
+    public void init() {
+        if (pendingFile == null || !pendingFile.isFile()) {
+            return;
+        }
+        Map<String, Dictionary<String, Object>> saved;
+        try {
+            saved = readPending();
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_ERROR, "Failed to read pending configurations " + pendingFile, ex);
+            return;
+        }
+        logHelper.log(LogService.LOG_INFO, "Writing " + saved.size() + " configurations left pending in " + pendingFile, null);
+        synchronized (this) {
+            for (Map.Entry<String, Dictionary<String, Object>> entry : saved.entrySet()) {
+                pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            pendingFileSaved = true;
+            scheduleFlush(0);
+        }
+    }
+
+    @Override
+    public boolean exists(String pid) {
+        synchronized (this) {
+            Dictionary<String, Object> properties = findPending(pid);
+            if (properties != null) {
+                return properties != DELETED;
+            }
+        }
+        return delegate.exists(pid);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Dictionary load(String pid) throws IOException {
+        synchronized (this) {
+            Dictionary<String, Object> properties = findPending(pid);
+            if (properties != null) {
+                return properties != DELETED ? Dictionaries.copy(properties) : new Hashtable<>(); // NOSONAR
+            }
+        }
+        return delegate.load(pid);
+    }
+
+    /**
+     * Flushes the pending writes before listing the configurations of the delegate
+     */
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getDictionaries() throws IOException {
+        flush();
+        return delegate.getDictionaries();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void store(String pid, Dictionary properties) throws IOException {
+        enqueue(pid, Dictionaries.copy(properties));
+    }
+
+    @Override
+    public void delete(String pid) throws IOException {
+        enqueue(pid, DELETED);
+    }
+
+    private void enqueue(String pid, Dictionary<String, Object> properties) throws IOException {
+        synchronized (this) {
+            pending.put(pid, properties);
+            if (!closed) {
+                scheduleFlush(pending.size() >= batchSize ? 0 : maxDelay);
+                return;
+            }
+        }
+        // Once closed, writes are flushed right away, together with the ones a failed flush left behind
+        try {
+            flush();
+        }
+        catch (IOException | RuntimeException ex) {
+            throw savePending(ex);
+        }
+    }
+
+    /**
+     * Writes all the pending writes to the delegate. When a write fails, it and the ones not yet written are kept
+     * pending and the failure is thrown.
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            Map<String, Dictionary<String, Object>> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+                flushing = batch;
+            }
+            try {
+                if (bulkDelegate != null) {
+                    storeInBulk(batch);
+                }
+                for (Iterator<Map.Entry<String, Dictionary<String, Object>>> it = batch.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<String, Dictionary<String, Object>> entry = it.next();
+                    write(entry.getKey(), entry.getValue());
+                    synchronized (this) {
+                        it.remove();
+                    }
+                }
+            }
+            finally {
+                synchronized (this) {
+                    if (!batch.isEmpty()) {
+                        // Writes made meanwhile to the same PIDs are newer and replace the failed ones
+                        batch.putAll(pending);
+                        pending.clear();
+                        pending.putAll(batch);
+                    }
+                    flushing = Collections.emptyMap();
+                }
+            }
+            deleteSavedPendingFile();
+        }
+    }
+
+    private void deleteSavedPendingFile() {
+        synchronized (this) {
+            if (!pendingFileSaved || !pending.isEmpty()) {
+                return;
+            }
+            pendingFileSaved = false;
+        }
+        try {
+            Files.deleteIfExists(pendingFile.toPath());
+        }
+        catch (IOException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to delete pending configurations " + pendingFile, ex);
+        }
+    }
+
+    /**
+     * Stores all the configurations of the batch in a single transaction and removes them from the batch, leaving
+     * only the deletes
+     */
+    private void storeInBulk(Map<String, Dictionary<String, Object>> batch) throws IOException {
+        Map<String, Dictionary<String, Object>> stores = new LinkedHashMap<>();
+        for (Map.Entry<String, Dictionary<String, Object>> entry : batch.entrySet()) {
+            if (entry.getValue() != DELETED) {
+                stores.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (stores.size() < 2) {
+            return;
+        }
+        bulkDelegate.storeAll(stores);
+        synchronized (this) {
+            batch.keySet().removeAll(stores.keySet());
+        }
+    }
+
+    /**
+     * @return the number of PIDs with writes not yet written to the delegate
+     */
+    public synchronized int getPendingCount() {
+        return pending.size() + flushing.size();
+    }
+
+    /**
+     * Stops the background flushes and flushes the pending writes, retrying with an increasing delay until
+     * {@code closeTimeout} expires. When that still fails, the writes are saved to the pending file and the failure is
+     * thrown. They are also kept in memory: reads still see them and they are flushed again with the next write.
+     * Writes made after closing are flushed right away.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        long deadline = System.currentTimeMillis() + closeTimeout;
+        long delay = CLOSE_RETRY_DELAY_MILLIS;
+        while (true) {
+            try {
+                flush();
+                return;
+            }
+            catch (IOException | RuntimeException ex) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !sleep(Math.min(delay, remaining))) {
+                    throw savePending(ex);
+                }
+                logHelper.log(LogService.LOG_WARNING, "Failed to write pending configurations on close. Retrying", ex);
+                delay = Math.min(delay * 2, RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Saves the pending writes to the pending file after the last flush on close failed
+     *
+     * @return the failure to throw
+     */
+    private IOException savePending(Exception cause) {
+        Map<String, Dictionary<String, Object>> unwritten;
+        synchronized (this) {
+            unwritten = new LinkedHashMap<>(flushing);
+            unwritten.putAll(pending);
+        }
+        String message = "Failed to write configurations " + unwritten.keySet() + " on close";
+        if (pendingFile == null) {
+            message += ". They are kept in memory and written again with the next write";
+        }
+        else {
+            try {
+                writePending(unwritten);
+                synchronized (this) {
+                    pendingFileSaved = true;
+                }
+                message += ". They are saved to " + pendingFile + " and written again on the next start";
+            }
+            catch (IOException | RuntimeException ex) {
+                cause.addSuppressed(ex);
+                message += ". Failed to save them to " + pendingFile + ", they are only kept in memory";
+            }
+        }
+        logHelper.log(LogService.LOG_ERROR, message, cause);
+        return new IOException(message, cause);
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void scheduleFlush(long delay) {
+        if (closed || (scheduledFlush != null && (delay > 0 || scheduledFlush.getDelay(TimeUnit.MILLISECONDS) <= 0))) {
+            return;
+        }
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlush = executor.schedule(this::flushInBackground, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushInBackground() {
+        synchronized (this) {
+            scheduledFlush = null;
+        }
+        try {
+            flush();
+        }
+        catch (IOException | RuntimeException ex) {
+            logHelper.log(LogService.LOG_WARNING, "Failed to write pending configurations. Retrying in " + RETRY_DELAY_MILLIS + "ms", ex);
+            synchronized (this) {
+                scheduleFlush(RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    private void write(String pid, Dictionary<String, Object> properties) throws IOException {
+        if (properties == DELETED) {
+            delegate.delete(pid);
+        }
+        else {
+            delegate.store(pid, properties);
+        }
+    }
+
+    private Dictionary<String, Object> findPending(String pid) {
+        Dictionary<String, Object> properties = pending.get(pid);
+        return properties != null ? properties : flushing.get(pid);
+    }
+
+    private void writePending(Map<String, Dictionary<String, Object>> writes) throws IOException {
+        File parent = pendingFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        Path target = pendingFile.toPath();
+        Path temp = target.resolveSibling(pendingFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(writes.size());
+            for (Map.Entry<String, Dictionary<String, Object>> entry : writes.entrySet()) {
+                writeString(out, entry.getKey());
+                Dictionary<String, Object> dictionary = entry.getValue();
+                if (dictionary == DELETED) {
+                    // Marks a delete
+                    out.writeInt(-1);
+                    continue;
+                }
+                List<String[]> properties = new ArrayList<>(dictionary.size());
+                for (Enumeration<String> keys = dictionary.keys(); keys.hasMoreElements();) {
+                    String name = keys.nextElement();
+                    Object value = dictionary.get(name);
+                    String typeCode = PropertyConverter.getCodeForType(value);
+                    if (typeCode != null) {
+                        properties.add(new String[] { name, typeCode, PropertyConverter.convertToString(value) });
+                    }
+                }
+                out.writeInt(properties.size());
+                for (String[] property : properties) {
+                    writeString(out, property[0]);
+                    writeString(out, property[1]);
+                    writeString(out, property[2]);
+                }
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Map<String, Dictionary<String, Object>> readPending() throws IOException {
+        Map<String, Dictionary<String, Object>> writes = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(pendingFile.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported pending configurations format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String pid = readString(in);
+                int size = in.readInt();
+                if (size < 0) {
+                    writes.put(pid, DELETED);
+                    continue;
+                }
+                Hashtable<String, Object> dictionary = new Hashtable<>(); // NOSONAR
+                for (int j = 0; j < size; j++) {
+                    String name = readString(in);
+                    String type = readString(in);
+                    String value = readString(in);
+                    dictionary.put(name, PropertyConverter.convertFromString(type, value));
+                }
+                writes.put(pid, dictionary);
+            }
+        }
+        return writes;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql.api;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Map;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Writes many configurations straight to the database, without going through Configuration Admin. Meant to restore
+ * backups: Configuration Admin only sees the written configurations once it loads them again, so callers should
+ * update each of them through Configuration Admin afterwards. The unchanged properties aren't written again.
+ *
+ * @author jassuncao
+ *
+ */
+@ProviderType
+public interface BulkPersistenceManager {
+
+    /**
+     * Stores all the configurations in a single batched transaction, replacing the ones with the same PIDs. When the
+     * configurations are sharded across databases, each database is written in its own transaction.
+     *
+     * @param configurations the properties of each configuration by PID. The properties should include
+     *        service.pid, and service.factoryPid for factory configurations
+     * @throws IOException if the configurations couldn't be stored, or if some of them are routed to another
+     *         persistence manager. Nothing was stored in that case
+     */
+    void storeAll(Map<String, ? extends Dictionary<String, ?>> configurations) throws IOException;
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author jassuncao
+ *
+ */
+public class BinaryPropertyCodecTest {
+
+    private static final Object[] VALUES = new Object[] { "xpto ç€", 1, -1L, Long.MIN_VALUE, 1.5f, Double.NaN,
+            (byte) -3, (short) 300, 'x', Boolean.TRUE, new int[] { 0, -1, Integer.MAX_VALUE },
+            new long[] { Long.MAX_VALUE, 2 }, new double[] { 0.1, -0.0 }, new float[] { 3.3f }, new byte[] { 1, -1 },
+            new short[] { -5 }, new char[] { 'a', '€' }, new boolean[] { true, false }, new Integer[] { 1, 2 },
+            new String[] { "test,1", "" }, Arrays.asList(1L, 2L), Arrays.asList("a", "b,c"), Collections.emptyList() };
+
+    @Test
+    public void testRoundTripMatchesTextTypes() {
+        for (Object value : VALUES) {
+            Object decoded = BinaryPropertyCodec.decode(BinaryPropertyCodec.encode(value));
+            Object fromText = PropertyConverter.convertFromString(PropertyConverter.getCodeForType(value),
+                    PropertyConverter.convertToString(value));
+            assertEquals(fromText.getClass(), decoded.getClass());
+            assertTrue(String.valueOf(value), Arrays.deepEquals(new Object[] { value }, new Object[] { decoded })
+                    || value instanceof Collection && value.equals(decoded));
+        }
+    }
+
+    @Test
+    public void testUnsupportedValues() {
+        assertNull(BinaryPropertyCodec.encode(new Integer[] { 1, null }));
+        assertNull(BinaryPropertyCodec.encode(Arrays.asList(1, "a")));
+        assertNull(BinaryPropertyCodec.encode(new Object()));
+    }
+
+    @Test
+    public void testProperties() {
+        TreeMap<String, Object> properties = new TreeMap<>();
+        properties.put("key1", "value1");
+        properties.put("key2", new long[] { 1L, 2L });
+        Dictionary<String, Object> dictionary = BinaryPropertyCodec
+                .decodeProperties(BinaryPropertyCodec.encodeProperties(properties));
+        assertEquals(2, dictionary.size());
+        assertEquals("value1", dictionary.get("key1"));
+        assertArrayEquals(new long[] { 1L, 2L }, (long[]) dictionary.get("key2"));
+
+        properties.put("key3", new String[] { null });
+        assertNull(BinaryPropertyCodec.encodeProperties(properties));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedValue() {
+        byte[] encoded = BinaryPropertyCodec.encode(new long[] { Long.MAX_VALUE });
+        BinaryPropertyCodec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+}
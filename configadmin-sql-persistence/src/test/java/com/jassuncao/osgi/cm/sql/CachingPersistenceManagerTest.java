@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.osgi.framework.Constants;
+
+public class CachingPersistenceManagerTest {
+
+    private static final String PID1 = "pid1";
+    private static final String PID2 = "pid2";
+    private static final String PID3 = "pid3";
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().silent();
+
+    @Mock
+    PersistenceManager delegate;
+
+    CachingPersistenceManager underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        underTest = new CachingPersistenceManager(delegate, 2);
+    }
+
+    @Test
+    public void testLoadIsCached() throws IOException {
+        when(delegate.load(PID1)).thenReturn(dictionary(PID1));
+        assertEquals(PID1, underTest.load(PID1).get(Constants.SERVICE_PID));
+        assertEquals(PID1, underTest.load(PID1).get(Constants.SERVICE_PID));
+        assertTrue(underTest.exists(PID1));
+        verify(delegate, times(1)).load(PID1);
+        assertEquals(2, underTest.getHitCount());
+        assertEquals(1, underTest.getMissCount());
+    }
+
+    @Test
+    public void testStoreWritesThrough() throws IOException {
+        Dictionary<String, Object> properties = dictionary(PID1);
+        underTest.store(PID1, properties);
+        verify(delegate).store(PID1, properties);
+        assertEquals(PID1, underTest.load(PID1).get(Constants.SERVICE_PID));
+        verify(delegate, times(0)).load(PID1);
+    }
+
+    @Test
+    public void testDeleteEvicts() throws IOException {
+        underTest.store(PID1, dictionary(PID1));
+        underTest.delete(PID1);
+        verify(delegate).delete(PID1);
+        assertFalse(underTest.exists(PID1));
+        verify(delegate).exists(PID1);
+    }
+
+    @Test
+    public void testStoredInBulkIsCached() throws IOException {
+        underTest.configurationChanged(PID1);
+        underTest.cacheStored(Collections.singletonMap(PID1, dictionary(PID1)));
+        assertTrue(underTest.exists(PID1));
+        assertEquals(PID1, underTest.load(PID1).get(Constants.SERVICE_PID));
+        verify(delegate, never()).exists(PID1);
+        verify(delegate, never()).load(PID1);
+
+        // Reloaded by Configuration Admin, then changed
+        underTest.store(PID1, dictionary(PID1));
+        verify(delegate, never()).store(eq(PID1), any());
+        underTest.store(PID1, dictionary(PID1));
+        verify(delegate).store(eq(PID1), any());
+    }
+
+    @Test
+    public void testChangedAfterBulkIsWritten() throws IOException {
+        underTest.cacheStored(Collections.singletonMap(PID1, dictionary(PID1)));
+        Dictionary<String, Object> changed = dictionary(PID1);
+        changed.put("key", "value");
+        underTest.store(PID1, changed);
+        verify(delegate).store(PID1, changed);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        underTest.store(PID1, dictionary(PID1));
+        underTest.store(PID2, dictionary(PID2));
+        underTest.load(PID1);
+        underTest.store(PID3, dictionary(PID3));
+        assertEquals(2, underTest.getSize());
+        assertTrue(underTest.exists(PID1));
+        assertTrue(underTest.exists(PID3));
+        underTest.exists(PID2);
+        verify(delegate).exists(PID2);
+    }
+
+    @Test
+    public void testGetDictionariesServedFromMemory() throws IOException {
+        when(delegate.getDictionaries()).thenReturn(toEnumeration(dictionary(PID1), dictionary(PID2)));
+        assertEquals(2, count(underTest.getDictionaries()));
+        assertEquals(2, count(underTest.getDictionaries()));
+        assertFalse(underTest.exists(PID3));
+        verify(delegate, times(1)).getDictionaries();
+        verify(delegate, times(0)).exists(PID3);
+    }
+
+    @Test
+    public void testGetDictionariesLargerThanCache() throws IOException {
+        when(delegate.getDictionaries()).thenAnswer(
+                invocation -> toEnumeration(dictionary(PID1), dictionary(PID2), dictionary(PID3)));
+        assertEquals(3, count(underTest.getDictionaries()));
+        assertEquals(3, count(underTest.getDictionaries()));
+        verify(delegate, times(2)).getDictionaries();
+    }
+
+    private static Dictionary<String, Object> dictionary(String pid) {
+        Hashtable<String, Object> dictionary = new Hashtable<>();
+        dictionary.put(Constants.SERVICE_PID, pid);
+        return dictionary;
+    }
+
+    private static int count(Enumeration<?> enumeration) {
+        int count = 0;
+        while (enumeration.hasMoreElements()) {
+            enumeration.nextElement();
+            count++;
+        }
+        return count;
+    }
+
+    @SafeVarargs
+    private static <E> Enumeration<E> toEnumeration(E... elements) {
+        Iterator<E> it = Arrays.asList(elements).iterator();
+        return new Enumeration<E>() {
+
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E nextElement() {
+                return it.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    private ConnectionPool underTest;
+
+    @Before
+    public void setUp() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        underTest = new ConnectionPool(dataSource, new DummyLogHelper(), 0, 2, 100, 0, 1, 4);
+    }
+
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws SQLException {
+        Connection physical;
+        try (Connection connection = underTest.getConnection()) {
+            physical = connection.unwrap(Connection.class);
+            assertEquals(1, underTest.getActiveCount());
+        }
+        assertEquals(0, underTest.getActiveCount());
+        assertEquals(1, underTest.getIdleCount());
+        try (Connection connection = underTest.getConnection()) {
+            assertSame(physical, connection.unwrap(Connection.class));
+        }
+        assertEquals(1, underTest.getCreatedCount());
+        assertEquals(2, underTest.getAcquiredCount());
+    }
+
+    @Test
+    public void testClosedHandleCannotBeUsed() throws SQLException {
+        Connection connection = underTest.getConnection();
+        connection.close();
+        assertTrue(connection.isClosed());
+        try {
+            connection.createStatement();
+            fail("Expected SQLException");
+        }
+        catch (SQLException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTimeoutWhenExhausted() throws SQLException {
+        try (Connection c1 = underTest.getConnection(); Connection c2 = underTest.getConnection()) {
+            try {
+                underTest.getConnection();
+                fail("Expected SQLException");
+            }
+            catch (SQLException ex) {
+                assertEquals(1, underTest.getTimeoutCount());
+            }
+        }
+    }
+
+    @Test
+    public void testPreparedStatementIsReused() throws SQLException {
+        String sql = "SELECT 1";
+        for (int i = 0; i < 3; i++) {
+            try (Connection connection = underTest.getConnection(); PreparedStatement statement = connection.prepareStatement(sql)) {
+                assertSame(connection, statement.getConnection());
+                try (ResultSet rs = statement.executeQuery()) {
+                    assertTrue(rs.next());
+                }
+            }
+        }
+        assertEquals(1, underTest.getStatementCacheMissCount());
+        assertEquals(2, underTest.getStatementCacheHitCount());
+    }
+
+    @Test
+    public void testSameStatementUsedTwice() throws SQLException {
+        String sql = "SELECT 1";
+        try (Connection connection = underTest.getConnection();
+                PreparedStatement statement1 = connection.prepareStatement(sql);
+                PreparedStatement statement2 = connection.prepareStatement(sql)) {
+            assertFalse(statement1.unwrap(PreparedStatement.class) == statement2.unwrap(PreparedStatement.class));
+        }
+        assertEquals(2, underTest.getStatementCacheMissCount());
+    }
+
+    @Test
+    public void testUncommittedWorkIsRolledBack() throws SQLException {
+        try (Connection connection = underTest.getConnection()) {
+            connection.setAutoCommit(false);
+            connection.createStatement().executeUpdate("CREATE TABLE IF NOT EXISTS pool_test (id INT)");
+            connection.commit();
+            connection.createStatement().executeUpdate("INSERT INTO pool_test VALUES (1)");
+        }
+        try (Connection connection = underTest.getConnection()) {
+            assertTrue(connection.getAutoCommit());
+            assertFalse(connection.createStatement().executeQuery("SELECT * FROM pool_test").next());
+        }
+    }
+
+    @Test
+    public void testSessionStateIsTracked() throws Exception {
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:session;DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        AtomicInteger roundTrips = new AtomicInteger();
+        DataSource counting = mock(DataSource.class);
+        when(counting.getConnection()).then(invocation -> countSessionCalls(h2.getConnection(), roundTrips));
+
+        try (ConnectionPool pool = new ConnectionPool(counting, new DummyLogHelper(), 0, 1, 100, 0, 0, 4)) {
+            DatabasePersistenceManager manager = new DatabasePersistenceManager(pool, new DummyLogHelper(),
+                    "session_config", null);
+            pool.setTransactionIsolation(manager.getTransactionIsolation());
+            manager.init();
+            Hashtable<String, Object> properties = new Hashtable<>(); // NOSONAR
+            properties.put("key", "value");
+            manager.store("pid", properties);
+
+            roundTrips.set(0);
+            for (int i = 0; i < 10; i++) {
+                manager.load("pid");
+                manager.exists("pid");
+            }
+            manager.getDictionaries();
+            assertEquals(0, roundTrips.get());
+
+            properties.put("key", "other");
+            manager.store("pid", properties);
+            // Disabling and restoring auto commit
+            assertEquals(2, roundTrips.get());
+        }
+    }
+
+    private static Connection countSessionCalls(Connection connection, AtomicInteger roundTrips) {
+        return (Connection) Proxy.newProxyInstance(ConnectionPoolTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    if (method.getName().endsWith("AutoCommit") || method.getName().endsWith("TransactionIsolation")) {
+                        roundTrips.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    }
+                    catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                });
+    }
+}
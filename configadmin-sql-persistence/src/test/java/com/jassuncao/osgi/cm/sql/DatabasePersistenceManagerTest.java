@@ -15,17 +15,34 @@
  */
 package com.jassuncao.osgi.cm.sql;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -35,6 +52,7 @@ import org.dbunit.database.DatabaseConfig;
 import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
 import org.dbunit.ext.h2.H2DataTypeFactory;
+import org.h2.jdbcx.JdbcDataSource;
 import org.h2.tools.RunScript;
 import org.junit.After;
 import org.junit.Before;
@@ -130,6 +148,29 @@ public class DatabasePersistenceManagerTest extends DBTestCase {
         assertEquals(3, dict.size());
     }
 
+    @Test
+    public void testGetDictionariesStreaming() throws Exception {
+        Properties properties = new Properties();
+        properties.put("key1", "x");
+        properties.put("key2", "y");
+        underTest.store("pid2", properties);
+        underTest.store("pid0", properties);
+
+        Connection connection = mock(Connection.class, AdditionalAnswers.delegatesTo(getConnection().getConnection()));
+        when(datasource.getConnection()).thenReturn(connection);
+        underTest.setStreaming(true);
+        underTest.setFetchSize(1);
+        Enumeration<?> dictionaries = underTest.getDictionaries();
+        int[] expectedSizes = {2, 3, 2};
+        for (int expectedSize : expectedSizes) {
+            assertTrue(dictionaries.hasMoreElements());
+            Dictionary<?, ?> dict = (Dictionary<?, ?>) dictionaries.nextElement();
+            assertEquals(expectedSize, dict.size());
+        }
+        assertFalse(dictionaries.hasMoreElements());
+        verify(connection).close();
+    }
+
     @Test
     public void testStore() throws IOException {
         Properties properties = new Properties();
@@ -141,6 +182,36 @@ public class DatabasePersistenceManagerTest extends DBTestCase {
         assertEquals(2, dict.size());
     }
     
+    @Test
+    public void testStoreOnlyChangedProperties() throws Exception {
+        Properties properties = new Properties();
+        properties.put("key1", "changed");
+        properties.put("key2", Boolean.TRUE);
+        properties.put("key4", 4L);
+        underTest.store("pid1", properties);
+
+        Dictionary<?, ?> dict = underTest.load("pid1");
+        assertEquals(3, dict.size());
+        assertEquals("changed", dict.get("key1"));
+        assertEquals(Boolean.TRUE, dict.get("key2"));
+        assertEquals(4L, dict.get("key4"));
+        assertNull(dict.get("key3"));
+    }
+
+    @Test
+    public void testStoreUnchangedPropertiesOnlySelects() throws Exception {
+        Connection connection = mock(Connection.class, AdditionalAnswers.delegatesTo(getConnection().getConnection()));
+        when(datasource.getConnection()).thenReturn(connection);
+        Properties properties = new Properties();
+        properties.put("key1", "value1");
+        properties.put("key2", Boolean.TRUE);
+        properties.put("key3", 1);
+        underTest.store("pid1", properties);
+
+        verify(connection, times(1)).prepareStatement(anyString());
+        verify(connection, times(1)).prepareStatement(startsWith("SELECT"));
+    }
+
     @Test
     public void testConcurrentReadWrite() throws Exception {
         Semaphore beforeCommitSemaphore = new Semaphore(0);
@@ -183,9 +254,433 @@ public class DatabasePersistenceManagerTest extends DBTestCase {
         assertEquals(3, dict.size());
     }
 
+    @Test
+    public void testConcurrentStoresWithRevisionTracking() throws Exception {
+        DatabasePersistenceManager tracked = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_tracked", null);
+        tracked.setRevisionTracking(true);
+        tracked.init();
+        int threads = 8;
+        int writes = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < writes; i++) {
+                        Properties properties = new Properties();
+                        properties.put("key1", "value" + i);
+                        tracked.store("pid-" + thread + "-" + i, properties);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < writes; i++) {
+                assertEquals("value" + i, tracked.load("pid-" + t + "-" + i).get("key1"));
+            }
+        }
+        Map<String, Long> changes = tracked.loadChangesSince(0);
+        assertEquals(threads * writes, changes.size());
+        assertEquals(threads * writes, new HashSet<>(changes.values()).size());
+        assertEquals(threads * writes, tracked.loadCurrentRevision());
+    }
+
+    @Test
+    public void testConcurrentStoresFromTwoNodes() throws Exception {
+        DatabasePersistenceManager[] nodes = new DatabasePersistenceManager[2];
+        for (int n = 0; n < nodes.length; n++) {
+            nodes[n] = new DatabasePersistenceManager(datasource, new DummyLogHelper(), "osgi_config_nodes", null);
+            nodes[n].setRevisionTracking(true);
+            nodes[n].setMaxRetries(50);
+            nodes[n].init();
+        }
+        int threads = 4;
+        int writes = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                DatabasePersistenceManager node = nodes[t % nodes.length];
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < writes; i++) {
+                        Properties properties = new Properties();
+                        properties.put("key1", "value" + i);
+                        node.store("pid-" + thread + "-" + i, properties);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Map<String, Long> changes = nodes[0].loadChangesSince(0);
+        assertEquals(threads * writes, changes.size());
+        assertEquals(threads * writes, new HashSet<>(changes.values()).size());
+        assertEquals(threads * writes, nodes[1].loadCurrentRevision());
+    }
+
+    @Test
+    public void testChangeIsRolledBackWithoutRevision() throws Exception {
+        DatabasePersistenceManager tracked = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_norev", null);
+        tracked.setRevisionTracking(true);
+        tracked.init();
+        try (Connection connection = getConnection().getConnection()) {
+            connection.createStatement().executeUpdate("DELETE FROM osgi_config_norev_rev_seq");
+        }
+        Properties properties = new Properties();
+        properties.put("key1", "value1");
+        try {
+            tracked.store("pid1", properties);
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+            assertFalse(tracked.exists("pid1"));
+        }
+    }
+
+    @Test
+    public void testStoreFailureIsReported() throws Exception {
+        Connection connection = mock(Connection.class, AdditionalAnswers.delegatesTo(getConnection().getConnection()));
+        Mockito.doThrow(new SQLException("Commit failed")).when(connection).commit();
+        when(datasource.getConnection()).thenReturn(connection);
+        Properties properties = new Properties();
+        properties.put("key1", "lost");
+        try {
+            underTest.store("pid1", properties);
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+            assertEquals("Commit failed", ex.getCause().getMessage());
+        }
+    }
+
     @Test
     public void testDelete() throws IOException {
         underTest.delete("pid1");
         assertFalse(underTest.exists("pid1"));
     }
+
+    @Test
+    public void testDocumentLayout() throws Exception {
+        DatabasePersistenceManager documents = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_doc", null);
+        documents.setLayout(DatabasePersistenceManager.Layout.DOCUMENT);
+        documents.init();
+
+        Properties properties = new Properties();
+        properties.put("key1", "multi\nline\tvalue");
+        properties.put("key2", new long[] { 1L, 2L });
+        documents.store("pid2", properties);
+        assertTrue(documents.exists("pid2"));
+
+        Dictionary<?, ?> dict = documents.load("pid2");
+        assertEquals(2, dict.size());
+        assertEquals("multi\nline\tvalue", dict.get("key1"));
+        assertArrayEquals(new long[] { 1L, 2L }, (long[]) dict.get("key2"));
+
+        properties.remove("key2");
+        documents.store("pid2", properties);
+        assertEquals(1, documents.load("pid2").size());
+
+        documents.setStreaming(true);
+        Enumeration<?> dictionaries = documents.getDictionaries();
+        assertTrue(dictionaries.hasMoreElements());
+        assertEquals(1, ((Dictionary<?, ?>) dictionaries.nextElement()).size());
+        assertFalse(dictionaries.hasMoreElements());
+
+        documents.delete("pid2");
+        assertFalse(documents.exists("pid2"));
+    }
+
+    @Test
+    public void testBinaryEncoding() throws Exception {
+        DatabasePersistenceManager text = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_bin", null);
+        text.init();
+        Properties properties = new Properties();
+        properties.put("key1", "x");
+        properties.put("key2", new int[] { 1, 2, 3 });
+        text.store("pid2", properties);
+
+        DatabasePersistenceManager binary = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_bin", null);
+        binary.setBinaryEncoding(true);
+        binary.init();
+        Dictionary<?, ?> dict = binary.load("pid2");
+        assertEquals("x", dict.get("key1"));
+        assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) dict.get("key2"));
+
+        properties.put("key2", new int[] { 4, 5 });
+        properties.put("key3", Arrays.asList(6, 7L));
+        binary.store("pid2", properties);
+        dict = binary.load("pid2");
+        assertEquals(3, dict.size());
+        assertArrayEquals(new int[] { 4, 5 }, (int[]) dict.get("key2"));
+
+        assertStoredAs("key2", false);
+
+        // Values kept in binary are still read with the binary encoding disabled, and written back as text
+        DatabasePersistenceManager disabled = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_bin", null);
+        disabled.init();
+        dict = disabled.load("pid2");
+        assertEquals(3, dict.size());
+        assertArrayEquals(new int[] { 4, 5 }, (int[]) dict.get("key2"));
+
+        properties.put("key2", new int[] { 8 });
+        disabled.store("pid2", properties);
+        assertStoredAs("key2", true);
+        assertArrayEquals(new int[] { 8 }, (int[]) disabled.load("pid2").get("key2"));
+        assertArrayEquals(new int[] { 8 }, (int[]) binary.load("pid2").get("key2"));
+    }
+
+    /**
+     * Checks that the property of pid2 is kept in a single column, the text one or the binary one
+     */
+    private void assertStoredAs(String name, boolean text) throws Exception {
+        try (Connection connection = getConnection().getConnection();
+                ResultSet rs = connection.createStatement().executeQuery(
+                        "SELECT prop_value, prop_bin FROM osgi_config_bin WHERE pid = 'pid2' AND prop_name = '" + name + "'")) {
+            assertTrue(rs.next());
+            assertEquals(text, rs.getString(1) != null);
+            assertEquals(text, rs.getBytes(2) == null);
+        }
+    }
+
+    @Test
+    public void testGenericDialect() throws Exception {
+        DatabasePersistenceManager generic = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_generic", null);
+        generic.setDialect(new SqlDialect());
+        generic.setRevisionTracking(true);
+        generic.init();
+        assertFalse(generic.exists("pid2"));
+        Properties properties = new Properties();
+        properties.put("key1", "x");
+        generic.store("pid2", properties);
+        properties.put("key1", "y");
+        properties.put("key2", 2);
+        generic.store("pid2", properties);
+        assertTrue(generic.exists("pid2"));
+        Dictionary<?, ?> dict = generic.load("pid2");
+        assertEquals("y", dict.get("key1"));
+        assertEquals(2, dict.get("key2"));
+        assertEquals(2, generic.loadCurrentRevision());
+
+        underTest.init();
+        assertEquals(H2Dialect.NAME, underTest.getDialect().getName());
+    }
+
+    @Test
+    public void testStoreAll() throws Exception {
+        underTest.setRevisionTracking(true);
+        underTest.init();
+        Map<String, Dictionary<String, Object>> configurations = new LinkedHashMap<>();
+        for (int i = 1; i <= 50; i++) {
+            Hashtable<String, Object> properties = new Hashtable<>(); // NOSONAR
+            properties.put("key1", "bulk" + i);
+            properties.put("index", i);
+            configurations.put("pid" + i, properties);
+        }
+        underTest.storeAll(configurations);
+
+        Dictionary<?, ?> replaced = underTest.load("pid1");
+        assertEquals(2, replaced.size());
+        assertEquals("bulk1", replaced.get("key1"));
+        assertEquals(50, underTest.load("pid50").get("index"));
+        assertEquals(50, underTest.loadChangesSince(0).size());
+
+        DatabasePersistenceManager document = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_bulk", null);
+        document.setLayout(DatabasePersistenceManager.Layout.DOCUMENT);
+        document.setOptimisticConcurrency(true);
+        document.init();
+        document.storeAll(configurations);
+        configurations.get("pid2").put("key1", "again");
+        document.storeAll(configurations);
+        assertEquals("again", document.load("pid2").get("key1"));
+        assertEquals(3, document.load("pid3").get("index"));
+    }
+
+    @Test
+    public void testReadsFromReplica() throws Exception {
+        JdbcDataSource replica = new JdbcDataSource();
+        replica.setURL("jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1");
+        DatabasePersistenceManager replicaWriter = new DatabasePersistenceManager(replica, new DummyLogHelper(),
+                "osgi_config", null);
+        replicaWriter.init();
+        Properties properties = new Properties();
+        properties.put("key1", "replica");
+        replicaWriter.store("pid1", properties);
+
+        underTest.init();
+        underTest.setReplica(replica, 60000);
+        assertEquals("replica", underTest.load("pid1").get("key1"));
+        assertFalse(underTest.exists("pid2"));
+
+        // Read your own writes
+        properties.put("key1", "primary");
+        underTest.store("pid1", properties);
+        assertEquals("primary", underTest.load("pid1").get("key1"));
+        assertEquals("primary", ((Dictionary<?, ?>) underTest.getDictionaries().nextElement()).get("key1"));
+        underTest.configurationChanged("pid2");
+        underTest.store("pid2", properties);
+        assertTrue(underTest.exists("pid2"));
+
+        underTest.setReplica(replica, 0);
+        underTest.store("pid1", properties);
+        assertEquals("replica", underTest.load("pid1").get("key1"));
+        replicaWriter.delete("pid1");
+    }
+
+    @Test
+    public void testOptimisticConcurrency() throws Exception {
+        DatabasePersistenceManager optimistic = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_opt", null);
+        optimistic.setOptimisticConcurrency(true);
+        optimistic.setMaxRetries(100);
+        optimistic.init();
+        int threads = 4;
+        int writes = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < writes; i++) {
+                        Properties properties = new Properties();
+                        properties.put("key1", thread + "-" + i);
+                        // Named apart from key1, so every thread writes a key of its own
+                        properties.put("thread" + thread, i);
+                        optimistic.store("pid2", properties);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Dictionary<?, ?> dict = optimistic.load("pid2");
+        assertEquals(2, dict.size());
+        String last = (String) dict.get("key1");
+        assertTrue(last.endsWith("-" + (writes - 1)));
+        // Both keys come from the same write
+        assertEquals(writes - 1, dict.get("thread" + last.substring(0, last.indexOf('-'))));
+
+        try (Connection connection = getConnection().getConnection();
+                ResultSet rs = connection.createStatement().executeQuery(
+                        "SELECT version FROM osgi_config_opt_ver WHERE pid = 'pid2'")) {
+            assertTrue(rs.next());
+            assertEquals(threads * writes, rs.getLong(1));
+        }
+        optimistic.delete("pid2");
+        assertFalse(optimistic.exists("pid2"));
+    }
+
+    @Test
+    public void testOptimisticReadRetriesAfterConcurrentWrite() throws Exception {
+        DatabasePersistenceManager optimistic = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_opt_read", null);
+        optimistic.setOptimisticConcurrency(true);
+        optimistic.init();
+        Properties initial = new Properties();
+        initial.put("key1", "a");
+        initial.put("key2", "a");
+        optimistic.store("pid3", initial);
+
+        Semaphore written = new Semaphore(0);
+        when(datasource.getConnection()).thenAnswer((Answer<Connection>) invocation -> {
+            Connection connection = getConnection().getConnection();
+            if (!Thread.currentThread().getName().equals("READER")) {
+                return connection;
+            }
+            Connection mockConnection = mock(Connection.class, AdditionalAnswers.delegatesTo(connection));
+            Mockito.doAnswer((Answer<Object>) invocation1 -> {
+                if (written.availablePermits() == 0) {
+                    // Another node writes the PID between the version and the properties being read
+                    Thread writer = new Thread(() -> {
+                        Properties changed = new Properties();
+                        changed.put("key1", "b");
+                        changed.put("key2", "b");
+                        try {
+                            optimistic.store("pid3", changed);
+                        }
+                        catch (IOException ex) {
+                            //
+                        }
+                    });
+                    writer.start();
+                    writer.join();
+                    written.release();
+                }
+                return connection.prepareStatement(invocation1.getArgument(0));
+            }).when(mockConnection).prepareStatement(startsWith("SELECT prop_name"));
+            return mockConnection;
+        });
+        Dictionary<?, ?>[] result = new Dictionary<?, ?>[1];
+        Thread reader = new Thread(() -> {
+            try {
+                result[0] = optimistic.load("pid3");
+            }
+            catch (IOException ex) {
+                //
+            }
+        }, "READER");
+        reader.start();
+        reader.join();
+
+        assertEquals("b", result[0].get("key1"));
+        assertEquals("b", result[0].get("key2"));
+        assertEquals(1, optimistic.getConflictCount());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        PersistenceMetrics metrics = new PersistenceMetrics("test", new DummyLogHelper());
+        underTest.setMetrics(metrics);
+        underTest.load("pid1");
+        Properties properties = new Properties();
+        properties.put("key1", "value2");
+        underTest.store("pid1", properties);
+
+        Map<String, OperationStatistics> operations = metrics.getOperations();
+        assertEquals(2, operations.get(PersistenceMetrics.CONNECTION).getCount());
+        assertEquals(3, operations.get(PersistenceMetrics.DECODE).getCount());
+        assertEquals(1, operations.get(PersistenceMetrics.ENCODE).getCount());
+    }
+
+    @Test
+    public void testMigrateToDocumentLayout() throws Exception {
+        DatabasePersistenceManager documents = new DatabasePersistenceManager(datasource, new DummyLogHelper(),
+                "osgi_config_migrated", null);
+        documents.setLayout(DatabasePersistenceManager.Layout.DOCUMENT);
+        documents.setMigrationTable("OSGI_CONFIG");
+        documents.init();
+
+        Dictionary<?, ?> dict = documents.load("pid1");
+        assertEquals(3, dict.size());
+        assertEquals("value1", dict.get("key1"));
+        assertEquals(Boolean.TRUE, dict.get("key2"));
+        assertEquals(1, dict.get("key3"));
+    }
 }
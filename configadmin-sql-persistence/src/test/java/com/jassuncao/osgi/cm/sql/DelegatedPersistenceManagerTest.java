@@ -17,6 +17,13 @@ package com.jassuncao.osgi.cm.sql;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -27,15 +34,21 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.apache.felix.cm.PersistenceManager;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
+import org.osgi.framework.Constants;
 
 
 public class DelegatedPersistenceManagerTest {
@@ -52,6 +65,9 @@ public class DelegatedPersistenceManagerTest {
     @Mock
     PersistenceManager secondaryManager;
     
+    @Mock
+    PersistenceManager otherManager;
+    
     DelegatedPersistenceManager underTest;
     
     
@@ -61,6 +77,11 @@ public class DelegatedPersistenceManagerTest {
         underTest = new DelegatedPersistenceManager(primaryManager, secondaryManager, primaryPids);
     }
     
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+    
     @Test
     public void testStore() throws IOException {
         Dictionary<String,Object> properties1 = new Hashtable<>();
@@ -94,6 +115,153 @@ public class DelegatedPersistenceManagerTest {
         assertFalse(dictionaries.hasMoreElements());
     }
     
+    @Test
+    public void testIndexedAfterGetDictionaries() throws IOException {
+        Dictionary<String,Object> properties1 = dictionary(COM_JASSUNCAO_PID);
+        Dictionary<String,Object> properties2 = dictionary(COM_ACME_PID);
+        when(primaryManager.getDictionaries()).thenReturn(toEnumerator(Collections.singleton(properties1)));
+        when(secondaryManager.getDictionaries()).thenReturn(toEnumerator(Collections.singleton(properties2)));
+        when(primaryManager.load(COM_JASSUNCAO_PID)).thenReturn(properties1);
+        when(secondaryManager.load(COM_ACME_PID)).thenReturn(properties2);
+        Enumeration<Object> dictionaries = underTest.getDictionaries();
+        while (dictionaries.hasMoreElements()) {
+            dictionaries.nextElement();
+        }
+
+        assertEquals(properties1, underTest.load(COM_JASSUNCAO_PID));
+        assertEquals(properties2, underTest.load(COM_ACME_PID));
+        assertTrue(underTest.exists(COM_ACME_PID));
+        assertFalse(underTest.exists("com.acme.other"));
+        verify(primaryManager, never()).exists(anyString());
+        verify(secondaryManager, never()).exists(anyString());
+
+        underTest.delete(COM_ACME_PID);
+        verify(secondaryManager).delete(COM_ACME_PID);
+        verify(primaryManager, never()).delete(anyString());
+        assertFalse(underTest.exists(COM_ACME_PID));
+    }
+
+    @Test
+    public void testChangedPidIsProbedAgain() throws IOException {
+        when(primaryManager.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+        when(secondaryManager.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+        Enumeration<Object> dictionaries = underTest.getDictionaries();
+        assertFalse(dictionaries.hasMoreElements());
+        assertFalse(underTest.exists(COM_ACME_PID));
+
+        // Written straight to the secondary manager, like a bulk import
+        when(secondaryManager.exists(COM_ACME_PID)).thenReturn(Boolean.TRUE);
+        underTest.configurationChanged(COM_ACME_PID);
+        assertTrue(underTest.exists(COM_ACME_PID));
+    }
+
+    @Test
+    public void testStoreMovesPidToMatchingManager() throws IOException {
+        Dictionary<String,Object> properties = dictionary(COM_ACME_PID);
+        when(primaryManager.exists(COM_ACME_PID)).thenReturn(Boolean.TRUE);
+        assertTrue(underTest.exists(COM_ACME_PID));
+
+        underTest.store(COM_ACME_PID, properties);
+        verify(secondaryManager).store(COM_ACME_PID, properties);
+        verify(primaryManager).delete(COM_ACME_PID);
+        underTest.load(COM_ACME_PID);
+        verify(secondaryManager).load(COM_ACME_PID);
+        verify(primaryManager, never()).load(anyString());
+    }
+
+    @Test
+    public void testFailedWriteIsProbedAgain() throws IOException {
+        doThrow(new IOException("failed")).when(primaryManager).store(eq(COM_JASSUNCAO_PID), any());
+        try {
+            underTest.store(COM_JASSUNCAO_PID, new Hashtable<>());
+            fail("IOException expected");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+        underTest.exists(COM_JASSUNCAO_PID);
+        verify(primaryManager).exists(COM_JASSUNCAO_PID);
+    }
+
+    @Test
+    public void testRoutesToManyManagers() throws IOException {
+        Map<String, PersistenceManager> managers = new LinkedHashMap<>();
+        managers.put("sql", primaryManager);
+        managers.put("file", secondaryManager);
+        managers.put("memory", otherManager);
+        DelegatedPersistenceManager delegated = new DelegatedPersistenceManager(managers,
+                PidRouter.parse("com.jassuncao.*=sql,com.acme.tmp.*=memory,*=file"));
+        Dictionary<String,Object> properties = new Hashtable<>();
+        delegated.store(COM_JASSUNCAO_PID, properties);
+        delegated.store(COM_ACME_PID, properties);
+        delegated.store("com.acme.tmp.pid", properties);
+        verify(primaryManager).store(COM_JASSUNCAO_PID, properties);
+        verify(secondaryManager).store(COM_ACME_PID, properties);
+        verify(otherManager).store("com.acme.tmp.pid", properties);
+
+        when(otherManager.exists("com.acme.other")).thenReturn(Boolean.TRUE);
+        assertTrue(delegated.exists("com.acme.other"));
+        delegated.load("com.acme.other");
+        verify(otherManager).load("com.acme.other");
+
+        delegated.load("com.acme.unknown");
+        verify(otherManager).load("com.acme.unknown");
+        verify(otherManager, never()).exists("com.acme.unknown");
+    }
+
+    @Test
+    public void testLoadUnroutedPidWithoutCatchAll() throws IOException {
+        Map<String, PersistenceManager> managers = new LinkedHashMap<>();
+        managers.put("sql", primaryManager);
+        managers.put("file", secondaryManager);
+        DelegatedPersistenceManager delegated = new DelegatedPersistenceManager(managers,
+                PidRouter.parse("com.jassuncao.*=sql,com.acme.tmp.*=file"));
+        try {
+            when(primaryManager.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+            when(secondaryManager.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+            Enumeration<Object> dictionaries = delegated.getDictionaries();
+            assertFalse(dictionaries.hasMoreElements());
+
+            assertTrue(delegated.load("org.other.pid").isEmpty());
+            verify(primaryManager, never()).load(anyString());
+            verify(secondaryManager, never()).load(anyString());
+        }
+        finally {
+            delegated.close();
+        }
+    }
+
+    @Test
+    public void testGetDictionariesAsksAllManagersAtOnce() throws Exception {
+        CountDownLatch secondaryAsked = new CountDownLatch(1);
+        when(primaryManager.getDictionaries()).then(invocation -> {
+            // Only returns once the secondary was asked from another thread
+            assertTrue(secondaryAsked.await(5, TimeUnit.SECONDS));
+            return toEnumerator(Collections.singleton("pid1"));
+        });
+        when(secondaryManager.getDictionaries()).then(invocation -> {
+            secondaryAsked.countDown();
+            return toEnumerator(Collections.singleton("pid2"));
+        });
+        Enumeration<Object> dictionaries = underTest.getDictionaries();
+        assertEquals("pid1", dictionaries.nextElement());
+        assertEquals("pid2", dictionaries.nextElement());
+        assertFalse(dictionaries.hasMoreElements());
+    }
+
+    @Test(expected = IOException.class)
+    public void testGetDictionariesFailure() throws IOException {
+        when(primaryManager.getDictionaries()).thenReturn(toEnumerator(Collections.singleton("pid1")));
+        when(secondaryManager.getDictionaries()).thenThrow(new IOException("failed"));
+        underTest.getDictionaries();
+    }
+
+    private static Dictionary<String,Object> dictionary(String pid) {
+        Dictionary<String,Object> properties = new Hashtable<>();
+        properties.put(Constants.SERVICE_PID, pid);
+        return properties;
+    }
+    
     private <E> Enumeration<E> toEnumerator(Collection<E> col){
         Iterator<E> it = col.iterator();
         return new Enumeration<E>() {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.felix.cm.NotCachablePersistenceManager;
+import org.apache.felix.cm.PersistenceManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+public class MetricsPersistenceManagerTest {
+
+    private static final String PID1 = "pid1";
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().silent();
+
+    @Mock
+    PersistenceManager delegate;
+
+    @Mock
+    CachingPersistenceManager notCachableDelegate;
+
+    PersistenceMetrics metrics;
+
+    PersistenceManager underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new PersistenceMetrics("test", new DummyLogHelper());
+        underTest = MetricsPersistenceManager.wrap(delegate, metrics);
+    }
+
+    @Test
+    public void testCountsCallsAndErrors() throws IOException {
+        when(delegate.exists(PID1)).thenReturn(true);
+        doThrow(new IOException("failed")).when(delegate).delete(PID1);
+        assertTrue(underTest.exists(PID1));
+        assertTrue(underTest.exists(PID1));
+        underTest.store(PID1, new Hashtable<>());
+        try {
+            underTest.delete(PID1);
+            fail("IOException expected");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+
+        Map<String, OperationStatistics> operations = metrics.getOperations();
+        assertEquals(2, operations.get(PersistenceMetrics.EXISTS).getCount());
+        assertEquals(0, operations.get(PersistenceMetrics.EXISTS).getErrorCount());
+        assertEquals(1, operations.get(PersistenceMetrics.STORE).getCount());
+        assertEquals(1, operations.get(PersistenceMetrics.DELETE).getCount());
+        assertEquals(1, operations.get(PersistenceMetrics.DELETE).getErrorCount());
+        assertFalse(operations.containsKey(PersistenceMetrics.LOAD));
+
+        OperationStatistics exists = operations.get(PersistenceMetrics.EXISTS);
+        long bucketed = 0;
+        for (long count : exists.getHistogramCounts()) {
+            bucketed += count;
+        }
+        assertEquals(2, bucketed);
+        assertTrue(exists.getP50() <= exists.getP99());
+        assertTrue(exists.getMaxTime() <= exists.getP99());
+
+        metrics.reset();
+        assertTrue(metrics.getOperations().isEmpty());
+    }
+
+    @Test
+    public void testKeepsNotCachable() {
+        assertFalse(underTest instanceof NotCachablePersistenceManager);
+        assertTrue(MetricsPersistenceManager.wrap(notCachableDelegate, metrics) instanceof NotCachablePersistenceManager);
+    }
+
+    @Test
+    public void testPercentiles() {
+        for (int i = 0; i < 99; i++) {
+            metrics.record(PersistenceMetrics.LOAD, System.nanoTime(), false);
+        }
+        metrics.record(PersistenceMetrics.LOAD, System.nanoTime() - 3_000_000_000L, false);
+        OperationStatistics load = metrics.getOperations().get(PersistenceMetrics.LOAD);
+        assertEquals(100, load.getCount());
+        assertTrue(load.getP99() < 1000);
+        assertTrue(load.getMaxTime() >= 3000000);
+        assertEquals(5000000, load.getHistogramBounds()[17]);
+        assertEquals(1, load.getHistogramCounts()[17]);
+    }
+
+    @Test
+    public void testGauges() throws Exception {
+        when(delegate.load(PID1)).thenReturn(new Hashtable<>(Collections.singletonMap("key", "value")));
+        CachingPersistenceManager cache = new CachingPersistenceManager(delegate, 10);
+        metrics.gauge(PersistenceMetrics.CACHE_HITS, cache::getHitCount);
+        metrics.gauge(PersistenceMetrics.CACHE_MISSES, cache::getMissCount);
+        metrics.gauge(PersistenceMetrics.CACHE_SIZE, cache::getSize);
+        cache.load(PID1);
+        cache.load(PID1);
+
+        Map<String, Long> gauges = metrics.getGauges();
+        assertEquals(Long.valueOf(1), gauges.get(PersistenceMetrics.CACHE_HITS));
+        assertEquals(Long.valueOf(1), gauges.get(PersistenceMetrics.CACHE_MISSES));
+        assertEquals(Long.valueOf(1), gauges.get(PersistenceMetrics.CACHE_SIZE));
+
+        metrics.reset();
+        assertEquals(3, metrics.getGauges().size());
+    }
+
+    @Test
+    public void testRegisteredOnPlatformMBeanServer() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.jassuncao.osgi.cm.sql:type=PersistenceMetrics,name=\"test\"");
+        metrics.register();
+        try {
+            underTest.exists(PID1);
+            assertEquals("test", server.getAttribute(name, "Name"));
+            TabularData operations = (TabularData) server.getAttribute(name, "Operations");
+            CompositeData exists = operations.get(new Object[] { PersistenceMetrics.EXISTS });
+            CompositeData statistics = (CompositeData) exists.get("value");
+            assertEquals(1L, statistics.get("count"));
+            assertArrayEquals(metrics.getOperations().get(PersistenceMetrics.EXISTS).getHistogramBounds(),
+                    (long[]) statistics.get("histogramBounds"));
+        }
+        finally {
+            metrics.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PidRouterTest {
+
+    @Test
+    public void testFirstMatchingRuleWins() {
+        PidRouter router = PidRouter.parse("com.acme.special=memory, com.acme.*=sql, regex:com\\.acme\\.s.*=file, *=file");
+        assertEquals("memory", router.route("com.acme.special"));
+        assertEquals("sql", router.route("com.acme.special2"));
+        assertEquals("sql", router.route("com.acme.something"));
+        assertEquals("file", router.route("org.other"));
+        assertEquals(new ArrayList<>(Arrays.asList("memory", "sql", "file")), new ArrayList<>(router.getTargets()));
+    }
+
+    @Test
+    public void testRegexBeforePrefix() {
+        PidRouter router = PidRouter.builder().regex("com\\.acme\\.[0-9]+", "memory").prefix("com.acme.", "sql").build();
+        assertEquals("memory", router.route("com.acme.42"));
+        assertEquals("sql", router.route("com.acme.a42"));
+        assertNull(router.route("org.other"));
+        assertNull(router.route("com.acme"));
+    }
+
+    @Test
+    public void testLiteralRegexes() {
+        assertEquals("com.jassuncao.", PidRouter.literalPrefix("^com\\.jassuncao\\..*"));
+        assertEquals("com.jassuncao", PidRouter.literalPrefix("com\\.jassuncao.*$"));
+        assertNull(PidRouter.literalPrefix("com\\.jassuncao\\.*"));
+        assertNull(PidRouter.literalPrefix("com\\.[a-z]+\\..*"));
+        assertNull(PidRouter.literalPrefix("com\\d.*"));
+
+        PidRouter router = PidRouter.builder().regex("^com\\.jassuncao\\..*", "primary").regex("org\\.pid", "exact")
+                .any("secondary").build();
+        assertEquals("primary", router.route("com.jassuncao.pid"));
+        assertEquals("secondary", router.route("com.jassuncao"));
+        assertEquals("exact", router.route("org.pid"));
+        assertEquals("secondary", router.route("orgXpid"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRule() {
+        PidRouter.parse("com.acme.*");
+    }
+}
@@ -17,9 +17,18 @@ package com.jassuncao.osgi.cm.sql;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Supplier;
 
 import org.junit.Test;
 
@@ -65,6 +74,75 @@ public class PropertyConverterTest {
 
     }
 
+    @Test
+    public void testPayload() {
+        StringBuilder payload = new StringBuilder();
+        PropertyConverter.appendEntry(payload, "key\t1", "T", "line 1\nline 2\\");
+        PropertyConverter.appendEntry(payload, "key2", "I[]", INT_ARRAY_TEXT);
+        PropertyConverter.appendEntry(payload, "key3", "T", "");
+
+        Dictionary<String, Object> dictionary = PropertyConverter.convertFromPayload(payload.toString());
+        assertEquals(3, dictionary.size());
+        assertEquals("line 1\nline 2\\", dictionary.get("key\t1"));
+        assertArrayEquals(INT_ARRAY, (Object[]) dictionary.get("key2"));
+        assertEquals("", dictionary.get("key3"));
+    }
+
+    @Test
+    public void testFastDecodingMatchesGeneric() {
+        String[] inputs = new String[] { "", "1", "1,2,3", "-1,+2", "1,2,", ",1", "1,,2", "1\\,2", "a", "1.5", "-",
+                "+", " 1", "true,FALSE,xpto", "127,-128", "128", "-129", "32767,-32768", "32768", "2147483647",
+                "-2147483648", "2147483648", "9223372036854775807", "-9223372036854775807", "-9223372036854775808",
+                "9223372036854775808", "99999999999999999999", "\u0661\u0662", "1,2,3,,", "," };
+        Random random = new Random(42);
+        List<String> allInputs = new ArrayList<>(Arrays.asList(inputs));
+        for (int i = 0; i < 200; i++) {
+            StringBuilder builder = new StringBuilder();
+            int size = random.nextInt(20);
+            for (int j = 0; j < size; j++) {
+                if (j > 0) {
+                    builder.append(',');
+                }
+                builder.append(random.nextInt(3) == 0 ? random.nextLong() : random.nextInt(300) - 150);
+            }
+            allInputs.add(builder.toString());
+        }
+        assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) PropertyConverter.convertStringToArrayFast('i', "1,2,3"));
+        assertNull(PropertyConverter.convertStringToArrayFast('i', "1\\,2"));
+        assertNull(PropertyConverter.convertStringToArrayFast('T', "a,b"));
+
+        char[] codes = new char[] { 'i', 'l', 'f', 'd', 's', 'x', 'b', 'c', 'I', 'L', 'F', 'D', 'S', 'X', 'B', 'C',
+                'T' };
+        for (char code : codes) {
+            for (String input : allInputs) {
+                assertSameResult(code, input, () -> PropertyConverter.convertStringToArray(code, input),
+                        () -> PropertyConverter.convertFromString(code + "[]", input));
+                assertSameResult(code, input, () -> PropertyConverter.convertStringToCollection(code, input),
+                        () -> PropertyConverter.convertFromString(code + "()", input));
+            }
+        }
+    }
+
+    private static void assertSameResult(char code, String input, Supplier<Object> generic, Supplier<Object> fast) {
+        Object expected;
+        try {
+            expected = generic.get();
+        }
+        catch (RuntimeException ex) {
+            try {
+                fast.get();
+                fail("Expected " + ex.getClass().getSimpleName() + " for " + code + " '" + input + "'");
+            }
+            catch (RuntimeException actual) {
+                assertEquals(ex.getClass(), actual.getClass());
+            }
+            return;
+        }
+        Object actual = fast.get();
+        assertEquals(expected.getClass(), actual.getClass());
+        assertTrue(code + " '" + input + "'", Objects.deepEquals(expected, actual));
+    }
+
     private static Object convertFromString(char type, String string) {
         return PropertyConverter.convertFromString(Character.toString(type), string);
     }
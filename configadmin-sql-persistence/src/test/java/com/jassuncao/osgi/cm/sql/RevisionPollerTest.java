@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevisionPollerTest {
+
+    private final List<String> changed = new ArrayList<>();
+
+    private DatabasePersistenceManager localNode;
+
+    private DatabasePersistenceManager remoteNode;
+
+    private RevisionPoller underTest;
+
+    @Before
+    public void setUp() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:revision;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        localNode = new DatabasePersistenceManager(dataSource, new DummyLogHelper(), "rev_config", null);
+        localNode.setRevisionTracking(true);
+        localNode.init();
+        remoteNode = new DatabasePersistenceManager(dataSource, new DummyLogHelper(), "rev_config", null);
+        remoteNode.setRevisionTracking(true);
+        remoteNode.init();
+        underTest = new RevisionPoller(localNode, Collections.singletonList(changed::add), new DummyLogHelper());
+        underTest.start(60000);
+    }
+
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+
+    @Test
+    public void testChangesAreDetected() throws IOException {
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("key", "value");
+        remoteNode.store("pid1", properties);
+        remoteNode.store("pid2", properties);
+        underTest.poll();
+        assertEquals(Arrays.asList("pid1", "pid2"), changed);
+
+        changed.clear();
+        remoteNode.store("pid1", properties);
+        underTest.poll();
+        assertTrue("An unchanged configuration must not bump the revision", changed.isEmpty());
+
+        remoteNode.delete("pid2");
+        underTest.poll();
+        assertEquals(Collections.singletonList("pid2"), changed);
+        assertEquals(localNode.loadCurrentRevision(), underTest.getLastRevision());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.osgi.framework.Constants;
+
+public class ShardedPersistenceManagerTest {
+
+    private static final int SHARDS = 3;
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().silent();
+
+    @Mock
+    PersistenceManager firstShard;
+
+    @Mock
+    PersistenceManager secondShard;
+
+    private JdbcDataSource dataSource;
+
+    private ShardedPersistenceManager underTest;
+
+    @Before
+    public void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:shards;DB_CLOSE_DELAY=-1");
+        List<DatabasePersistenceManager> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            DatabasePersistenceManager shard = new DatabasePersistenceManager(dataSource, new DummyLogHelper(),
+                    "osgi_config_" + i, null);
+            shard.init();
+            shards.add(shard);
+        }
+        underTest = new ShardedPersistenceManager(shards);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        underTest.close();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    public void testEachPidIsKeptInItsShard() throws Exception {
+        int[] expected = new int[SHARDS];
+        for (int i = 0; i < 30; i++) {
+            String pid = "com.acme.pid" + i;
+            underTest.store(pid, properties(pid));
+            expected[ShardedPersistenceManager.shardOf(pid, SHARDS)]++;
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            assertTrue("Shard " + i + " is empty", expected[i] > 0);
+            assertEquals(expected[i], countPids("osgi_config_" + i));
+        }
+        assertTrue(underTest.exists("com.acme.pid7"));
+        assertEquals("com.acme.pid7", underTest.load("com.acme.pid7").get("name"));
+
+        underTest.delete("com.acme.pid7");
+        assertFalse(underTest.exists("com.acme.pid7"));
+    }
+
+    @Test
+    public void testShardIsStable() {
+        // Must never change, or stored configurations would no longer be found
+        assertEquals(2, ShardedPersistenceManager.shardOf("com.acme.pid7", 3));
+        assertEquals(14, ShardedPersistenceManager.shardOf("com.acme.pid7", 16));
+        assertEquals(1, ShardedPersistenceManager.shardOf("org.pid1", 16));
+    }
+
+    @Test
+    public void testGetDictionariesMergesAllShards() throws Exception {
+        Set<String> stored = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            String pid = "org.pid" + i;
+            underTest.store(pid, properties(pid));
+            stored.add(pid);
+        }
+        Set<Object> loaded = new HashSet<>();
+        for (Enumeration<?> dictionaries = underTest.getDictionaries(); dictionaries.hasMoreElements();) {
+            loaded.add(((Dictionary<?, ?>) dictionaries.nextElement()).get("name"));
+        }
+        assertEquals(stored, loaded);
+    }
+
+    @Test
+    public void testFailingShard() throws Exception {
+        when(firstShard.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+        when(secondShard.getDictionaries()).thenThrow(new IOException("Shard down"));
+        try (ShardedPersistenceManager sharded = new ShardedPersistenceManager(Arrays.asList(firstShard, secondShard))) {
+            sharded.getDictionaries();
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+            assertEquals("Shard down", ex.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFailingShardClosesTheOthers() throws Exception {
+        Enumeration<Object> streaming = mock(Enumeration.class, withSettings().extraInterfaces(AutoCloseable.class));
+        when(firstShard.getDictionaries()).thenReturn(streaming);
+        when(secondShard.getDictionaries()).thenThrow(new IOException("Shard down"));
+        try (ShardedPersistenceManager sharded = new ShardedPersistenceManager(Arrays.asList(firstShard, secondShard))) {
+            sharded.getDictionaries();
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+            assertEquals("Shard down", ex.getMessage());
+        }
+        verify((AutoCloseable) streaming).close();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFailingEnumerationClosesTheOthers() throws Exception {
+        Enumeration<Object> failing = mock(Enumeration.class);
+        when(failing.hasMoreElements()).thenReturn(true);
+        when(failing.nextElement()).thenThrow(new IllegalStateException("Connection lost"));
+        Enumeration<Object> streaming = mock(Enumeration.class, withSettings().extraInterfaces(AutoCloseable.class));
+        when(firstShard.getDictionaries()).thenReturn(failing);
+        when(secondShard.getDictionaries()).thenReturn(streaming);
+        try (ShardedPersistenceManager sharded = new ShardedPersistenceManager(Arrays.asList(firstShard, secondShard))) {
+            sharded.getDictionaries().nextElement();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            assertEquals("Connection lost", ex.getMessage());
+        }
+        verify((AutoCloseable) streaming).close();
+    }
+
+    @Test
+    public void testShardCountIsChecked() throws Exception {
+        DatabasePersistenceManager primary = new DatabasePersistenceManager(dataSource, new DummyLogHelper(),
+                "osgi_config_0", null);
+        primary.checkShardCount("osgi_config", SHARDS);
+        primary.checkShardCount("osgi_config", SHARDS);
+        for (int shards : new int[] { 1, SHARDS + 1 }) {
+            try {
+                primary.checkShardCount("osgi_config", shards);
+                fail("Expected IllegalStateException");
+            }
+            catch (IllegalStateException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testShardCountIsNotRecordedWithoutSharding() throws Exception {
+        DatabasePersistenceManager primary = new DatabasePersistenceManager(dataSource, new DummyLogHelper(),
+                "osgi_config", null);
+        primary.checkShardCount("osgi_config", 1);
+        primary.checkShardCount("osgi_config", SHARDS);
+    }
+
+    private static Dictionary<String, Object> properties(String pid) {
+        Hashtable<String, Object> properties = new Hashtable<>(); // NOSONAR
+        properties.put(Constants.SERVICE_PID, pid);
+        properties.put("name", pid);
+        return properties;
+    }
+
+    private int countPids(String table) throws Exception {
+        try (Connection connection = dataSource.getConnection();
+                ResultSet rs = connection.createStatement().executeQuery("SELECT COUNT(DISTINCT pid) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
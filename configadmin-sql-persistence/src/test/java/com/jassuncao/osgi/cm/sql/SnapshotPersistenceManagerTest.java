@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.osgi.framework.Constants;
+
+public class SnapshotPersistenceManagerTest {
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().silent();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    PersistenceManager delegate;
+
+    File snapshotFile;
+
+    SnapshotPersistenceManager underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = new File(folder.getRoot(), "snapshot.dat");
+        underTest = new SnapshotPersistenceManager(snapshotFile, new DummyLogHelper());
+        underTest.init();
+    }
+
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+
+    @Test
+    public void testSnapshotSurvivesRestart() throws IOException {
+        Dictionary<String, Object> properties = dictionary("pid1");
+        properties.put("numbers", new int[] { 1, 2, 3 });
+        underTest.store("pid1", properties);
+        underTest.close();
+
+        underTest = new SnapshotPersistenceManager(snapshotFile, new DummyLogHelper());
+        underTest.init();
+        assertTrue(underTest.exists("pid1"));
+        Dictionary<?, ?> loaded = underTest.load("pid1");
+        assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) loaded.get("numbers"));
+    }
+
+    @Test
+    public void testSnapshotIsWrittenInBackground() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            underTest.store("pid" + i, dictionary("pid" + i));
+        }
+        underTest.delete("pid0");
+        assertFalse(snapshotFile.exists());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!snapshotFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+
+        SnapshotPersistenceManager restarted = new SnapshotPersistenceManager(snapshotFile, new DummyLogHelper());
+        restarted.init();
+        try {
+            assertFalse(restarted.exists("pid0"));
+            assertTrue(restarted.exists("pid99"));
+        }
+        finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void testPendingChangesArePushedOnAttach() throws IOException {
+        Dictionary<String, Object> properties = dictionary("pid1");
+        underTest.store("pid1", properties);
+        underTest.delete("pid2");
+        when(delegate.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+
+        underTest.attach(delegate);
+        verify(delegate, timeout(1000)).store("pid1", properties);
+        verify(delegate, timeout(1000)).delete("pid2");
+    }
+
+    @Test
+    public void testReconcileWithDelegate() throws IOException {
+        when(delegate.getDictionaries()).thenReturn(Collections.emptyEnumeration());
+        underTest.attach(delegate);
+        verify(delegate, timeout(1000)).getDictionaries();
+        underTest.store("stale", dictionary("stale"));
+        verify(delegate).store(eq("stale"), any());
+        underTest.detach();
+
+        when(delegate.getDictionaries()).thenReturn(enumeration(dictionary("pid1")));
+        underTest.attach(delegate);
+        verify(delegate, timeout(1000).times(2)).getDictionaries();
+        waitUntilExists("pid1");
+        assertFalse(underTest.exists("stale"));
+        verify(delegate, never()).load(any());
+    }
+
+    @Test
+    public void testConflictingChangesAreNotPushed() throws IOException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        DatabasePersistenceManager database = new DatabasePersistenceManager(dataSource, new DummyLogHelper(), "snapshot_config", null);
+        database.setRevisionTracking(true);
+        database.init();
+        database.store("pid1", dictionary("pid1", "database"));
+        database.store("pid2", dictionary("pid2", "database"));
+        List<DatabasePersistenceManager> revisionSources = Collections.singletonList(database);
+        underTest.attach(database, revisionSources);
+        waitUntilValue("pid2", "database");
+        underTest.detach();
+
+        // Changed by another node while detached
+        database.store("pid1", dictionary("pid1", "other node"));
+        underTest.store("pid1", dictionary("pid1", "local"));
+        underTest.store("pid2", dictionary("pid2", "local"));
+        underTest.close();
+
+        underTest = new SnapshotPersistenceManager(snapshotFile, new DummyLogHelper());
+        underTest.init();
+        underTest.attach(database, revisionSources);
+        waitUntilValue("pid1", "other node");
+        waitUntilValue("pid2", "local");
+        assertEquals("other node", database.load("pid1").get("value"));
+        assertEquals("local", database.load("pid2").get("value"));
+    }
+
+    private void waitUntilValue(String pid, String value) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!value.equals(underTest.load(pid).get("value")) && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(value, underTest.load(pid).get("value"));
+    }
+
+    private void waitUntilExists(String pid) {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!underTest.exists(pid) && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertTrue(underTest.exists(pid));
+        assertEquals(pid, ((Dictionary<?, ?>) enumerationOf(underTest).nextElement()).get(Constants.SERVICE_PID));
+    }
+
+    private static Enumeration<?> enumerationOf(PersistenceManager manager) {
+        try {
+            return manager.getDictionaries();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Dictionary<String, Object> dictionary(String pid) {
+        Hashtable<String, Object> dictionary = new Hashtable<>();
+        dictionary.put(Constants.SERVICE_PID, pid);
+        return dictionary;
+    }
+
+    private static Dictionary<String, Object> dictionary(String pid, String value) {
+        Dictionary<String, Object> dictionary = dictionary(pid);
+        dictionary.put("value", value);
+        return dictionary;
+    }
+
+    private static Enumeration<Object> enumeration(Object element) {
+        return Collections.enumeration(Collections.singleton(element));
+    }
+}
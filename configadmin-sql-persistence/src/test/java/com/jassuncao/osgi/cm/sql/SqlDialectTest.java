@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SqlDialectTest {
+
+    @Test
+    public void testDetection() {
+        assertEquals(H2Dialect.NAME, SqlDialect.forProductName("H2").getName());
+        assertEquals(PostgreSqlDialect.NAME, SqlDialect.forProductName("PostgreSQL").getName());
+        assertEquals(MySqlDialect.NAME, SqlDialect.forProductName("MySQL").getName());
+        assertEquals(MySqlDialect.NAME, SqlDialect.forProductName("MariaDB").getName());
+        assertEquals(SqlDialect.GENERIC, SqlDialect.forProductName("Oracle").getName());
+        assertEquals(PostgreSqlDialect.NAME, SqlDialect.forName(" PostgreSQL ").getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownName() {
+        SqlDialect.forName("oracle");
+    }
+
+    @Test
+    public void testUpsert() {
+        assertNull(new SqlDialect().upsertSql("t", Collections.singletonList("pid"), Collections.singletonList("payload")));
+        assertEquals("MERGE INTO t (pid, prop_name, prop_type, prop_value) KEY (pid, prop_name) VALUES (?, ?, ?, ?)",
+                new H2Dialect().upsertSql("t", Arrays.asList("pid", "prop_name"), Arrays.asList("prop_type", "prop_value")));
+        assertEquals("INSERT INTO t (pid, prop_name, prop_type, prop_value) VALUES (?, ?, ?, ?) ON CONFLICT (pid, prop_name)"
+                + " DO UPDATE SET prop_type = EXCLUDED.prop_type, prop_value = EXCLUDED.prop_value",
+                new PostgreSqlDialect().upsertSql("t", Arrays.asList("pid", "prop_name"), Arrays.asList("prop_type", "prop_value")));
+        assertEquals("INSERT INTO t (pid, revision) VALUES (?, ?) ON DUPLICATE KEY UPDATE revision = VALUES(revision)",
+                new MySqlDialect().upsertSql("t", Collections.singletonList("pid"), Collections.singletonList("revision")));
+    }
+
+    @Test
+    public void testCoveringIndex() {
+        assertEquals("CREATE INDEX ix ON t (revision, pid)",
+                new SqlDialect().createIndexSql("ix", "t", Collections.singletonList("revision"), Collections.singletonList("pid")));
+        assertEquals("CREATE INDEX ix ON t (revision) INCLUDE (pid)",
+                new PostgreSqlDialect().createIndexSql("ix", "t", Collections.singletonList("revision"), Collections.singletonList("pid")));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import com.jassuncao.osgi.cm.sql.api.BulkPersistenceManager;
+
+public class WriteBehindPersistenceManagerTest {
+
+    private static final String PID1 = "pid1";
+    private static final String PID2 = "pid2";
+
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule().silent();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    PersistenceManager delegate;
+
+    @Mock
+    BulkPersistenceManager bulkDelegate;
+
+    WriteBehindPersistenceManager underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        underTest = new WriteBehindPersistenceManager(delegate, new DummyLogHelper(), 60000, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        underTest.close();
+    }
+
+    @Test
+    public void testRepeatedStoresAreMerged() throws IOException {
+        underTest.store(PID1, dictionary("value1"));
+        underTest.store(PID1, dictionary("value2"));
+        assertEquals("value2", underTest.load(PID1).get("key"));
+        assertTrue(underTest.exists(PID1));
+        verify(delegate, never()).store(anyString(), any());
+
+        underTest.flush();
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Dictionary> captor = ArgumentCaptor.forClass(Dictionary.class);
+        verify(delegate, times(1)).store(eq(PID1), captor.capture());
+        assertEquals("value2", captor.getValue().get("key"));
+        assertEquals(0, underTest.getPendingCount());
+    }
+
+    @Test
+    public void testPendingDelete() throws IOException {
+        underTest.store(PID1, dictionary("value1"));
+        underTest.delete(PID1);
+        assertFalse(underTest.exists(PID1));
+        assertTrue(underTest.load(PID1).isEmpty());
+        underTest.flush();
+        verify(delegate).delete(PID1);
+        verify(delegate, never()).store(anyString(), any());
+    }
+
+    @Test
+    public void testFlushesWhenBatchIsFull() throws IOException {
+        underTest.store(PID1, dictionary("value1"));
+        underTest.store(PID2, dictionary("value2"));
+        underTest.delete("pid3");
+        verify(delegate, timeout(5000)).delete("pid3");
+        verify(delegate).store(eq(PID1), any());
+        verify(delegate).store(eq(PID2), any());
+    }
+
+    @Test
+    public void testFailedFlushKeepsWrites() throws IOException {
+        doThrow(new IOException("failed")).doNothing().when(delegate).store(eq(PID2), any());
+        underTest.store(PID1, dictionary("value1"));
+        underTest.store(PID2, dictionary("value2"));
+        try {
+            underTest.flush();
+            fail("IOException expected");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+        assertEquals(1, underTest.getPendingCount());
+        assertEquals("value2", underTest.load(PID2).get("key"));
+
+        underTest.store(PID2, dictionary("value3"));
+        underTest.flush();
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Dictionary> captor = ArgumentCaptor.forClass(Dictionary.class);
+        verify(delegate, times(2)).store(eq(PID2), captor.capture());
+        assertEquals("value3", captor.getValue().get("key"));
+        verify(delegate, times(1)).store(eq(PID1), any());
+    }
+
+    @Test
+    public void testCloseFlushes() throws IOException {
+        doNothing().when(delegate).store(anyString(), any());
+        underTest.store(PID1, dictionary("value1"));
+        underTest.close();
+        verify(delegate).store(eq(PID1), any());
+
+        underTest.store(PID2, dictionary("value2"));
+        verify(delegate).store(eq(PID2), any());
+    }
+
+    @Test
+    public void testCloseKeepsUnflushedWrites() throws IOException {
+        doThrow(new IOException("failed")).doNothing().when(delegate).store(eq(PID1), any());
+        underTest.store(PID1, dictionary("value1"));
+        try {
+            underTest.close();
+            fail("IOException expected");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+        assertEquals(1, underTest.getPendingCount());
+        assertEquals("value1", underTest.load(PID1).get("key"));
+
+        underTest.store(PID2, dictionary("value2"));
+        verify(delegate, times(2)).store(eq(PID1), any());
+        verify(delegate).store(eq(PID2), any());
+        assertEquals(0, underTest.getPendingCount());
+    }
+
+    @Test
+    public void testCloseRetriesFailedFlush() throws IOException {
+        underTest.close();
+        underTest = new WriteBehindPersistenceManager(delegate, null, new DummyLogHelper(), 60000, 10,
+                new File(folder.getRoot(), "pending.dat"), 5000);
+        doThrow(new IOException("failed")).doThrow(new IOException("failed")).doNothing().when(delegate).store(eq(PID1), any());
+        underTest.store(PID1, dictionary("value1"));
+        underTest.close();
+        verify(delegate, times(3)).store(eq(PID1), any());
+        assertEquals(0, underTest.getPendingCount());
+        assertFalse(new File(folder.getRoot(), "pending.dat").exists());
+    }
+
+    @Test
+    public void testCloseSavesUnflushedWrites() throws IOException {
+        File pendingFile = new File(folder.getRoot(), "pending.dat");
+        underTest.close();
+        underTest = new WriteBehindPersistenceManager(delegate, null, new DummyLogHelper(), 60000, 10, pendingFile, 200);
+        doThrow(new IOException("failed")).when(delegate).store(eq(PID1), any());
+        doThrow(new IOException("failed")).when(delegate).delete(PID2);
+        underTest.store(PID1, dictionary("value1"));
+        underTest.delete(PID2);
+        try {
+            underTest.close();
+            fail("IOException expected");
+        }
+        catch (IOException ex) {
+            // expected
+        }
+        assertTrue(pendingFile.isFile());
+
+        PersistenceManager restarted = mock(PersistenceManager.class);
+        underTest = new WriteBehindPersistenceManager(restarted, null, new DummyLogHelper(), 60000, 10, pendingFile, 200);
+        underTest.init();
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Dictionary> captor = ArgumentCaptor.forClass(Dictionary.class);
+        verify(restarted, timeout(5000)).delete(PID2);
+        verify(restarted).store(eq(PID1), captor.capture());
+        assertEquals("value1", captor.getValue().get("key"));
+        underTest.close();
+        assertFalse(pendingFile.exists());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFlushStoresInBulk() throws IOException {
+        underTest.close();
+        underTest = new WriteBehindPersistenceManager(delegate, bulkDelegate, new DummyLogHelper(), 60000, 10);
+        underTest.store(PID1, dictionary("value1"));
+        underTest.store(PID2, dictionary("value2"));
+        underTest.delete("pid3");
+        underTest.flush();
+
+        ArgumentCaptor<Map<String, Dictionary<String, ?>>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(bulkDelegate).storeAll(captor.capture());
+        assertEquals(2, captor.getValue().size());
+        assertEquals("value2", captor.getValue().get(PID2).get("key"));
+        verify(delegate, never()).store(anyString(), any());
+        verify(delegate).delete("pid3");
+        assertEquals(0, underTest.getPendingCount());
+    }
+
+    private static Dictionary<String, Object> dictionary(String value) {
+        Dictionary<String, Object> dictionary = new Hashtable<>();
+        dictionary.put("key", value);
+        return dictionary;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.osgi.framework.Constants;
+
+/**
+ * Measures {@link DatabasePersistenceManager} against an in-memory H2 database seeded with {@code pids}
+ * configurations of {@code properties} properties each. Every trial uses a fresh database.
+ * <p>
+ * The benchmarks run single threaded in {@link SingleThreaded} and with 4 threads in {@link MultiThreaded}. Use the
+ * JMH {@code -t} option for other thread counts.
+ *
+ * @author jassuncao
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class DatabasePersistenceManagerBenchmark {
+
+    private static final AtomicLong DATABASE_COUNTER = new AtomicLong();
+
+    @Threads(1)
+    public static class SingleThreaded extends DatabasePersistenceManagerBenchmark {
+    }
+
+    @Threads(4)
+    public static class MultiThreaded extends DatabasePersistenceManagerBenchmark {
+    }
+
+    @State(Scope.Benchmark)
+    public static class Database {
+
+        @Param({ "100", "1000" })
+        public int pids;
+
+        @Param({ "10", "50" })
+        public int properties;
+
+        @Param({ "ROWS", "DOCUMENT" })
+        public DatabasePersistenceManager.Layout layout;
+
+        @Param({ "false", "true" })
+        public boolean pooled;
+
+        DatabasePersistenceManager persistenceManager;
+
+        private JdbcDataSource h2;
+
+        private ConnectionPool pool;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            h2 = new JdbcDataSource();
+            h2.setURL("jdbc:h2:mem:benchmark" + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+            h2.setUser("sa");
+            h2.setPassword("");
+            DataSource dataSource = h2;
+            LogHelper logHelper = new QuietLogHelper();
+            if (pooled) {
+                pool = new ConnectionPool(h2, logHelper, 1, 8, 30000, 0, 0, 16);
+                dataSource = pool;
+            }
+            persistenceManager = new DatabasePersistenceManager(dataSource, logHelper, "osgi_config", null);
+            persistenceManager.setLayout(layout);
+            persistenceManager.init();
+            for (int i = 0; i < pids; i++) {
+                persistenceManager.store(pid(i), createProperties(pid(i), properties, 0));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            if (pool != null) {
+                pool.close();
+            }
+            try (Connection connection = h2.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("SHUTDOWN");
+            }
+        }
+
+        String randomPid() {
+            return pid(ThreadLocalRandom.current().nextInt(pids));
+        }
+    }
+
+    /**
+     * Every store changes some properties of the configuration. Each thread writes to its own share of the PIDs, like
+     * Configuration Admin which never writes the same PID concurrently.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private long version;
+
+        private int threadIndex;
+
+        private int threadCount;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            threadIndex = threadParams.getThreadIndex();
+            threadCount = threadParams.getThreadCount();
+        }
+
+        String randomPid(Database database) {
+            int share = Math.max(database.pids / threadCount, 1);
+            return pid((threadIndex + ThreadLocalRandom.current().nextInt(share) * threadCount) % database.pids);
+        }
+
+        Dictionary<String, Object> nextProperties(Database database, String pid) {
+            return createProperties(pid, database.properties, ++version);
+        }
+    }
+
+    @Benchmark
+    public boolean exists(Database database) {
+        return database.persistenceManager.exists(database.randomPid());
+    }
+
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public Dictionary load(Database database) throws IOException {
+        return database.persistenceManager.load(database.randomPid());
+    }
+
+    @Benchmark
+    public void store(Database database, Writer writer) throws IOException {
+        String pid = writer.randomPid(database);
+        database.persistenceManager.store(pid, writer.nextProperties(database, pid));
+    }
+
+    /**
+     * Deletes a configuration and stores it back, keeping the database the same size. Subtract the {@link #store}
+     * score to estimate the cost of the delete alone.
+     */
+    @Benchmark
+    public void deleteAndStore(Database database, Writer writer) throws IOException {
+        String pid = writer.randomPid(database);
+        database.persistenceManager.delete(pid);
+        database.persistenceManager.store(pid, writer.nextProperties(database, pid));
+    }
+
+    @Benchmark
+    public void getDictionaries(Database database, Blackhole blackhole) throws IOException {
+        Enumeration<?> dictionaries = database.persistenceManager.getDictionaries();
+        while (dictionaries.hasMoreElements()) {
+            blackhole.consume(dictionaries.nextElement());
+        }
+    }
+
+    static String pid(int index) {
+        return "com.acme.benchmark.pid" + index;
+    }
+
+    /**
+     * Builds a configuration mixing the most common property types. Half of the values depend on the version.
+     */
+    static Dictionary<String, Object> createProperties(String pid, int count, long version) {
+        Hashtable<String, Object> properties = new Hashtable<>(); // NOSONAR
+        properties.put(Constants.SERVICE_PID, pid);
+        for (int i = 0; i < count; i++) {
+            long value = i % 2 == 0 ? i + version : i;
+            switch (i % 4) {
+                case 0:
+                    properties.put("property" + i, "value " + value);
+                    break;
+                case 1:
+                    properties.put("property" + i, (int) value);
+                    break;
+                case 2:
+                    properties.put("property" + i, new long[] { value, value + 1, value + 2 });
+                    break;
+                default:
+                    properties.put("property" + i, value % 3 == 0);
+                    break;
+            }
+        }
+        return properties;
+    }
+}
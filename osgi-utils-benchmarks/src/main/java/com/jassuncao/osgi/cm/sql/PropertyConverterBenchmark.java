@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversions applied to every property on each load and store.
+ * <p>
+ * The {@code type} parameter is a {@link PropertyConverter} type code, plus {@code E} for strings full of characters
+ * that need escaping. For strings {@code size} is also the length of each string. Scalars ignore the size otherwise,
+ * so use {@code -p shape=scalar -p size=1} to avoid repeating them.
+ *
+ * @author jassuncao
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropertyConverterBenchmark {
+
+    private static final String ESCAPED_CHARACTERS = ",\\\t\n";
+
+    @Param({ "T", "E", "I", "L", "F", "D", "X", "S", "C", "B" })
+    public String type;
+
+    @Param({ "scalar", "primitiveArray", "wrapperArray", "collection" })
+    public String shape;
+
+    @Param({ "1", "16", "1024" })
+    public int size;
+
+    private Object value;
+
+    private String typeCode;
+
+    private String text;
+
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        Class<?> elementType = elementType(type.charAt(0));
+        switch (shape) {
+            case "scalar":
+                value = randomValue(random, elementType);
+                break;
+            case "primitiveArray":
+            case "wrapperArray":
+                Class<?> componentType = "primitiveArray".equals(shape) ? primitiveType(elementType) : elementType;
+                value = Array.newInstance(componentType, size);
+                for (int i = 0; i < size; i++) {
+                    Array.set(value, i, randomValue(random, elementType));
+                }
+                break;
+            case "collection":
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(randomValue(random, elementType));
+                }
+                value = list;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        typeCode = PropertyConverter.getCodeForType(value);
+        text = PropertyConverter.convertToString(value);
+        binary = BinaryPropertyCodec.encode(value);
+    }
+
+    @Benchmark
+    public String getCodeForType() {
+        return PropertyConverter.getCodeForType(value);
+    }
+
+    @Benchmark
+    public String convertToString() {
+        return PropertyConverter.convertToString(value);
+    }
+
+    @Benchmark
+    public Object convertFromString() {
+        return PropertyConverter.convertFromString(typeCode, text);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return BinaryPropertyCodec.encode(value);
+    }
+
+    @Benchmark
+    public Object binaryDecode() {
+        return BinaryPropertyCodec.decode(binary);
+    }
+
+    private static Class<?> elementType(char code) {
+        switch (code) {
+            case 'T':
+            case 'E':
+                return String.class;
+            case 'I':
+                return Integer.class;
+            case 'L':
+                return Long.class;
+            case 'F':
+                return Float.class;
+            case 'D':
+                return Double.class;
+            case 'X':
+                return Byte.class;
+            case 'S':
+                return Short.class;
+            case 'C':
+                return Character.class;
+            case 'B':
+                return Boolean.class;
+            default:
+                throw new IllegalArgumentException("Unknown type " + code);
+        }
+    }
+
+    /**
+     * Strings have no primitive counterpart, so they are benchmarked as {@code String[]} in both array shapes
+     */
+    private static Class<?> primitiveType(Class<?> wrapper) {
+        try {
+            return (Class<?>) wrapper.getField("TYPE").get(null);
+        }
+        catch (ReflectiveOperationException ex) {
+            return wrapper;
+        }
+    }
+
+    private Object randomValue(Random random, Class<?> elementType) {
+        if (elementType == Integer.class) {
+            return random.nextInt();
+        }
+        if (elementType == Long.class) {
+            return random.nextLong();
+        }
+        if (elementType == Float.class) {
+            return random.nextFloat();
+        }
+        if (elementType == Double.class) {
+            return random.nextDouble();
+        }
+        if (elementType == Byte.class) {
+            return (byte) random.nextInt();
+        }
+        if (elementType == Short.class) {
+            return (short) random.nextInt();
+        }
+        if (elementType == Character.class) {
+            return (char) ('a' + random.nextInt(26));
+        }
+        if (elementType == Boolean.class) {
+            return random.nextBoolean();
+        }
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            if ("E".equals(type) && i % 4 == 0) {
+                builder.append(ESCAPED_CHARACTERS.charAt(random.nextInt(ESCAPED_CHARACTERS.length())));
+            }
+            else {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return builder.toString();
+    }
+}
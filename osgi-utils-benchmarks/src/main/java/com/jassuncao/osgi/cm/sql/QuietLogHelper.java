@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2022 Joao Assuncao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jassuncao.osgi.cm.sql;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * Only reports errors, so logging doesn't distort the measurements
+ *
+ * @author jassuncao
+ *
+ */
+class QuietLogHelper implements LogHelper {
+
+    @Override
+    public void log(int level, String message, Throwable t) {
+        if (isLogEnabled(level)) {
+            System.err.println(message); // NOSONAR
+            if (t != null) {
+                t.printStackTrace(); // NOSONAR
+            }
+        }
+    }
+
+    @Override
+    public void log(int level, String message) {
+        log(level, message, null);
+    }
+
+    @Override
+    public boolean isLogEnabled(int level) {
+        return level <= LogService.LOG_ERROR;
+    }
+}